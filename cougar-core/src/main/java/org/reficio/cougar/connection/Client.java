@@ -19,9 +19,12 @@ package org.reficio.cougar.connection;
 
 import org.reficio.cougar.StompException;
 import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.core.ReceiptWindowStatistics;
 import org.reficio.cougar.core.StompOperations;
 import org.reficio.cougar.core.StompResource;
 
+import java.util.concurrent.Executor;
+
 /**
  * User: Tom Bujok (tom.bujok@reficio.org)
  * Date: 2010-12-30
@@ -44,4 +47,32 @@ public interface Client extends StompResource, StompOperations {
 	
 	void commit(String transactionId) throws StompException;
 
+	// the received frames are pushed to the listener by a thread of the client - receive() cannot be used anymore
+	void setMessageListener(MessageListener listener) throws StompException;
+
+	// the listener is invoked by the given executor
+	void setMessageListener(MessageListener listener, Executor executor) throws StompException;
+
+	// the messages of the subscription are pushed to the listener instead of the one of the client
+	void setMessageListener(String subscriptionId, MessageListener listener) throws StompException;
+
+	// sends the frame with a generated receipt request without waiting for the receipt, so many sends may be
+	// pipelined - the receipts are received by a thread of the client, receive() cannot be used anymore
+	ReceiptFuture sendAsync(String destination, FrameDecorator frameDecorator) throws StompException;
+
+	ReceiptFuture sendAsync(String destination) throws StompException;
+
+	// never waits for the broker - if the frames have been read by a thread of the client only for the cancelled
+	// subscription, the thread stops once the receipt of the UNSUBSCRIBE arrives and the next receive() waits
+	// for it, at most for the receipt timeout
+	void unsubscribe(String id) throws StompException;
+
+	void unsubscribe(String id, FrameDecorator frameDecorator) throws StompException;
+
+	// sends the acknowledgements deferred by the ack policy of the client right away
+	void sendPendingAcks() throws StompException;
+
+	// counters of the receipts awaited by sendAsync(), limited by the receipt window of the client
+	ReceiptWindowStatistics getReceiptWindowStatistics();
+
 }
@@ -21,6 +21,8 @@ import org.reficio.cougar.StompException;
 import org.reficio.cougar.core.StompResource;
 import org.reficio.cougar.domain.Frame;
 
+import java.util.Collection;
+
 /**
  * User: Tom Bujok (tom.bujok@reficio.org)
  * Date: 2010-12-30
@@ -32,6 +34,9 @@ import org.reficio.cougar.domain.Frame;
 public interface Connection extends StompResource {
 
     void send(Frame frame) throws StompException;
+    // the whole batch is written with a single write, the state of the connection is checked once
+    void send(Collection<Frame> frames) throws StompException;
+    void flush() throws StompException;
 	Frame receive() throws StompException;
     Frame receive(int timeout) throws StompException;
     Frame receiveNoWait() throws StompException;
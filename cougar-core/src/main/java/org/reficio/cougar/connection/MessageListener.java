@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.connection;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.domain.Frame;
+
+/**
+ * Callback receiving the frames pushed by the client, see Client.setMessageListener(). The frames are
+ * dispatched in the order of their reception unless a multi-threaded executor has been configured.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface MessageListener {
+
+    void onMessage(Frame message);
+
+    void onReceipt(Frame receipt);
+
+    void onError(Frame error);
+
+    // invoked once if the connection has been broken, no frames are dispatched afterwards
+    void onException(StompException exception);
+
+}
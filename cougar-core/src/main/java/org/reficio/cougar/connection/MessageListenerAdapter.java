@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.connection;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.domain.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MessageListener ignoring all the frames - the methods of interest may be overridden.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public abstract class MessageListenerAdapter implements MessageListener {
+
+    private static final transient Logger log = LoggerFactory.getLogger(MessageListenerAdapter.class);
+
+    public void onMessage(Frame message) {
+    }
+
+    public void onReceipt(Frame receipt) {
+    }
+
+    public void onError(Frame error) {
+        log.warn(String.format("Error frame received [%s]", error.errorMessageContent()));
+    }
+
+    public void onException(StompException exception) {
+        log.error("Connection has been broken", exception);
+    }
+
+}
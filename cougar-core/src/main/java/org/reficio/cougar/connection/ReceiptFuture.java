@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.connection;
+
+import org.reficio.cougar.domain.Frame;
+
+import java.util.concurrent.Future;
+
+/**
+ * Pending result of a SEND frame sent with a receipt request. Completed with the RECEIPT frame of the broker;
+ * fails with a StompException if an ERROR frame has been received instead, if the receipt has not arrived
+ * within the receipt timeout or if the connection has been closed in the meantime.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface ReceiptFuture extends Future<Frame> {
+
+    String getReceiptId();
+
+}
@@ -36,5 +36,9 @@ public interface TransactionalClient extends StompResource, StompOperations {
 	void rollback() throws StompException;
 	void commit(FrameDecorator frameDecorator) throws StompException;
 	void commit() throws StompException;
+	// the transaction is finished by the commit or the rollback
+	boolean isInTransaction();
+	// flushes the pending frames, the automatic transaction of the transaction batch policy is committed first
+	void flush() throws StompException;
 
 }
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides when the acknowledgements of a client, made with ack(messageId), are sent to the broker. The pending
+ * acknowledgements are sent once the given number of them has been recorded or at the latest after the given
+ * delay since the first one, and always before an unsubscribe, a decorated ack and the close of the client.
+ * The acknowledgements made within a transaction are sent at once, they are batched by the commit anyway.
+ * <ul>
+ * <li>immediate - every acknowledgement is sent as soon as it is made (default)</li>
+ * <li>cumulative - for the CLIENT ack mode, only the last recorded message of every subscription is acknowledged,
+ * which acknowledges all the messages of the subscription received before it</li>
+ * <li>individual - for the CLIENT_INDIVIDUAL ack mode, all the recorded messages are acknowledged with
+ * a single write</li>
+ * </ul>
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class AckPolicy {
+
+    private static final AckPolicy IMMEDIATE = new AckPolicy(1, 0, false);
+
+    private final int maxPendingAcks;
+    private final long maxDelayInNanos;
+    private final boolean cumulative;
+
+    private AckPolicy(int maxPendingAcks, long maxDelayInNanos, boolean cumulative) {
+        this.maxPendingAcks = maxPendingAcks;
+        this.maxDelayInNanos = maxDelayInNanos;
+        this.cumulative = cumulative;
+    }
+
+    public static AckPolicy immediate() {
+        return IMMEDIATE;
+    }
+
+    public static AckPolicy cumulative(int maxPendingAcks, long maxDelay, TimeUnit unit) {
+        return new AckPolicy(validate(maxPendingAcks, maxDelay, unit), unit.toNanos(maxDelay), true);
+    }
+
+    public static AckPolicy individual(int maxPendingAcks, long maxDelay, TimeUnit unit) {
+        return new AckPolicy(validate(maxPendingAcks, maxDelay, unit), unit.toNanos(maxDelay), false);
+    }
+
+    private static int validate(int maxPendingAcks, long maxDelay, TimeUnit unit) {
+        checkArgument(maxPendingAcks > 0, "maxPendingAcks must be positive");
+        checkArgument(maxDelay > 0, "maxDelay must be positive");
+        checkNotNull(unit, "unit cannot be null");
+        return maxPendingAcks;
+    }
+
+    public boolean isImmediate() {
+        return this == IMMEDIATE;
+    }
+
+    public boolean isSendRequired(int pendingAcks) {
+        return pendingAcks >= maxPendingAcks;
+    }
+
+    public boolean isCumulative() {
+        return cumulative;
+    }
+
+    public int getMaxPendingAcks() {
+        return maxPendingAcks;
+    }
+
+    public long getMaxDelayInNanos() {
+        return maxDelayInNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AckPolicy[maxPendingAcks=%d, maxDelayInNanos=%d, cumulative=%s]",
+                maxPendingAcks, maxDelayInNanos, cumulative);
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+/**
+ * Transmission handler that is able to push the received frames to a FrameHandler. Once the handler
+ * is set, the frames are no longer returned by unmarshall().
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface AsyncTransmissionHandler extends TransmissionHandler {
+
+    void setFrameHandler(FrameHandler frameHandler);
+
+    // no frames are read from the socket until the reception is resumed - the peer is held up by the flow
+    // control of the network; the frames already read may still be pushed
+    void suspendReception();
+
+    void resumeReception();
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides when the frames sent by a connection are flushed to the socket. Regardless of the policy
+ * the pending frames are flushed on an explicit flush(), before a frame is received and when the
+ * connection is closed.
+ * <ul>
+ * <li>immediate - every frame is flushed as soon as it is marshalled (default)</li>
+ * <li>batched - the frames are flushed once the given number of frames or bytes is pending</li>
+ * <li>time-bounded - the frames are flushed at the latest after the given delay since the first pending one</li>
+ * </ul>
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class FlushPolicy {
+
+    public static final int DEFAULT_MAX_PENDING_BYTES = FrameBuffer.DEFAULT_CAPACITY;
+
+    private static final long NO_DELAY = 0;
+    private static final FlushPolicy IMMEDIATE = new FlushPolicy(1, Integer.MAX_VALUE, NO_DELAY);
+
+    private final int maxPendingFrames;
+    private final int maxPendingBytes;
+    private final long maxDelayInNanos;
+
+    private FlushPolicy(int maxPendingFrames, int maxPendingBytes, long maxDelayInNanos) {
+        this.maxPendingFrames = maxPendingFrames;
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxDelayInNanos = maxDelayInNanos;
+    }
+
+    public static FlushPolicy immediate() {
+        return IMMEDIATE;
+    }
+
+    public static FlushPolicy batched(int maxPendingFrames, int maxPendingBytes) {
+        checkArgument(maxPendingFrames > 0, "maxPendingFrames must be positive");
+        checkArgument(maxPendingBytes > 0, "maxPendingBytes must be positive");
+        return new FlushPolicy(maxPendingFrames, maxPendingBytes, NO_DELAY);
+    }
+
+    public static FlushPolicy timeBounded(long maxDelay, TimeUnit unit) {
+        checkArgument(maxDelay > 0, "maxDelay must be positive");
+        checkNotNull(unit, "unit cannot be null");
+        // the pending bytes are bounded anyway, not to buffer without limits within the delay
+        return new FlushPolicy(Integer.MAX_VALUE, DEFAULT_MAX_PENDING_BYTES, unit.toNanos(maxDelay));
+    }
+
+    public boolean isFlushRequired(int pendingFrames, int pendingBytes) {
+        return pendingFrames >= maxPendingFrames || pendingBytes >= maxPendingBytes;
+    }
+
+    public boolean isTimeBounded() {
+        return maxDelayInNanos != NO_DELAY;
+    }
+
+    public int getMaxPendingFrames() {
+        return maxPendingFrames;
+    }
+
+    public int getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public long getMaxDelayInNanos() {
+        return maxDelayInNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlushPolicy[maxPendingFrames=%d, maxPendingBytes=%d, maxDelayInNanos=%d]",
+                maxPendingFrames, maxPendingBytes, maxDelayInNanos);
+    }
+
+}
@@ -0,0 +1,335 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Growable byte buffer the frames are encoded into. It is meant to be reused between the frames - clear()
+ * keeps the allocated memory, unless the buffer has grown over the max retained size for a single large frame.
+ * Strings are encoded without any intermediate objects for the UTF-8, US-ASCII and ISO-8859-1 charsets.
+ * If the buffer has a sink, the streamed payloads are passed through it in chunks, so the buffer does not grow
+ * over its initial capacity for them. Not thread-safe.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public class FrameBuffer {
+
+    public static final int DEFAULT_CAPACITY = 1024 * 16; // 16KB
+    public static final int MAX_RETAINED_CAPACITY = 1024 * 1024; // 1MB
+    // some VMs reserve a few header words in an array
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte REPLACEMENT = '?';
+
+    private final int initialCapacity;
+    private final OutputStream sink;
+    private byte[] data;
+    private int size;
+    private long bytesPassedToSink;
+
+    public FrameBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameBuffer(int initialCapacity) {
+        this(initialCapacity, null);
+    }
+
+    public FrameBuffer(int initialCapacity, OutputStream sink) {
+        checkArgument(initialCapacity > 0, "initialCapacity must be positive");
+        this.initialCapacity = initialCapacity;
+        this.sink = sink;
+        this.data = new byte[initialCapacity];
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Mutators
+    // ----------------------------------------------------------------------------------
+    public FrameBuffer put(byte value) {
+        ensureCapacity(1);
+        data[size++] = value;
+        return this;
+    }
+
+    public FrameBuffer put(byte[] bytes) {
+        return put(bytes, 0, bytes.length);
+    }
+
+    public FrameBuffer put(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+        return this;
+    }
+
+    public FrameBuffer put(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        ensureCapacity(length);
+        bytes.get(data, size, length);
+        size += length;
+        return this;
+    }
+
+    public FrameBuffer put(String value, Charset charset) {
+        checkNotNull(charset, "charset cannot be null");
+        if (UTF_8.equals(charset)) {
+            putUtf8(value);
+        } else if (US_ASCII.equals(charset)) {
+            putSingleByte(value, 0x7F);
+        } else if (ISO_8859_1.equals(charset)) {
+            putSingleByte(value, 0xFF);
+        } else {
+            put(value.getBytes(charset));
+        }
+        return this;
+    }
+
+    /**
+     * Copies exactly the given number of bytes from the stream. If the buffer has a sink, the buffered bytes
+     * are written to it whenever the buffer is full; otherwise the buffer grows.
+     */
+    public FrameBuffer put(InputStream input, int length) throws IOException {
+        checkArgument(length >= 0, "length must not be negative");
+        int remaining = length;
+        while (remaining > 0) {
+            if (size == data.length) {
+                if (sink != null) {
+                    sink.write(data, 0, size);
+                    bytesPassedToSink += size;
+                    size = 0;
+                } else {
+                    ensureCapacity(remaining);
+                }
+            }
+            int bytesRead = input.read(data, size, Math.min(remaining, data.length - size));
+            if (bytesRead < 0) {
+                throw new EOFException(String.format("Stream ended [%d] bytes before the declared length", remaining));
+            }
+            size += bytesRead;
+            remaining -= bytesRead;
+        }
+        return this;
+    }
+
+    // non-negative number written as ASCII digits
+    public FrameBuffer putDecimal(long value) {
+        checkArgument(value >= 0, "value must not be negative");
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int index = size + digits - 1; index >= size; index--) {
+            data[index] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    // drops the bytes put after the given size, e.g. the ones of a frame which could not be encoded
+    public void truncate(int size) {
+        checkArgument(size >= 0 && size <= this.size, "size out of the buffer");
+        this.size = size;
+    }
+
+    public void clear() {
+        size = 0;
+        if (data.length > MAX_RETAINED_CAPACITY) {
+            data = new byte[initialCapacity];
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Accessors
+    // ----------------------------------------------------------------------------------
+    public int size() {
+        return size;
+    }
+
+    // number of the bytes the buffer may hold without growing
+    public int capacity() {
+        return data.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // number of the bytes written to the sink so far - once they have been passed, they cannot be truncated
+    public long getBytesPassedToSink() {
+        return bytesPassedToSink;
+    }
+
+    public byte[] toByteArray() {
+        byte[] result = new byte[size];
+        System.arraycopy(data, 0, result, 0, size);
+        return result;
+    }
+
+    // view of the given bytes of the buffer, valid until the buffer is modified
+    public ByteBuffer wrap(int offset, int length) {
+        checkArgument(offset >= 0 && length >= 0 && offset + length <= size, "region out of the buffer");
+        return ByteBuffer.wrap(data, offset, length);
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Output - the buffer is cleared once all the bytes have been written
+    // ----------------------------------------------------------------------------------
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(data, 0, size);
+        clear();
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        clear();
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Encoding helpers
+    // ----------------------------------------------------------------------------------
+    public static int encodedLength(String value, Charset charset) {
+        checkNotNull(charset, "charset cannot be null");
+        if (UTF_8.equals(charset)) {
+            return utf8Length(value);
+        } else if (US_ASCII.equals(charset) || ISO_8859_1.equals(charset)) {
+            // a surrogate pair is replaced by a single byte
+            return value.codePointCount(0, value.length());
+        }
+        return value.getBytes(charset).length;
+    }
+
+    // true if the ASCII chars are encoded as single bytes of the same value
+    public static boolean isAsciiCompatible(Charset charset) {
+        return UTF_8.equals(charset) || US_ASCII.equals(charset) || ISO_8859_1.equals(charset);
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        long result = length;
+        for (int index = 0; index < length; index++) {
+            char c = value.charAt(index);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+                    // 4 bytes for 2 chars
+                    result += 2;
+                    index++;
+                } else if (isSurrogate(c)) {
+                    // malformed - replaced by a single byte
+                } else {
+                    result += 2;
+                }
+            } else if (c >= 0x80) {
+                result += 1;
+            }
+        }
+        if (result > MAX_CAPACITY) {
+            throw new IllegalArgumentException(String.format("String of [%d] chars is too long to be encoded", length));
+        }
+        return (int) result;
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private void putUtf8(String value) {
+        int length = value.length();
+        // at most 3 bytes per char - a surrogate pair is encoded as 4 bytes; if the free space may not be enough,
+        // the exact length is computed, so the buffer does not grow over the encoded string
+        if (length > (data.length - size) / 3) {
+            ensureCapacity(utf8Length(value));
+        }
+        byte[] bytes = data;
+        int position = size;
+        for (int index = 0; index < length; index++) {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++index));
+                    bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    bytes[position++] = REPLACEMENT;
+                }
+            } else {
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        size = position;
+    }
+
+    private void putSingleByte(String value, int maxChar) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int index = 0; index < length; index++) {
+            char c = value.charAt(index);
+            if (c <= maxChar) {
+                data[size++] = (byte) c;
+            } else {
+                if (Character.isHighSurrogate(c) && index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+                    index++;
+                }
+                data[size++] = REPLACEMENT;
+            }
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (additional > MAX_CAPACITY - size) {
+            throw new IllegalStateException(String.format("Buffer of [%d] bytes cannot grow by [%d] bytes", size, additional));
+        }
+        int required = size + additional;
+        if (required > data.length) {
+            // doubled as long as it does not exceed the max capacity
+            int capacity = (int) Math.min(Math.max(2L * data.length, required), MAX_CAPACITY);
+            byte[] grown = new byte[capacity];
+            System.arraycopy(data, 0, grown, 0, size);
+            data = grown;
+        }
+    }
+
+}
@@ -21,8 +21,15 @@ import org.apache.commons.lang.StringUtils;
 import org.reficio.cougar.StompInvalidHeaderException;
 import org.reficio.cougar.domain.*;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import static org.reficio.cougar.domain.HeaderType.*;
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -39,7 +46,16 @@ public class FrameBuilder implements Cloneable {
 
     protected String command;
     protected Map<String, Header> headers;
+    public static final Charset DEFAULT_PAYLOAD_CHARSET = Charset.forName("UTF-8");
+
     protected String payload;
+    // read-only, the bytes between the position and the limit; takes precedence over the string payload
+    protected ByteBuffer binaryPayload;
+    // used to decode the binary payload if it is accessed as string
+    protected Charset payloadCharset = DEFAULT_PAYLOAD_CHARSET;
+    // read only once, while sending or by the receiver; takes precedence over the other payloads
+    protected InputStream payloadStream;
+    protected int payloadStreamLength;
     private boolean headersValidationEnabled;
     private Set<String> frozenHeaders;
 
@@ -50,6 +66,23 @@ public class FrameBuilder implements Cloneable {
         this.headersValidationEnabled = true;
     }
 
+    protected FrameBuilder(Command command, Map<String, Header> headers, ByteBuffer payload, Charset payloadCharset) {
+        this.command = checkNotNull(command, "command cannot be null").getName();
+        this.headers = checkNotNull(headers, "headers cannot be null");
+        this.binaryPayload = checkNotNull(payload, "payload cannot be null").slice().asReadOnlyBuffer();
+        this.payloadCharset = checkNotNull(payloadCharset, "payloadCharset cannot be null");
+        this.headersValidationEnabled = true;
+    }
+
+    protected FrameBuilder(Command command, Map<String, Header> headers, InputStream payload, int length) {
+        checkArgument(length >= 0, "length must not be negative");
+        this.command = checkNotNull(command, "command cannot be null").getName();
+        this.headers = checkNotNull(headers, "headers cannot be null");
+        this.payloadStream = checkNotNull(payload, "payload cannot be null");
+        this.payloadStreamLength = length;
+        this.headersValidationEnabled = true;
+    }
+
     public FrameBuilder(Command command) {
         this(command, true);
     }
@@ -183,12 +216,15 @@ public class FrameBuilder implements Cloneable {
         return payload(payload, false);
     }
 
+    // the content-length header is set to the number of the UTF-8 bytes of the payload
     public FrameBuilder payload(String payload, boolean disableContentLenghtHeader) {
         this.payload = payload;
+        this.binaryPayload = null;
+        this.payloadStream = null;
         if (disableContentLenghtHeader == false) {
             if (CONTENT_LENGTH.isAllowed((Frame) this)) {
                 if (payload != null) {
-                    contentLength(Integer.valueOf(payload.length()).toString());
+                    contentLength(Integer.valueOf(FrameBuffer.encodedLength(payload, DEFAULT_PAYLOAD_CHARSET)).toString());
                 } else {
                     contentLength(null);
                 }
@@ -198,9 +234,107 @@ public class FrameBuilder implements Cloneable {
     }
 
     public String payload() {
+        if (this.payload == null && this.binaryPayload != null) {
+            // decoded lazily - binary payload is not touched unless accessed as string
+            this.payload = payloadCharset.decode(binaryPayload.duplicate()).toString();
+        }
         return this.payload;
     }
 
+    public FrameBuilder binaryPayload(byte[] payload) {
+        return binaryPayload(payload, false);
+    }
+
+    public FrameBuilder binaryPayload(byte[] payload, boolean disableContentLenghtHeader) {
+        return binaryPayload(payload != null ? ByteBuffer.wrap(payload) : null, disableContentLenghtHeader);
+    }
+
+    public FrameBuilder binaryPayload(ByteBuffer payload) {
+        return binaryPayload(payload, false);
+    }
+
+    /**
+     * The bytes between the position and the limit of the buffer are used as payload. They are not copied,
+     * so the content of the buffer must not be changed until the frame has been sent.
+     * The content-length header is set to the number of bytes.
+     */
+    public FrameBuilder binaryPayload(ByteBuffer payload, boolean disableContentLenghtHeader) {
+        this.payload = null;
+        this.binaryPayload = (payload != null) ? payload.slice().asReadOnlyBuffer() : null;
+        this.payloadCharset = DEFAULT_PAYLOAD_CHARSET;
+        this.payloadStream = null;
+        if (disableContentLenghtHeader == false) {
+            if (CONTENT_LENGTH.isAllowed((Frame) this)) {
+                if (payload != null) {
+                    contentLength(Integer.valueOf(binaryPayload.remaining()).toString());
+                } else {
+                    contentLength(null);
+                }
+            }
+        }
+        return this;
+    }
+
+    public boolean hasBinaryPayload() {
+        return this.binaryPayload != null;
+    }
+
+    // read-only view of the binary payload, null if the payload has been set as string
+    public ByteBuffer binaryPayload() {
+        return (this.binaryPayload != null) ? this.binaryPayload.duplicate() : null;
+    }
+
+    // copy of the binary payload, null if the payload has been set as string
+    public byte[] binaryPayloadBytes() {
+        if (this.binaryPayload == null) {
+            return null;
+        }
+        byte[] bytes = new byte[binaryPayload.remaining()];
+        binaryPayload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Exactly the given number of bytes is read from the stream while the frame is being sent, in chunks,
+     * so the payload is never held in memory as a whole. The stream is not closed.
+     * The content-length header is set to the length.
+     */
+    public FrameBuilder streamPayload(InputStream payload, int length) {
+        checkNotNull(payload, "payload cannot be null");
+        checkArgument(length >= 0, "length must not be negative");
+        this.payload = null;
+        this.binaryPayload = null;
+        this.payloadStream = payload;
+        this.payloadStreamLength = length;
+        if (CONTENT_LENGTH.isAllowed((Frame) this)) {
+            contentLength(Integer.valueOf(length).toString());
+        }
+        return this;
+    }
+
+    public FrameBuilder streamPayload(ReadableByteChannel payload, int length) {
+        checkNotNull(payload, "payload cannot be null");
+        return streamPayload(Channels.newInputStream(payload), length);
+    }
+
+    public boolean hasStreamPayload() {
+        return this.payloadStream != null;
+    }
+
+    /**
+     * Payload of a frame that is sent or received as a stream, null otherwise. The payload() and
+     * binaryPayload() accessors of such a frame return null. A received stream is bounded by the
+     * content-length and is read lazily from the connection - it has to be read (or closed) before
+     * the next frame is received, otherwise the unread bytes are skipped.
+     */
+    public InputStream payloadStream() {
+        return this.payloadStream;
+    }
+
+    public int payloadStreamLength() {
+        return this.payloadStreamLength;
+    }
+
     public FrameBuilder login(String value) {
         addHeaderByType(LOGIN, value);
         return this;
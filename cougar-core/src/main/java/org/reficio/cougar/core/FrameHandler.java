@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.domain.Frame;
+
+/**
+ * Receives the frames of a connection pushed by the transport instead of them being pulled by receive().
+ * The methods are invoked by the transport thread, which may serve many other connections, so they should
+ * return quickly and must not wait for the frames of the same connection.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface FrameHandler {
+
+    void handleFrame(Frame frame);
+
+    // invoked once the connection has been broken, no frames are delivered afterwards
+    void handleError(StompException exception);
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Limits the number of the frames sent asynchronously by a client whose receipts have not arrived yet, so the
+ * producer cannot outrun the broker without limits. A slot of the window is freed once the future of the frame
+ * is done - by the receipt, by an error, by the receipt timeout or by its cancellation.
+ * <ul>
+ * <li>unbounded - no limit (default)</li>
+ * <li>blocking - the sender waits for a free slot as long as it takes</li>
+ * <li>time-bounded - the sender waits for a free slot at most for the given time</li>
+ * <li>rejecting - the frame is rejected at once if the window is full</li>
+ * </ul>
+ * The full window is reported with a StompFlowControlException.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class ReceiptWindow {
+
+    public static final long WAIT_INDEFINITELY = -1;
+    private static final long NO_WAIT = 0;
+
+    private static final ReceiptWindow UNBOUNDED = new ReceiptWindow(Integer.MAX_VALUE, NO_WAIT);
+
+    private final int maxInFlight;
+    private final long maxWaitInNanos;
+
+    private ReceiptWindow(int maxInFlight, long maxWaitInNanos) {
+        this.maxInFlight = maxInFlight;
+        this.maxWaitInNanos = maxWaitInNanos;
+    }
+
+    public static ReceiptWindow unbounded() {
+        return UNBOUNDED;
+    }
+
+    public static ReceiptWindow blocking(int maxInFlight) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        return new ReceiptWindow(maxInFlight, WAIT_INDEFINITELY);
+    }
+
+    public static ReceiptWindow timeBounded(int maxInFlight, long maxWait, TimeUnit unit) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        checkArgument(maxWait > 0, "maxWait must be positive");
+        checkNotNull(unit, "unit cannot be null");
+        return new ReceiptWindow(maxInFlight, unit.toNanos(maxWait));
+    }
+
+    public static ReceiptWindow rejecting(int maxInFlight) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        return new ReceiptWindow(maxInFlight, NO_WAIT);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    // WAIT_INDEFINITELY, 0 for rejecting at once
+    public long getMaxWaitInNanos() {
+        return maxWaitInNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReceiptWindow[maxInFlight=%d, maxWaitInNanos=%d]", maxInFlight, maxWaitInNanos);
+    }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+/**
+ * Counters of the receipt window of a client - to tune the size of the window against the latency
+ * of the broker.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface ReceiptWindowStatistics {
+
+    int getMaxInFlight();
+
+    // frames sent whose receipts have not arrived yet
+    int getInFlightCount();
+
+    // number of the sends which had to wait for a free slot
+    long getStallCount();
+
+    // total time the senders have waited for a free slot
+    long getStallTimeInMillis();
+
+    // sends rejected, or timed out, since the window has been full
+    long getRejectedCount();
+
+}
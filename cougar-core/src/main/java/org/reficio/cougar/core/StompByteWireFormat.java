@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import org.reficio.cougar.domain.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Byte-oriented wire format - frames are parsed straight from a ByteBuffer and encoded straight into
+ * a FrameBuffer, the delimiters are handled as raw bytes and the charset is applied only to the command,
+ * the headers and the payload.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface StompByteWireFormat extends StompWireFormat {
+
+    /**
+     * Parses one frame starting at the position of the buffer. If the buffer contains the whole frame
+     * the position is moved right behind its end-of-frame marker. If the frame is not complete yet
+     * null is returned and the position of the buffer is left untouched.
+     */
+    Frame unmarshal(ByteBuffer input, Charset charset);
+
+    /**
+     * Parses the command and the headers of the frame starting at the position of the buffer. If they are
+     * complete the position is moved to the first byte of the payload, which is not parsed - the returned
+     * frame has an empty payload and is not frozen. Otherwise null is returned and the position is left untouched.
+     */
+    Frame unmarshalHeaders(ByteBuffer input, Charset charset);
+
+    /**
+     * Appends the encoded frame to the output buffer. The content-length header, if present, is sent
+     * as the number of the encoded payload bytes. A stream payload is copied through the sink of the buffer,
+     * otherwise nothing is written to the network.
+     */
+    void marshal(Frame frame, FrameBuffer output, Charset charset);
+
+    /**
+     * Appends the encoded command and headers of the frame, up to and including the blank line ending them.
+     * The payload and the end-of-frame marker are left to the caller, so a binary payload may be written
+     * to the network without being copied into the buffer.
+     */
+    void marshalHeaders(Frame frame, FrameBuffer output, Charset charset);
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import org.reficio.cougar.domain.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Incremental frame decoder for the non-blocking I/O. The bytes may be passed in chunks of any size - the
+ * partially received command, headers and payload are kept by the decoder until the next call. Not thread-safe,
+ * one decoder has to be used per connection.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public interface StompFrameDecoder {
+
+    /**
+     * Consumes all the remaining bytes of the input and returns the frames completed by them, in the order
+     * of their reception - the list is empty if no frame has been completed. The input buffer is not
+     * referenced by the decoder afterwards. If the bytes are not a valid frame a StompWireFormatException
+     * is thrown and the decoder is reset.
+     */
+    List<Frame> decode(ByteBuffer input);
+
+    // true if a part of a frame has been received but the frame is not complete yet
+    boolean isInsideFrame();
+
+    // discards the partially received frame
+    void reset();
+
+}
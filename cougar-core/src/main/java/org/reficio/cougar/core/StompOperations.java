@@ -20,6 +20,8 @@ package org.reficio.cougar.core;
 import org.reficio.cougar.StompException;
 import org.reficio.cougar.domain.Frame;
 
+import java.util.Collection;
+
 /**
  * User: Tom Bujok (tom.bujok@reficio.org)
  * Date: 2010-11-22
@@ -32,6 +34,9 @@ public interface StompOperations {
 
     void send(String destination, FrameDecorator frameDecorator) throws StompException;
 
+    // frames written to the socket one after another with a single flush
+    void send(Collection<Frame> frames) throws StompException;
+
     String subscribe(String destination) throws StompException;
 
     String subscribe(String destination, FrameDecorator frameDecorator) throws StompException;
@@ -50,6 +55,12 @@ public interface StompOperations {
 
     Frame receiveNoWait() throws StompException;
 
+    // next message of the subscription, the ones of the other subscriptions are queued separately
+    Frame receive(String subscriptionId, int timeout) throws StompException;
+
+    // next message of the subscription already received by the client, null if there is none - never waits
+    Frame poll(String subscriptionId) throws StompException;
+
     void ack(String messageId, FrameDecorator frameDecorator) throws StompException;
 
     void ack(String messageId) throws StompException;
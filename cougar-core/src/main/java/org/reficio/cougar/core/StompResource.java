@@ -30,6 +30,8 @@ public interface StompResource {
     void connect();
     boolean isConnected();
     void close();
+    // BROKEN once a transmission error has been encountered - such a resource can only be closed
+    StompResourceState getState();
 
 	String getHostname();
 	String getPassword();
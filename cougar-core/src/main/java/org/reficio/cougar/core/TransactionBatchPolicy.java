@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides whether the messages sent by a transactional client outside of a transaction begun by the user are
+ * grouped into automatic transactions. Such a transaction is begun by the first send and committed once
+ * the given number of messages has been sent in it, at the latest after the given delay since the first one,
+ * on flush() and when the client is closed - so the persistent messages of a batch are written by the broker
+ * at once. An explicit begin() commits the pending batch first. The acknowledgements are not a part of it.
+ * <ul>
+ * <li>disabled - every message is sent on its own (default)</li>
+ * <li>batched - at most the given number of messages per transaction</li>
+ * </ul>
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class TransactionBatchPolicy {
+
+    private static final TransactionBatchPolicy DISABLED = new TransactionBatchPolicy(1, 0);
+
+    private final int maxMessages;
+    private final long maxDelayInNanos;
+
+    private TransactionBatchPolicy(int maxMessages, long maxDelayInNanos) {
+        this.maxMessages = maxMessages;
+        this.maxDelayInNanos = maxDelayInNanos;
+    }
+
+    public static TransactionBatchPolicy disabled() {
+        return DISABLED;
+    }
+
+    public static TransactionBatchPolicy batched(int maxMessages, long maxDelay, TimeUnit unit) {
+        checkArgument(maxMessages > 0, "maxMessages must be positive");
+        checkArgument(maxDelay > 0, "maxDelay must be positive");
+        checkNotNull(unit, "unit cannot be null");
+        return new TransactionBatchPolicy(maxMessages, unit.toNanos(maxDelay));
+    }
+
+    public boolean isDisabled() {
+        return this == DISABLED;
+    }
+
+    public boolean isCommitRequired(int sentMessages) {
+        return sentMessages >= maxMessages;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxDelayInNanos() {
+        return maxDelayInNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransactionBatchPolicy[maxMessages=%d, maxDelayInNanos=%d]", maxMessages, maxDelayInNanos);
+    }
+
+}
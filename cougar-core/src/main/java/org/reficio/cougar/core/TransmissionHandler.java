@@ -2,6 +2,7 @@ package org.reficio.cougar.core;
 
 import org.reficio.cougar.domain.Frame;
 
+import java.util.Collection;
 
 /**
  * Created by IntelliJ IDEA.
@@ -15,5 +16,8 @@ public interface TransmissionHandler {
     void closeCommunication();
     void setReceptionTimeoutInMillis(int timeout);
     void marshall(Frame frame);
+    // writes the frames one after another and flushes them once, whatever the flush policy
+    void marshall(Collection<Frame> frames);
+    void flush();
     Frame unmarshall();
 }
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Connection parameters passed to the TransportFactory. Immutable.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public class TransportSettings {
+
+    public static final int STREAMING_DISABLED = 0;
+
+    private final StompWireFormat wireFormat;
+    private final String hostname;
+    private final int port;
+    private final String encoding;
+    private final FlushPolicy flushPolicy;
+    private final int payloadStreamingThreshold;
+
+    public TransportSettings(StompWireFormat wireFormat, String hostname, int port, String encoding,
+                             FlushPolicy flushPolicy, int payloadStreamingThreshold) {
+        this.wireFormat = checkNotNull(wireFormat, "wireFormat cannot be null");
+        this.hostname = checkNotNull(hostname, "hostname cannot be null");
+        this.port = port;
+        this.encoding = checkNotNull(encoding, "encoding cannot be null");
+        this.flushPolicy = checkNotNull(flushPolicy, "flushPolicy cannot be null");
+        this.payloadStreamingThreshold = payloadStreamingThreshold;
+    }
+
+    public StompWireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    // payloads of at least that many bytes are received as streams, STREAMING_DISABLED by default
+    public int getPayloadStreamingThreshold() {
+        return payloadStreamingThreshold;
+    }
+
+}
@@ -19,6 +19,9 @@ package org.reficio.cougar.domain;
 
 import org.reficio.cougar.core.FrameBuilder;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Map;
 
 /**
@@ -35,6 +38,14 @@ public class Frame extends FrameBuilder implements Cloneable {
         super(command, headers, payload);
     }
 
+    public Frame(Command command, Map<String, Header> headers, ByteBuffer payload, Charset payloadCharset) {
+        super(command, headers, payload, payloadCharset);
+    }
+
+    public Frame(Command command, Map<String, Header> headers, InputStream payload, int length) {
+        super(command, headers, payload, length);
+    }
+
     public Frame(Command command) {
         super(command);
     }
@@ -68,7 +79,14 @@ public class Frame extends FrameBuilder implements Cloneable {
         for (Header header : headers.values()) {
             builder.append(String.format("  %s\n", header));
         }
-        builder.append(String.format("Payload:\t[%s]", payload != null ? payload : ""));
+        if (payloadStream != null) {
+            builder.append(String.format("Payload:\t[stream of %d bytes]", payloadStreamLength));
+        } else if (payload == null && binaryPayload != null) {
+            // do not decode the binary payload just to print it
+            builder.append(String.format("Payload:\t[%d bytes]", binaryPayload.remaining()));
+        } else {
+            builder.append(String.format("Payload:\t[%s]", payload != null ? payload : ""));
+        }
         return builder.toString();
     }
 
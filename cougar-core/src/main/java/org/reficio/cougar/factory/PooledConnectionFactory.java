@@ -0,0 +1,459 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.factory;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.connection.ConnectionFactory;
+import org.reficio.cougar.core.StompResource;
+import org.reficio.cougar.core.StompResourceState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * ConnectionFactory keeping a pool of the connections created by the target factory, so that the cost of the
+ * TCP and STOMP handshakes is paid once per connection and not once per operation.
+ * <p/>
+ * The connections handed out are proxies - closing one returns the underlying connection to the pool, unless
+ * it is no longer CONNECTED (e.g. BROKEN by a transmission error), in which case it is discarded. The idle
+ * connections are validated when borrowed, the ones idle for longer than the idle timeout are closed by a
+ * background evictor, as long as there are more than minSize of them. If all the maxSize connections are in
+ * use the borrower waits at most the borrow timeout for one to be returned.
+ * <p/>
+ * The state of a connection - subscriptions, message listeners, transactions - is not reset when it is
+ * returned, the borrower is responsible for cleaning it up.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public class PooledConnectionFactory<T extends StompResource> implements ConnectionFactory<T> {
+
+    private static final transient Logger log = LoggerFactory.getLogger(PooledConnectionFactory.class);
+
+    public static final int DEFAULT_MIN_SIZE = 0;
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_BORROW_TIMEOUT_IN_MILLIS = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT_IN_MILLIS = 60000;
+    public static final long DEFAULT_EVICTION_INTERVAL_IN_MILLIS = 5000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // the most recently returned first - the surplus connections stay idle and get evicted
+    private final LinkedList<IdleConnection<T>> idle = new LinkedList<IdleConnection<T>>();
+    // idle + borrowed + being created
+    private int size;
+    private boolean initialized;
+    private boolean closed;
+    private ScheduledExecutorService evictor;
+
+    private ConnectionFactory<T> targetConnectionFactory;
+    private int minSize = DEFAULT_MIN_SIZE;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long borrowTimeout = DEFAULT_BORROW_TIMEOUT_IN_MILLIS;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT_IN_MILLIS;
+    private long evictionInterval = DEFAULT_EVICTION_INTERVAL_IN_MILLIS;
+
+    public PooledConnectionFactory() {
+    }
+
+    public PooledConnectionFactory(ConnectionFactory<T> targetConnectionFactory) {
+        setTargetConnectionFactory(targetConnectionFactory);
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Lifecycle
+    // ----------------------------------------------------------------------------------
+    // starts the evictor and creates the minSize connections - invoked by the first createConnection() otherwise
+    public void init() {
+        lock.lock();
+        try {
+            checkNotNull(targetConnectionFactory, "targetConnectionFactory cannot be null");
+            checkArgument(minSize <= maxSize, "minSize cannot be greater than maxSize");
+            assertOpen();
+            if (initialized) {
+                return;
+            }
+            initialized = true;
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cougar-pool-evictor-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evict();
+                }
+            }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    // closes the idle connections, the borrowed ones are closed when returned
+    public void close() {
+        List<T> discarded = new ArrayList<T>();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (evictor != null) {
+                evictor.shutdown();
+            }
+            for (IdleConnection<T> entry : idle) {
+                discarded.add(entry.connection);
+            }
+            size -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        discard(discarded);
+    }
+
+    // ----------------------------------------------------------------------------------
+    // ConnectionFactory methods
+    // ----------------------------------------------------------------------------------
+    @Override
+    public T createConnection() {
+        init();
+        return wrap(borrow());
+    }
+
+    private T borrow() {
+        List<T> discarded = new ArrayList<T>();
+        T connection = null;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+            while (true) {
+                assertOpen();
+                connection = pollValid(discarded);
+                if (connection != null) {
+                    return connection;
+                }
+                if (size < maxSize) {
+                    size++;
+                    break;
+                }
+                if (nanos <= 0) {
+                    throw new StompConnectionException(String.format(
+                            "No connection has been returned to the pool within [%d] ms - all [%d] are in use",
+                            borrowTimeout, maxSize));
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompConnectionException("Interrupted while waiting for a connection", e);
+        } finally {
+            lock.unlock();
+            discard(discarded);
+        }
+        return create();
+    }
+
+    // validation on borrow - the connections which are no longer CONNECTED are discarded
+    private T pollValid(List<T> discarded) {
+        while (idle.isEmpty() == false) {
+            T connection = idle.removeFirst().connection;
+            if (isValid(connection)) {
+                return connection;
+            }
+            size--;
+            discarded.add(connection);
+        }
+        return null;
+    }
+
+    // the slot has been reserved by the caller, it is given back if the connection cannot be created
+    private T create() {
+        try {
+            return targetConnectionFactory.createConnection();
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                size--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private void release(T connection) {
+        lock.lock();
+        try {
+            if (closed == false && isValid(connection)) {
+                idle.addFirst(new IdleConnection<T>(connection, System.currentTimeMillis()));
+                available.signal();
+                return;
+            }
+            size--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        log.info(String.format("Discarding connection=[%s] in state [%s]", connection, connection.getState()));
+        discard(connection);
+    }
+
+    private boolean isValid(T connection) {
+        return StompResourceState.CONNECTED.equals(connection.getState());
+    }
+
+    private void discard(List<T> connections) {
+        for (T connection : connections) {
+            discard(connection);
+        }
+    }
+
+    private void discard(T connection) {
+        if (StompResourceState.CLOSED.equals(connection.getState())) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            log.warn(String.format("Error while closing connection=[%s]", connection), e);
+        }
+    }
+
+    private void assertOpen() {
+        if (closed) {
+            throw new StompConnectionException("Connection pool has been closed");
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Eviction
+    // ----------------------------------------------------------------------------------
+    void evict() {
+        List<T> discarded = new ArrayList<T>();
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            // the least recently used ones are at the end
+            Iterator<IdleConnection<T>> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                IdleConnection<T> entry = iterator.next();
+                boolean expired = now - entry.lastUsed >= idleTimeout && size > minSize;
+                if (expired || isValid(entry.connection) == false) {
+                    iterator.remove();
+                    size--;
+                    discarded.add(entry.connection);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(discarded);
+        fill();
+    }
+
+    // tops the pool up to the minSize, a failure is left to be retried by the next eviction run
+    private void fill() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || size >= minSize) {
+                    return;
+                }
+                size++;
+            } finally {
+                lock.unlock();
+            }
+            T connection;
+            try {
+                connection = create();
+            } catch (RuntimeException e) {
+                log.warn("Cannot create a connection for the pool", e);
+                return;
+            }
+            release(connection);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Statistics
+    // ----------------------------------------------------------------------------------
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Pooled connection proxy
+    // ----------------------------------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    private T wrap(T connection) {
+        Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> clazz = connection.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            interfaces.addAll(Arrays.asList(clazz.getInterfaces()));
+        }
+        return (T) Proxy.newProxyInstance(PooledConnectionFactory.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[interfaces.size()]),
+                new PooledConnectionInvocationHandler(connection));
+    }
+
+    private class PooledConnectionInvocationHandler implements InvocationHandler {
+
+        private final T target;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        PooledConnectionInvocationHandler(T target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals") && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode") && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("close") && method.getParameterTypes().length == 0) {
+                if (released.compareAndSet(false, true)) {
+                    release(target);
+                }
+                return null;
+            } else if (released.get()) {
+                return invokeReleased(name, method);
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getTargetException();
+            }
+        }
+
+        // the connection may be already in use by another borrower
+        private Object invokeReleased(String name, Method method) {
+            if (name.equals("isConnected") && method.getParameterTypes().length == 0) {
+                return false;
+            } else if (name.equals("getState") && method.getParameterTypes().length == 0) {
+                return StompResourceState.CLOSED;
+            }
+            throw new StompConnectionException("Connection has been returned to the pool");
+        }
+    }
+
+    private static class IdleConnection<T> {
+        private final T connection;
+        private final long lastUsed;
+
+        IdleConnection(T connection, long lastUsed) {
+            this.connection = connection;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Configuration
+    // ----------------------------------------------------------------------------------
+    public ConnectionFactory<T> getTargetConnectionFactory() {
+        return targetConnectionFactory;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public void setTargetConnectionFactory(ConnectionFactory<T> targetConnectionFactory) {
+        this.targetConnectionFactory = checkNotNull(targetConnectionFactory, "targetConnectionFactory cannot be null");
+    }
+
+    public void setMinSize(int minSize) {
+        checkArgument(minSize >= 0, "minSize cannot be negative");
+        this.minSize = minSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        this.maxSize = maxSize;
+    }
+
+    // 0 means the borrower does not wait for a connection to be returned
+    public void setBorrowTimeout(long borrowTimeout) {
+        checkArgument(borrowTimeout >= 0, "borrowTimeout cannot be negative");
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        checkArgument(idleTimeout > 0, "idleTimeout must be positive");
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        checkArgument(evictionInterval > 0, "evictionInterval must be positive");
+        this.evictionInterval = evictionInterval;
+    }
+
+}
@@ -0,0 +1,272 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.StompWireFormatException;
+import org.reficio.cougar.core.StompByteWireFormat;
+import org.reficio.cougar.core.TransportSettings;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.Header;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Blocking frame reader on top of the byte-oriented wire format. The bytes are read from the channel into
+ * a buffer that is reused between the frames; the frame is parsed only if a new end-of-frame marker
+ * has been received, so large payloads are not re-scanned on every chunk read from the channel.
+ * If the streaming threshold is set, the payload of a frame whose content-length reaches it is not buffered;
+ * the frame is returned as soon as its headers are parsed and the payload is read lazily through its stream.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class ByteFrameReader {
+
+    public static final int DEFAULT_BUFFER_SIZE = WireFormatImpl.AVG_PAYLOAD_SIZE;
+    public static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024; // 1MB
+    public static final int STREAMING_DISABLED = TransportSettings.STREAMING_DISABLED;
+
+    private final ReadableByteChannel channel;
+    private final StompByteWireFormat wireFormat;
+    private final Charset charset;
+
+    // always kept in the "read mode" - between position and limit are the bytes not parsed yet
+    private ByteBuffer buffer;
+    // index from which the end-of-frame marker has not been looked for yet
+    private int scanFrom;
+    private int streamingThreshold = STREAMING_DISABLED;
+    // payload of the last frame returned, if streamed - has to be consumed before the next frame is parsed
+    private PayloadInputStream pendingStream;
+
+    ByteFrameReader(ReadableByteChannel channel, StompByteWireFormat wireFormat, Charset charset) {
+        this.channel = checkNotNull(channel, "channel cannot be null");
+        this.wireFormat = checkNotNull(wireFormat, "wireFormat cannot be null");
+        this.charset = checkNotNull(charset, "charset cannot be null");
+        this.buffer = newBuffer(DEFAULT_BUFFER_SIZE);
+    }
+
+    void setStreamingThreshold(int streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    public Frame read() {
+        if (pendingStream != null) {
+            pendingStream.close();
+        }
+        while (true) {
+            if (streamingThreshold > STREAMING_DISABLED && buffer.hasRemaining()) {
+                Frame frame = readStreamedFrame();
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            // the frame is parsed if it may be complete or if the buffer is full - in the latter case
+            // the max length validation of the wire format has to be executed before the buffer grows
+            if (isEndOfFrameReceived() || isFull()) {
+                Frame frame = wireFormat.unmarshal(buffer, charset);
+                if (frame != null) {
+                    scanFrom = buffer.position();
+                    return frame;
+                }
+                scanFrom = buffer.limit();
+            }
+            fill();
+        }
+    }
+
+    // returns null if the headers are not complete yet or the frame is not big enough to be streamed
+    private Frame readStreamedFrame() {
+        int start = buffer.position();
+        Frame head = wireFormat.unmarshalHeaders(buffer, charset);
+        if (head == null) {
+            return null;
+        }
+        Integer contentLength = parseContentLength(head.contentLength());
+        if (contentLength == null || contentLength < streamingThreshold) {
+            buffer.position(start);
+            return null;
+        }
+        Map<String, Header> headers = new HashMap<String, Header>();
+        for (Header header : head.getHeaders()) {
+            headers.put(header.getName(), header);
+        }
+        pendingStream = new PayloadInputStream(contentLength);
+        scanFrom = buffer.position();
+        Frame frame = new Frame(head.getCommand(), headers, pendingStream, contentLength);
+        frame.freeze();
+        return frame;
+    }
+
+    private Integer parseContentLength(String contentLength) {
+        try {
+            return (contentLength != null) ? Integer.valueOf(contentLength) : null;
+        } catch (NumberFormatException ex) {
+            // ignored by the wire format as well
+            return null;
+        }
+    }
+
+    private boolean isEndOfFrameReceived() {
+        int limit = buffer.limit();
+        for (int index = Math.max(scanFrom, buffer.position()); index < limit; index++) {
+            if (buffer.get(index) == WireFormatImpl.END_OF_FRAME) {
+                return true;
+            }
+        }
+        scanFrom = limit;
+        return false;
+    }
+
+    private boolean isFull() {
+        return buffer.position() == 0 && buffer.limit() == buffer.capacity();
+    }
+
+    private void fill() {
+        discardParsedBytes();
+        try {
+            int bytesRead = channel.read(buffer);
+            if (bytesRead < 0) {
+                throw new StompIOException("End of stream has been reached");
+            }
+        } catch (SocketTimeoutException ex) {
+            throw new StompSocketTimeoutException(ex);
+        } catch (IOException ex) {
+            throw new StompIOException("Error during frame receipt", ex);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    // switches the buffer to the "write mode" making room for the bytes to be read
+    private void discardParsedBytes() {
+        int parsed = buffer.position();
+        if (buffer.hasRemaining() == false && buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            // do not keep the memory allocated for a single large frame
+            buffer = newBuffer(DEFAULT_BUFFER_SIZE);
+        }
+        buffer.compact();
+        scanFrom = Math.max(0, scanFrom - parsed);
+        if (buffer.hasRemaining() == false) {
+            ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    // empty buffer in the "read mode"
+    private ByteBuffer newBuffer(int capacity) {
+        ByteBuffer result = ByteBuffer.allocate(capacity);
+        result.flip();
+        return result;
+    }
+
+    // reads the payload through the frame buffer, so at most its capacity is held in memory
+    private class PayloadInputStream extends InputStream {
+
+        private int remaining;
+        private boolean finished;
+
+        PayloadInputStream(int length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            int count = read(single, 0, 1);
+            return (count < 0) ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (finished) {
+                return -1;
+            }
+            if (remaining == 0) {
+                finish();
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            if (buffer.hasRemaining() == false) {
+                fill();
+            }
+            int count = Math.min(Math.min(length, remaining), buffer.remaining());
+            buffer.get(bytes, offset, count);
+            remaining -= count;
+            scanFrom = buffer.position();
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            long skipped = 0;
+            while (skipped < count && remaining > 0) {
+                if (buffer.hasRemaining() == false) {
+                    fill();
+                }
+                int step = (int) Math.min(Math.min(count - skipped, remaining), buffer.remaining());
+                buffer.position(buffer.position() + step);
+                remaining -= step;
+                skipped += step;
+            }
+            scanFrom = buffer.position();
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return finished ? 0 : Math.min(remaining, buffer.remaining());
+        }
+
+        // skips the unread part of the payload
+        @Override
+        public void close() {
+            if (finished == false) {
+                skip(remaining);
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (buffer.hasRemaining() == false) {
+                fill();
+            }
+            finished = true;
+            pendingStream = null;
+            if (buffer.get() != WireFormatImpl.END_OF_FRAME) {
+                throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value TOO SMALL.");
+            }
+            scanFrom = buffer.position();
+        }
+    }
+
+}
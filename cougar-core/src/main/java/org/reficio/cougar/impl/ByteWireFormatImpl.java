@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.StompWireFormatException;
+import org.reficio.cougar.core.FrameBuffer;
+import org.reficio.cougar.core.StompByteWireFormat;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.Header;
+import org.reficio.cougar.domain.HeaderType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Byte-oriented codec - parses the frames directly from a ByteBuffer without the char-at-a-time Reader
+ * and encodes them straight into a reusable FrameBuffer. The names of the well-known headers are encoded
+ * only once. The Reader/Writer based methods are inherited from the WireFormatImpl.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class ByteWireFormatImpl extends WireFormatImpl implements StompByteWireFormat {
+
+    private static final int NOT_FOUND = -1;
+
+    // ASCII names of the well-known headers - the same bytes in all the ASCII compatible charsets
+    private static final Map<String, byte[]> ENCODED_HEADER_NAMES = encodeHeaderNames();
+
+    public ByteWireFormatImpl() {
+        super();
+    }
+
+    private static Map<String, byte[]> encodeHeaderNames() {
+        Map<String, byte[]> names = new HashMap<String, byte[]>();
+        Charset ascii = Charset.forName("US-ASCII");
+        for (HeaderType type : HeaderType.values()) {
+            names.put(type.getName(), type.getName().getBytes(ascii));
+        }
+        return Collections.unmodifiableMap(names);
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Marshalling
+    // ----------------------------------------------------------------------------------
+    @Override
+    public void marshal(Frame frame, FrameBuffer output, Charset charset) {
+        ByteBuffer binaryPayload = frame.binaryPayload();
+        String payload = (binaryPayload == null && frame.hasStreamPayload() == false) ? frame.payload() : null;
+        putHeaders(frame, binaryPayload, payload, output, charset);
+        if (frame.hasStreamPayload()) {
+            putPayloadStream(frame, output);
+        } else if (binaryPayload != null) {
+            output.put(binaryPayload);
+        } else if (payload != null) {
+            output.put(payload, charset);
+        }
+        output.put((byte) END_OF_FRAME);
+        frame.freeze();
+    }
+
+    public void marshalHeaders(Frame frame, FrameBuffer output, Charset charset) {
+        ByteBuffer binaryPayload = frame.binaryPayload();
+        String payload = (binaryPayload == null && frame.hasStreamPayload() == false) ? frame.payload() : null;
+        putHeaders(frame, binaryPayload, payload, output, charset);
+        frame.freeze();
+    }
+
+    private void putHeaders(Frame frame, ByteBuffer binaryPayload, String payload, FrameBuffer output, Charset charset) {
+        boolean asciiCompatible = FrameBuffer.isAsciiCompatible(charset);
+        // command name followed by new line
+        output.put(frame.getCommandName(), charset);
+        output.put((byte) END_OF_LINE);
+        // headers - each followed by new line
+        for (Header header : frame.getHeaders()) {
+            putHeaderName(output, header.getName(), charset, asciiCompatible);
+            output.put((byte) HEADER_DELIMITER);
+            if (HeaderType.CONTENT_LENGTH.getName().equals(header.getName())) {
+                // sent as the number of the encoded bytes, not chars
+                output.putDecimal(payloadLength(frame, binaryPayload, payload, charset));
+            } else {
+                output.put(header.getValue(), charset);
+            }
+            output.put((byte) END_OF_LINE);
+        }
+        // end of headers marker
+        output.put((byte) END_OF_LINE);
+    }
+
+    private void putPayloadStream(Frame frame, FrameBuffer output) {
+        try {
+            output.put(frame.payloadStream(), frame.payloadStreamLength());
+        } catch (IOException e) {
+            throw new StompIOException("Error during payload stream transfer", e);
+        }
+    }
+
+    private int payloadLength(Frame frame, ByteBuffer binaryPayload, String payload, Charset charset) {
+        if (frame.hasStreamPayload()) {
+            return frame.payloadStreamLength();
+        } else if (binaryPayload != null) {
+            return binaryPayload.remaining();
+        }
+        return (payload != null) ? FrameBuffer.encodedLength(payload, charset) : 0;
+    }
+
+    private void putHeaderName(FrameBuffer output, String name, Charset charset, boolean asciiCompatible) {
+        byte[] encoded = asciiCompatible ? ENCODED_HEADER_NAMES.get(name) : null;
+        if (encoded != null) {
+            output.put(encoded);
+        } else {
+            output.put(name, charset);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Unmarshalling
+    // ----------------------------------------------------------------------------------
+    @Override
+    public Frame unmarshal(ByteBuffer input, Charset charset) {
+        FrameHead head = parseHead(input, charset);
+        if (head == null) {
+            return null;
+        }
+        // payload
+        int position = head.payloadStart;
+        Integer contentLength = head.contentLength;
+        int endOfFrame;
+        if (contentLength != null) {
+            endOfFrame = position + contentLength;
+            if (endOfFrame >= input.limit()) {
+                return null;
+            }
+            if (input.get(endOfFrame) != END_OF_FRAME) {
+                throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value TOO SMALL.");
+            }
+        } else {
+            endOfFrame = indexOf(input, position, END_OF_FRAME, MAX_PAYLOAD_LENGTH);
+            if (endOfFrame == NOT_FOUND) {
+                return null;
+            }
+        }
+        // payload bytes are copied out of the input buffer as they are - decoded only if accessed as string
+        ByteBuffer payload = ByteBuffer.wrap(copy(input, position, endOfFrame));
+        input.position(endOfFrame + 1);
+
+        Frame result = new Frame(head.command, head.headers, payload, charset);
+        result.freeze();
+        return result;
+    }
+
+    @Override
+    public Frame unmarshalHeaders(ByteBuffer input, Charset charset) {
+        FrameHead head = parseHead(input, charset);
+        if (head == null) {
+            return null;
+        }
+        input.position(head.payloadStart);
+        return new Frame(head.command, head.headers, "");
+    }
+
+    // parses the command and the headers, returns null if more data is needed
+    private FrameHead parseHead(ByteBuffer input, Charset charset) {
+        int position = skipLeadingEndOfLines(input, input.position());
+        // command line
+        int endOfCommand = indexOf(input, position, END_OF_LINE, MAX_COMMAND_LENGTH);
+        if (endOfCommand == NOT_FOUND) {
+            return null;
+        }
+        Command command = parseCommand(decode(input, position, endOfCommand, charset));
+        position = endOfCommand + 1;
+        // headers - each followed by new line, terminated by an empty line
+        Map<String, Header> headers = new HashMap<String, Header>();
+        while (true) {
+            int endOfHeader = indexOf(input, position, END_OF_LINE, MAX_HEADER_LENGTH);
+            if (endOfHeader == NOT_FOUND) {
+                return null;
+            }
+            int start = position;
+            position = endOfHeader + 1;
+            if (parseHeader(input, start, endOfHeader, charset, headers) == false) {
+                break;
+            }
+        }
+        Integer contentLength = parseContentLength(headers);
+        if (contentLength != null && (contentLength < 0 || contentLength > MAX_PAYLOAD_LENGTH)) {
+            throw new StompWireFormatException(String.format("Content-length header value [%d] out of range", contentLength));
+        }
+        return new FrameHead(command, headers, contentLength, position);
+    }
+
+    Command parseCommand(String commandString) {
+        Command command = Command.getCommand(commandString.trim());
+        if (command == null) {
+            throw new StompWireFormatException(commandString, String.format("Command [%s] not recognized", commandString));
+        }
+        return command;
+    }
+
+    // returns false if the empty line - end of headers marker - has been reached
+    boolean parseHeader(ByteBuffer input, int start, int end, Charset charset, Map<String, Header> headers) {
+        // trim the line the same way String.trim() does
+        while (start < end && isWhitespace(input.get(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(input.get(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return false;
+        }
+        if (headers.size() >= MAX_HEADERS) {
+            throw new StompWireFormatException("Number of headers exceeded");
+        }
+        int delimiter = start;
+        while (delimiter < end && input.get(delimiter) != HEADER_DELIMITER) {
+            delimiter++;
+        }
+        if (delimiter == start || delimiter == end) {
+            throw new StompWireFormatException(decode(input, start, end, charset), "Error during header split");
+        }
+        Header header = Header.createHeader(decode(input, start, delimiter, charset), decode(input, delimiter + 1, end, charset));
+        headers.put(header.getName(), header);
+        return true;
+    }
+
+    private int skipLeadingEndOfLines(ByteBuffer input, int position) {
+        while (position < input.limit() && input.get(position) == END_OF_LINE) {
+            position++;
+        }
+        return position;
+    }
+
+    // returns the index of the marker or NOT_FOUND if more data is needed
+    private int indexOf(ByteBuffer input, int from, char marker, int maxLength) {
+        int limit = input.limit();
+        int scanLimit = (limit - from > maxLength) ? from + maxLength + 1 : limit;
+        for (int index = from; index < scanLimit; index++) {
+            if (input.get(index) == marker) {
+                return index;
+            }
+        }
+        if (scanLimit != limit) {
+            throw new StompWireFormatException("Max length exceeded");
+        }
+        return NOT_FOUND;
+    }
+
+    private boolean isWhitespace(byte value) {
+        return (value & 0xFF) <= ' ';
+    }
+
+    String decode(ByteBuffer input, int from, int to, Charset charset) {
+        if (from == to) {
+            return "";
+        }
+        if (input.hasArray()) {
+            return new String(input.array(), input.arrayOffset() + from, to - from, charset);
+        }
+        return new String(copy(input, from, to), charset);
+    }
+
+    private byte[] copy(ByteBuffer input, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        ByteBuffer source = input.duplicate();
+        source.limit(to).position(from);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private static class FrameHead {
+        private final Command command;
+        private final Map<String, Header> headers;
+        private final Integer contentLength;
+        private final int payloadStart;
+
+        FrameHead(Command command, Map<String, Header> headers, Integer contentLength, int payloadStart) {
+            this.command = command;
+            this.headers = headers;
+            this.contentLength = contentLength;
+            this.payloadStart = payloadStart;
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.core.TransportSettings;
+import org.reficio.cougar.domain.Frame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Transmission handler working on top of the selectable NIO channels in the non-blocking mode. The reads
+ * and the writes wait for the readiness of the channel on the selectors of the connection, which makes
+ * the reception timeout work the same way as the SO_TIMEOUT of the blocking socket. The byte wire format
+ * reads straight from the channel.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+abstract class ChannelTransmissionHandler extends TransmissionHandlerImpl {
+
+    // smaller binary payloads of a batch are cheaper to copy into the output buffer than to gather
+    private static final int GATHERED_PAYLOAD_THRESHOLD = 1024 * 4; // 4KB
+
+    private SelectableChannel inputChannel;
+    private SelectableChannel outputChannel;
+    private Selector readSelector;
+    private Selector writeSelector;
+    private volatile int receptionTimeout;
+
+    ChannelTransmissionHandler(TransportSettings settings) {
+        super(settings);
+    }
+
+    /**
+     * Opens and connects the channels; setChannels() has to be called before it returns.
+     */
+    protected abstract void openChannels(int timeout) throws IOException;
+
+    protected void setChannels(SelectableChannel input, SelectableChannel output) {
+        if ((input instanceof ReadableByteChannel) == false || (output instanceof WritableByteChannel) == false) {
+            throw new IllegalArgumentException("Readable input and writable output channels are required");
+        }
+        this.inputChannel = input;
+        this.outputChannel = output;
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Communication handlers
+    // ----------------------------------------------------------------------------------
+    @Override
+    protected void initializeSocket(int timeout) {
+        try {
+            openChannels(timeout);
+            inputChannel.configureBlocking(false);
+            outputChannel.configureBlocking(false);
+            readSelector = Selector.open();
+            inputChannel.register(readSelector, SelectionKey.OP_READ);
+            writeSelector = Selector.open();
+            outputChannel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeSocket();
+            throw new StompConnectionException("Error during connection initialization", e);
+        }
+    }
+
+    @Override
+    protected void initializeStreams(int timeout) {
+        ReadableByteChannel input = new TimedInputChannel();
+        OutputStream output = new SelectingOutputStream();
+        if (isByteWireFormat()) {
+            initializeByteStreams(input, output);
+        } else {
+            initializeCharStreams(Channels.newInputStream(input), output);
+        }
+    }
+
+    // the large binary payloads of a batch are passed to a single gathering write as they are, in between
+    // the encoded parts of the output buffer
+    @Override
+    public void marshall(Collection<Frame> frames) throws StompException {
+        if (outputBuffer == null || (outputChannel instanceof GatheringByteChannel) == false
+                || hasStreamPayload(frames)) {
+            super.marshall(frames);
+            return;
+        }
+        synchronized (outputLock) {
+            throwScheduledFlushFailure();
+            marshallGathered(frames);
+        }
+    }
+
+    // has to be called under the output lock - the buffer is wrapped once all the frames have been encoded,
+    // as it may grow in the meantime
+    private void marshallGathered(Collection<Frame> frames) {
+        List<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+        List<Integer> payloadOffsets = new ArrayList<Integer>();
+        int mark = outputBuffer.size();
+        long bytesPassed = outputBuffer.getBytesPassedToSink();
+        int pendingFrames = getPendingFrames();
+        try {
+            for (Frame frame : frames) {
+                ByteBuffer payload = frame.binaryPayload();
+                if (payload != null && payload.remaining() >= GATHERED_PAYLOAD_THRESHOLD) {
+                    payloadOffsets.add(writeWithoutPayload(frame));
+                    payloads.add(payload);
+                } else {
+                    write(frame);
+                }
+            }
+        } catch (RuntimeException e) {
+            // the frames of the batch encoded so far lack their payloads, none of them is sent
+            discardPartialFrame(mark, bytesPassed, pendingFrames);
+            throw e;
+        }
+        if (payloads.isEmpty()) {
+            flushOutput();
+            return;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[payloads.size() * 2 + 1];
+        int offset = 0;
+        for (int index = 0; index < payloads.size(); index++) {
+            int payloadOffset = payloadOffsets.get(index);
+            buffers[index * 2] = outputBuffer.wrap(offset, payloadOffset - offset);
+            buffers[index * 2 + 1] = payloads.get(index);
+            offset = payloadOffset;
+        }
+        buffers[buffers.length - 1] = outputBuffer.wrap(offset, outputBuffer.size() - offset);
+        takePendingOutput();
+        try {
+            writeGathered(buffers);
+        } catch (IOException e) {
+            throw new StompIOException("Error during data send", e);
+        } finally {
+            outputBuffer.clear();
+        }
+    }
+
+    private boolean hasStreamPayload(Collection<Frame> frames) {
+        for (Frame frame : frames) {
+            if (frame.hasStreamPayload()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // blocks until all the buffers have been accepted by the channel
+    private void writeGathered(ByteBuffer[] buffers) throws IOException {
+        GatheringByteChannel channel = (GatheringByteChannel) outputChannel;
+        int first = 0;
+        while (true) {
+            while (first < buffers.length && buffers[first].hasRemaining() == false) {
+                first++;
+            }
+            if (first == buffers.length) {
+                return;
+            }
+            if (channel.write(buffers, first, buffers.length - first) == 0) {
+                select(writeSelector, 0);
+            }
+        }
+    }
+
+    @Override
+    public void setReceptionTimeoutInMillis(int timeout) {
+        this.receptionTimeout = timeout;
+    }
+
+    @Override
+    protected void closeSocket() {
+        close(readSelector);
+        close(writeSelector);
+        close(inputChannel);
+        close(outputChannel);
+    }
+
+    private void close(Selector selector) {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // Ignore that
+        }
+    }
+
+    // a thread blocked on the selector is woken up when the connection gets closed by another one
+    private void select(Selector selector, long timeout) throws IOException {
+        try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new AsynchronousCloseException();
+        }
+    }
+
+    private void close(Channel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Ignore that
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Blocking views of the non-blocking channels
+    // ----------------------------------------------------------------------------------
+    // waits for the data at most for the reception timeout, 0 means indefinitely
+    private class TimedInputChannel implements ReadableByteChannel {
+
+        public int read(ByteBuffer destination) throws IOException {
+            if (destination.hasRemaining() == false) {
+                return 0;
+            }
+            int timeout = receptionTimeout;
+            long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+            int bytesRead;
+            while ((bytesRead = ((ReadableByteChannel) inputChannel).read(destination)) == 0) {
+                long wait = 0;
+                if (deadline > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                select(readSelector, wait);
+            }
+            return bytesRead;
+        }
+
+        public boolean isOpen() {
+            return inputChannel.isOpen();
+        }
+
+        public void close() {
+            // the channel is closed by the handler
+        }
+    }
+
+    // blocks until all the bytes have been accepted by the channel
+    private class SelectingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                if (((WritableByteChannel) outputChannel).write(buffer) == 0) {
+                    select(writeSelector, 0);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // the channel is closed by the handler
+        }
+    }
+
+}
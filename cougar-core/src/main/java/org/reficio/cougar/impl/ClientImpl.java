@@ -17,17 +17,27 @@
 
 package org.reficio.cougar.impl;
 
+import org.reficio.cougar.StompConnectionException;
 import org.reficio.cougar.StompException;
 import org.reficio.cougar.connection.Client;
+import org.reficio.cougar.connection.MessageListener;
+import org.reficio.cougar.connection.ReceiptFuture;
+import org.reficio.cougar.core.AckPolicy;
 import org.reficio.cougar.core.FrameDecorator;
 import org.reficio.cougar.core.FramePreprocessor;
+import org.reficio.cougar.core.ReceiptWindow;
+import org.reficio.cougar.core.ReceiptWindowStatistics;
 import org.reficio.cougar.core.StompWireFormat;
 import org.reficio.cougar.domain.Command;
 import org.reficio.cougar.domain.Frame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -44,6 +54,14 @@ class ClientImpl extends ConnectionImpl implements Client {
     private static final transient Logger log = LoggerFactory.getLogger(ClientImpl.class);
 
     protected FramePreprocessor preprocessor;
+    public static final int DEFAULT_RECEIPT_TIMEOUT_IN_MILLIS = 30000;
+
+    private final PendingAcks pendingAcks = new PendingAcks(this);
+    private final FrameDispatcher dispatcher = new FrameDispatcher(this, pendingAcks);
+    // receipt ids are unique per client: random prefix + sequence number
+    private final String receiptIdPrefix = UUID.randomUUID().toString();
+    private final AtomicLong receiptCounter = new AtomicLong();
+    private int receiptTimeout = DEFAULT_RECEIPT_TIMEOUT_IN_MILLIS;
 
     ClientImpl(StompWireFormat wireFormat, FramePreprocessor preprocessor) {
         super(wireFormat);
@@ -54,6 +72,145 @@ class ClientImpl extends ConnectionImpl implements Client {
         super.postConstruct();
     }
 
+    // ----------------------------------------------------------------------------------
+    // Push-based reception
+    // ----------------------------------------------------------------------------------
+    public void setMessageListener(MessageListener listener) {
+        setMessageListener(listener, null);
+    }
+
+    public void setMessageListener(MessageListener listener, Executor executor) {
+        checkNotNull(listener, "listener cannot be null");
+        assertOperational();
+        assertPayloadsNotStreamed();
+        dispatcher.setListener(listener, executor);
+        dispatcher.start(getTransmissionHandler());
+    }
+
+    public void setMessageListener(String subscriptionId, MessageListener listener) {
+        assertOperational();
+        assertPayloadsNotStreamed();
+        dispatcher.setListener(subscriptionId, listener);
+        dispatcher.start(getTransmissionHandler());
+    }
+
+    public Frame receive(String subscriptionId, int timeout) {
+        assertOperational();
+        assertPayloadsNotStreamed();
+        dispatcher.start(getTransmissionHandler());
+        return dispatcher.receive(subscriptionId, timeout);
+    }
+
+    public Frame poll(String subscriptionId) {
+        assertOperational();
+        assertPayloadsNotStreamed();
+        dispatcher.start(getTransmissionHandler());
+        return dispatcher.poll(subscriptionId);
+    }
+
+    void setSubscriptionQueueCapacity(int subscriptionQueueCapacity) {
+        dispatcher.setSubscriptionQueueCapacity(subscriptionQueueCapacity);
+    }
+
+    void setReceiptTimeout(int receiptTimeout) {
+        this.receiptTimeout = receiptTimeout;
+    }
+
+    void setAckPolicy(AckPolicy ackPolicy) {
+        pendingAcks.setAckPolicy(ackPolicy);
+    }
+
+    void setReceiptWindow(ReceiptWindow receiptWindow) {
+        dispatcher.getReceiptTracker().setWindow(receiptWindow);
+    }
+
+    public ReceiptWindowStatistics getReceiptWindowStatistics() {
+        return dispatcher.getReceiptTracker().getWindow();
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Receipt-correlated sending
+    // ----------------------------------------------------------------------------------
+    public ReceiptFuture sendAsync(String destination, FrameDecorator frameDecorator) {
+        checkNotNull(destination, "destination cannot be null");
+        assertOperational();
+        assertPayloadsNotStreamed();
+        Frame frame = new Frame(Command.SEND);
+        frame.destination(destination);
+        frame.receipt(receiptIdPrefix + "-" + receiptCounter.incrementAndGet());
+        preprocessor.decorate(frame, frameDecorator);
+        ReceiptTracker tracker = dispatcher.getReceiptTracker();
+        // holds up the sender if the receipt window is full, registered before the reader is started - so it
+        // is not released in the meantime
+        ReceiptFuture future = tracker.register(frame.receipt(), receiptTimeout);
+        // the receipts are received by the dispatcher
+        dispatcher.start(getTransmissionHandler());
+        try {
+            send(frame);
+        } catch (StompException e) {
+            tracker.remove(frame.receipt());
+            throw e;
+        }
+        return future;
+    }
+
+    public ReceiptFuture sendAsync(String destination) {
+        return sendAsync(destination, emptyDecorator);
+    }
+
+    @Override
+    public Frame receive() throws StompException {
+        assertNotDispatching();
+        return received(super.receive());
+    }
+
+    @Override
+    public Frame receive(int timeout) throws StompException {
+        assertNotDispatching();
+        return received(super.receive(timeout));
+    }
+
+    private Frame received(Frame frame) {
+        if (frame != null) {
+            pendingAcks.received(frame);
+        }
+        return frame;
+    }
+
+    @Override
+    public void close() {
+        if (isConnected()) {
+            beforeClose();
+        }
+        dispatcher.stop();
+        super.close();
+    }
+
+    // sends what the client has deferred - a failure must not prevent the close
+    protected void beforeClose() {
+        try {
+            pendingAcks.send();
+        } catch (StompException e) {
+            log.warn("Pending acknowledgements could not be sent before closing the client", e);
+        }
+    }
+
+    // a streamed payload shares the buffer of the reader, which goes on reading the next frames while
+    // the payload is consumed by the dispatcher - so only fully read payloads can be dispatched
+    private void assertPayloadsNotStreamed() {
+        if (isPayloadStreamingEnabled()) {
+            throw new StompConnectionException(
+                    "Payloads are streamed by the connection - the frames cannot be dispatched by the client");
+        }
+    }
+
+    private void assertNotDispatching() {
+        awaitReaderRelease();
+        if (dispatcher.isRunning()) {
+            throw new StompConnectionException("Frames are dispatched by the client - receive() cannot be used");
+        }
+    }
+
     public void abort(String transactionId, FrameDecorator frameDecorator) {
         checkNotNull(transactionId, "transactionId cannot be null");
         Frame frame = new Frame(Command.ABORT);
@@ -66,9 +223,11 @@ class ClientImpl extends ConnectionImpl implements Client {
         abort(transactionId, emptyDecorator);
     }
 
+    // the decorated acknowledgement is sent at once, after the pending ones
     @Override
     public void ack(String messageId, FrameDecorator frameDecorator) {
         checkNotNull(messageId, "messageId cannot be null");
+        pendingAcks.send();
         Frame frame = new Frame(Command.ACK);
         frame.messageId(messageId);
         preprocessor.decorate(frame, frameDecorator);
@@ -77,7 +236,28 @@ class ClientImpl extends ConnectionImpl implements Client {
 
     @Override
     public void ack(String messageId) {
-        ack(messageId, emptyDecorator);
+        if (pendingAcks.isImmediate()) {
+            ack(messageId, emptyDecorator);
+        } else {
+            assertOperational();
+            pendingAcks.add(checkNotNull(messageId, "messageId cannot be null"));
+        }
+    }
+
+    public void sendPendingAcks() {
+        pendingAcks.send();
+    }
+
+    // the acknowledgements deferred by the ack policy are never a part of a transaction
+    void sendAcks(List<String> messageIds) {
+        List<Frame> frames = new ArrayList<Frame>(messageIds.size());
+        for (String messageId : messageIds) {
+            Frame frame = new Frame(Command.ACK);
+            frame.messageId(messageId);
+            preprocessor.decorate(frame, emptyDecorator);
+            frames.add(frame);
+        }
+        super.send(frames);
     }
 
     public void begin(String transactionId, FrameDecorator frameDecorator) {
@@ -124,6 +304,8 @@ class ClientImpl extends ConnectionImpl implements Client {
             subscriptionId = UUID.randomUUID().toString();
         }
         frame.subscriptionId(subscriptionId);
+        // registered up front - the first message may arrive right after the frame has been sent
+        dispatcher.addSubscription(subscriptionId);
         send(frame);
         return subscriptionId;
     }
@@ -146,8 +328,9 @@ class ClientImpl extends ConnectionImpl implements Client {
         frame.destination(destination);
         frame.subscriptionId(id);
         preprocessor.decorate(frame, frameDecorator);
+        dispatcher.addSubscription(frame.subscriptionId());
         send(frame);
-        return id;
+        return frame.subscriptionId();
     }
 
     @Override
@@ -158,12 +341,29 @@ class ClientImpl extends ConnectionImpl implements Client {
     @Override
     public void unsubscribe(String id, FrameDecorator frameDecorator) {
         checkNotNull(id, "id cannot be null");
+        // the messages of the subscription cannot be acknowledged once it is gone
+        pendingAcks.send();
         Frame frame = new Frame(Command.UNSUBSCRIBE);
         frame.subscriptionId(id);
         preprocessor.decorate(frame, frameDecorator);
+        // the receipt of the last subscription cancelled releases the reader thread, receive() can be used again
+        // once it has arrived - it is not awaited here, see assertNotDispatching()
+        if (frame.receipt() == null) {
+            String receiptId = receiptIdPrefix + "-" + receiptCounter.incrementAndGet();
+            if (dispatcher.requestRelease(id, receiptId)) {
+                frame.receipt(receiptId);
+            }
+        }
+        dispatcher.removeSubscription(id);
+        pendingAcks.removeSubscription(id);
         send(frame);
     }
 
+    // a reader thread being released by unsubscribe() is awaited, at most for the receipt timeout
+    void awaitReaderRelease() {
+        dispatcher.awaitRelease(receiptTimeout);
+    }
+
     protected FrameDecorator emptyDecorator = new FrameDecorator() {
         @Override
         public void decorateFrame(Frame frame) {
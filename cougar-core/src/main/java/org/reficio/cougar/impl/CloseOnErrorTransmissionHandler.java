@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.core.AsyncTransmissionHandler;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.domain.Frame;
+
+import java.util.Collection;
+
+/**
+ * Marks the connection as broken and closes the communication as soon as any operation of the transmission
+ * handler fails - unless it is the reception timeout, after which the connection stays operational.
+ * Delegates straight to the target, so there is no reflection on the path of every frame.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class CloseOnErrorTransmissionHandler implements TransmissionHandler {
+
+    private final ConnectionImpl connection;
+    protected final TransmissionHandler target;
+
+    CloseOnErrorTransmissionHandler(ConnectionImpl connection, TransmissionHandler target) {
+        this.connection = connection;
+        this.target = target;
+    }
+
+    // the asynchronous handlers stay asynchronous
+    static TransmissionHandler wrap(ConnectionImpl connection, TransmissionHandler target) {
+        if (target instanceof AsyncTransmissionHandler) {
+            return new AsyncCloseOnErrorTransmissionHandler(connection, (AsyncTransmissionHandler) target);
+        }
+        return new CloseOnErrorTransmissionHandler(connection, target);
+    }
+
+    public void initializeCommunication(int timeout) {
+        try {
+            target.initializeCommunication(timeout);
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    public void closeCommunication() {
+        try {
+            target.closeCommunication();
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    public void setReceptionTimeoutInMillis(int timeout) {
+        try {
+            target.setReceptionTimeoutInMillis(timeout);
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    public void marshall(Frame frame) {
+        try {
+            target.marshall(frame);
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    public void marshall(Collection<Frame> frames) {
+        try {
+            target.marshall(frames);
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    public void flush() {
+        try {
+            target.flush();
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    public Frame unmarshall() {
+        try {
+            return target.unmarshall();
+        } catch (RuntimeException e) {
+            throw closeOnError(e);
+        } catch (Error e) {
+            throw closeOnError(e);
+        }
+    }
+
+    // returns the failure, so that it can be rethrown by the caller
+    protected <T extends Throwable> T closeOnError(T failure) {
+        if ((failure instanceof StompSocketTimeoutException) == false) {
+            connection.markBroken();
+            target.closeCommunication();
+        }
+        return failure;
+    }
+
+    static class AsyncCloseOnErrorTransmissionHandler extends CloseOnErrorTransmissionHandler
+            implements AsyncTransmissionHandler {
+
+        AsyncCloseOnErrorTransmissionHandler(ConnectionImpl connection, AsyncTransmissionHandler target) {
+            super(connection, target);
+        }
+
+        public void setFrameHandler(FrameHandler frameHandler) {
+            try {
+                ((AsyncTransmissionHandler) target).setFrameHandler(frameHandler);
+            } catch (RuntimeException e) {
+                throw closeOnError(e);
+            } catch (Error e) {
+                throw closeOnError(e);
+            }
+        }
+
+        public void suspendReception() {
+            ((AsyncTransmissionHandler) target).suspendReception();
+        }
+
+        public void resumeReception() {
+            ((AsyncTransmissionHandler) target).resumeReception();
+        }
+    }
+
+}
@@ -4,7 +4,14 @@ import org.reficio.cougar.StompException;
 import org.reficio.cougar.connection.Client;
 import org.reficio.cougar.connection.Connection;
 import org.reficio.cougar.connection.TransactionalClient;
+import org.reficio.cougar.core.AckPolicy;
+import org.reficio.cougar.core.FlushPolicy;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.ReceiptWindow;
 import org.reficio.cougar.core.StompResource;
+import org.reficio.cougar.core.StompWireFormat;
+import org.reficio.cougar.core.TransactionBatchPolicy;
+import org.reficio.cougar.core.TransportFactory;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -25,6 +32,18 @@ public class ConnectionBuilder {
         Builder<T> password(String password);
         Builder<T> encoding(String encoding);
         Builder<T> timeout(Integer timeout);
+        Builder<T> wireFormat(StompWireFormat wireFormat);
+        Builder<T> payloadStreamingThreshold(Integer payloadStreamingThreshold);
+        Builder<T> flushPolicy(FlushPolicy flushPolicy);
+        Builder<T> transport(TransportFactory transportFactory);
+        Builder<T> frameHandler(FrameHandler frameHandler);
+        Builder<T> subscriptionQueueCapacity(Integer subscriptionQueueCapacity);
+        Builder<T> receiptTimeout(Integer receiptTimeout);
+        Builder<T> receiptWindow(ReceiptWindow receiptWindow);
+        Builder<T> ackPolicy(AckPolicy ackPolicy);
+        Builder<T> transactionBatchPolicy(TransactionBatchPolicy transactionBatchPolicy);
+        Builder<T> transactionBufferSize(Integer transactionBufferSize);
+        Builder<T> threadSafe(Boolean threadSafe);
         T build();
         T buildAndConnect();
     }
@@ -36,6 +55,18 @@ public class ConnectionBuilder {
         private Integer timeout = DEFAULT_TIMEOUT_IN_MILLIS;
         private String username;
         private String password;
+        private StompWireFormat wireFormat;
+        private Integer payloadStreamingThreshold;
+        private FlushPolicy flushPolicy;
+        private TransportFactory transportFactory;
+        private FrameHandler frameHandler;
+        private Integer subscriptionQueueCapacity;
+        private Integer receiptTimeout;
+        private ReceiptWindow receiptWindow;
+        private AckPolicy ackPolicy;
+        private TransactionBatchPolicy transactionBatchPolicy;
+        private Integer transactionBufferSize;
+        private Boolean threadSafe;
 
         private static final String DEFAULT_ENCODING = "UTF-8";
         private static final String DEFAULT_HOSTNAME = "localhost";
@@ -77,6 +108,86 @@ public class ConnectionBuilder {
             return this;
         }
 
+        public Builder<T> wireFormat(StompWireFormat wireFormat) {
+            this.wireFormat = checkNotNull(wireFormat, "wireFormat cannot be null");
+            return this;
+        }
+
+        // received payloads of at least that many bytes are exposed as streams - requires the byte wire format
+        public Builder<T> payloadStreamingThreshold(Integer payloadStreamingThreshold) {
+            checkArgument(payloadStreamingThreshold > 0, "payloadStreamingThreshold must be positive");
+            this.payloadStreamingThreshold = payloadStreamingThreshold;
+            return this;
+        }
+
+        public Builder<T> flushPolicy(FlushPolicy flushPolicy) {
+            this.flushPolicy = checkNotNull(flushPolicy, "flushPolicy cannot be null");
+            return this;
+        }
+
+        // see Transports for the available transports, the blocking socket is used by default
+        public Builder<T> transport(TransportFactory transportFactory) {
+            this.transportFactory = checkNotNull(transportFactory, "transportFactory cannot be null");
+            return this;
+        }
+
+        // received frames are pushed to the handler instead of being returned by receive() - requires
+        // a transport able to do so, e.g. Transports.eventLoop()
+        public Builder<T> frameHandler(FrameHandler frameHandler) {
+            this.frameHandler = checkNotNull(frameHandler, "frameHandler cannot be null");
+            return this;
+        }
+
+        // maximum number of the messages queued per subscription of a client, a subscription overflowing its
+        // queue is failed with a StompFlowControlException
+        public Builder<T> subscriptionQueueCapacity(Integer subscriptionQueueCapacity) {
+            checkArgument(subscriptionQueueCapacity > 0, "subscriptionQueueCapacity must be positive");
+            this.subscriptionQueueCapacity = subscriptionQueueCapacity;
+            return this;
+        }
+
+        // time after which the futures of the asynchronous sends of a client fail if no receipt has arrived
+        public Builder<T> receiptTimeout(Integer receiptTimeout) {
+            checkArgument(receiptTimeout > 0, "receiptTimeout must be positive");
+            this.receiptTimeout = receiptTimeout;
+            return this;
+        }
+
+        // maximum number of the asynchronous sends of a client awaiting their receipts, unbounded by default
+        public Builder<T> receiptWindow(ReceiptWindow receiptWindow) {
+            this.receiptWindow = checkNotNull(receiptWindow, "receiptWindow cannot be null");
+            return this;
+        }
+
+        // when the ack(messageId) of a client sends the acknowledgements, immediately by default
+        public Builder<T> ackPolicy(AckPolicy ackPolicy) {
+            this.ackPolicy = checkNotNull(ackPolicy, "ackPolicy cannot be null");
+            return this;
+        }
+
+        // whether the messages sent by a transactional client outside of a transaction are grouped into
+        // automatic transactions, disabled by default
+        public Builder<T> transactionBatchPolicy(TransactionBatchPolicy transactionBatchPolicy) {
+            this.transactionBatchPolicy = checkNotNull(transactionBatchPolicy, "transactionBatchPolicy cannot be null");
+            return this;
+        }
+
+        // the messages and the acknowledgements of a transaction begun on a transactional client are held back
+        // and written together with its BEGIN and COMMIT frames; once their approximate size in bytes reaches
+        // the given one they are written earlier - not buffered by default
+        public Builder<T> transactionBufferSize(Integer transactionBufferSize) {
+            checkArgument(transactionBufferSize > 0, "transactionBufferSize must be positive");
+            this.transactionBufferSize = transactionBufferSize;
+            return this;
+        }
+
+        // the frames may be sent by many threads at once - they are queued and written by a single writer thread
+        // of the connection, in batches; the immediate flush policy is replaced by the flush on the drained queue
+        public Builder<T> threadSafe(Boolean threadSafe) {
+            this.threadSafe = checkNotNull(threadSafe, "threadSafe cannot be null");
+            return this;
+        }
+
         public abstract T instantiate();
 
         public T build() {
@@ -92,6 +203,9 @@ public class ConnectionBuilder {
         }
 
         private void populateFields(T resource) {
+            // a streamed payload is read by the consumer, not by the handler the frames are pushed to
+            checkArgument(payloadStreamingThreshold == null || frameHandler == null,
+                    "payloadStreamingThreshold cannot be used together with a frameHandler");
             StompResourceImpl impl = (StompResourceImpl) resource;
             impl.hostname(hostname);
             impl.port(port);
@@ -103,6 +217,42 @@ public class ConnectionBuilder {
             if (password != null) {
                 impl.password(password);
             }
+            if (wireFormat != null) {
+                ((ConnectionImpl) impl).setWireFormat(wireFormat);
+            }
+            if (payloadStreamingThreshold != null) {
+                ((ConnectionImpl) impl).setPayloadStreamingThreshold(payloadStreamingThreshold);
+            }
+            if (flushPolicy != null) {
+                ((ConnectionImpl) impl).setFlushPolicy(flushPolicy);
+            }
+            if (transportFactory != null) {
+                ((ConnectionImpl) impl).setTransportFactory(transportFactory);
+            }
+            if (frameHandler != null) {
+                ((ConnectionImpl) impl).setFrameHandler(frameHandler);
+            }
+            if (threadSafe != null) {
+                ((ConnectionImpl) impl).setThreadSafe(threadSafe);
+            }
+            if (subscriptionQueueCapacity != null && impl instanceof ClientImpl) {
+                ((ClientImpl) impl).setSubscriptionQueueCapacity(subscriptionQueueCapacity);
+            }
+            if (receiptTimeout != null && impl instanceof ClientImpl) {
+                ((ClientImpl) impl).setReceiptTimeout(receiptTimeout);
+            }
+            if (receiptWindow != null && impl instanceof ClientImpl) {
+                ((ClientImpl) impl).setReceiptWindow(receiptWindow);
+            }
+            if (ackPolicy != null && impl instanceof ClientImpl) {
+                ((ClientImpl) impl).setAckPolicy(ackPolicy);
+            }
+            if (transactionBatchPolicy != null && impl instanceof TransactionalClientImpl) {
+                ((TransactionalClientImpl) impl).setTransactionBatchPolicy(transactionBatchPolicy);
+            }
+            if (transactionBufferSize != null && impl instanceof TransactionalClientImpl) {
+                ((TransactionalClientImpl) impl).setTransactionBufferSize(transactionBufferSize);
+            }
             impl.postConstruct();
         }
 
@@ -26,13 +26,9 @@ import org.reficio.cougar.domain.Frame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.reficio.cougar.core.StompResourceState.*;
 
@@ -49,8 +45,13 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
     private static final transient Logger log = LoggerFactory.getLogger(ConnectionImpl.class);
 
     private TransmissionHandler transmissionHandler;
-    private StompResourceState state;
-    private final StompWireFormat wireFormat;
+    private volatile StompResourceState state;
+    private StompWireFormat wireFormat;
+    private int payloadStreamingThreshold = TransportSettings.STREAMING_DISABLED;
+    private FlushPolicy flushPolicy = FlushPolicy.immediate();
+    private TransportFactory transportFactory = Transports.socket();
+    private FrameHandler frameHandler;
+    private boolean threadSafe;
 
     public static final int INDEFINITE_RECEPTION_TIMEOUT = 0;
     public static final int NOWAIT_RECEPTION_TIMEOUT = 100;
@@ -65,14 +66,58 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
     }
 
     public void postConstruct() {
-        this.transmissionHandler = CloseTransmissionOnErrorInvocationHandler.getHandler(
-                new TransmissionHandlerImpl(wireFormat, hostname, port, encoding));
+        FlushPolicy transportFlushPolicy = flushPolicy;
+        if (threadSafe && flushPolicy == FlushPolicy.immediate()) {
+            // the writer thread flushes once the queued frames have been drained
+            transportFlushPolicy = FlushPolicy.batched(Integer.MAX_VALUE, FlushPolicy.DEFAULT_MAX_PENDING_BYTES);
+        }
+        TransportSettings settings = new TransportSettings(wireFormat, hostname, port, encoding,
+                transportFlushPolicy, payloadStreamingThreshold);
+        TransmissionHandler handler = transportFactory.createTransmissionHandler(settings);
+        checkArgument(frameHandler == null || handler instanceof AsyncTransmissionHandler,
+                "The transport does not support the frame handlers");
+        if (threadSafe) {
+            handler = QueuedTransmissionHandler.wrap(handler);
+        }
+        this.transmissionHandler = CloseOnErrorTransmissionHandler.wrap(this, handler);
     }
 
     void setTransmissionHandler(TransmissionHandler transmissionHandler) {
         this.transmissionHandler = transmissionHandler;
     }
 
+    protected TransmissionHandler getTransmissionHandler() {
+        return transmissionHandler;
+    }
+
+    void setWireFormat(StompWireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    void setPayloadStreamingThreshold(int payloadStreamingThreshold) {
+        this.payloadStreamingThreshold = payloadStreamingThreshold;
+    }
+
+    boolean isPayloadStreamingEnabled() {
+        return payloadStreamingThreshold > TransportSettings.STREAMING_DISABLED;
+    }
+
+    void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    void setTransportFactory(TransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    void setFrameHandler(FrameHandler frameHandler) {
+        this.frameHandler = frameHandler;
+    }
+
+    void setThreadSafe(boolean threadSafe) {
+        this.threadSafe = threadSafe;
+    }
+
     // ----------------------------------------------------------------------------------
     // StompResource methods
     // ----------------------------------------------------------------------------------
@@ -84,10 +129,21 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
         setState(CONNECTING);
         doConnect();
         setState(CONNECTED);
+        // the handshake has been received through unmarshall(), all the other frames go to the handler
+        if (frameHandler != null) {
+            ((AsyncTransmissionHandler) transmissionHandler).setFrameHandler(frameHandler);
+        }
     }
 
     @Override
     public void close() {
+        if (getState().equals(BROKEN)) {
+            // there is no one to say goodbye to, the resources are released quietly
+            log.info(String.format("Closing broken connection=[%s]", this));
+            transmissionHandler.closeCommunication();
+            setState(CLOSED);
+            return;
+        }
         assertOperational();
         log.info(String.format("Closing connection=[%s]", this));
         setState(CLOSING);
@@ -110,6 +166,7 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
         frame.passcode(password);
         frame.encoding(encoding);
         transmissionHandler.marshall(frame);
+        transmissionHandler.flush();
 
         try {
             Frame serverHandshake = transmissionHandler.unmarshall();
@@ -175,13 +232,20 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
     public Frame receive() throws StompException {
         transmissionHandler.setReceptionTimeoutInMillis(INDEFINITE_RECEPTION_TIMEOUT);
         assertOperational();
-        return transmissionHandler.unmarshall();
+        return flushAndUnmarshall();
     }
 
     @Override
     public Frame receive(int timeout) throws StompException {
         transmissionHandler.setReceptionTimeoutInMillis(timeout);
         assertOperational();
+        return flushAndUnmarshall();
+    }
+
+    // the frames awaited may be responses to the pending ones - the flush is not done by the transmission
+    // handler itself, so a reader thread never waits for the writers
+    private Frame flushAndUnmarshall() {
+        transmissionHandler.flush();
         return transmissionHandler.unmarshall();
     }
 
@@ -196,6 +260,18 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
         transmissionHandler.marshall(checkNotNull(frame));
     }
 
+    @Override
+    public void send(Collection<Frame> frames) throws StompException {
+        assertOperational();
+        transmissionHandler.marshall(checkNotNull(frames));
+    }
+
+    @Override
+    public void flush() throws StompException {
+        assertOperational();
+        transmissionHandler.flush();
+    }
+
     // ----------------------------------------------------------------------------------
     // Helper methods -> connection state verification
     // ----------------------------------------------------------------------------------
@@ -215,7 +291,8 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
     // ----------------------------------------------------------------------------------
     // Client state mutators
     // ----------------------------------------------------------------------------------
-    protected StompResourceState getState() {
+    @Override
+    public StompResourceState getState() {
         return this.state;
     }
 
@@ -224,33 +301,11 @@ class ConnectionImpl extends StompResourceImpl implements Connection {
         this.state = state;
     }
 
-    private static class CloseTransmissionOnErrorInvocationHandler implements InvocationHandler {
-
-        private final TransmissionHandler target;
-
-        public CloseTransmissionOnErrorInvocationHandler(TransmissionHandler target) {
-            this.target = target;
-        }
-
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            try {
-                return method.invoke(this.target, args);
-            } catch (InvocationTargetException ex) {
-                Throwable targetException = ex.getTargetException();
-                if ((targetException instanceof StompSocketTimeoutException) == false) {
-                    target.closeCommunication();
-                }
-                throw targetException;
-            }
-        }
-
-        public static TransmissionHandler getHandler(TransmissionHandler target) {
-            List<Class> classes = new ArrayList<Class>();
-            classes.add(TransmissionHandler.class);
-            return (TransmissionHandler) Proxy.newProxyInstance(
-                    TransmissionHandler.class.getClassLoader(),
-                    classes.toArray(new Class[classes.size()]),
-                    new CloseTransmissionOnErrorInvocationHandler(target));
+    // invoked on a transmission error - the other states are left untouched, as the error may well be
+    // the effect of the connection being closed, or not yet established
+    void markBroken() {
+        if (state.equals(CONNECTED)) {
+            setState(BROKEN);
         }
     }
 
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread serving the channels registered on its selector. Everything related to the selection keys
+ * is done by this thread - other threads pass their work to it as tasks.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class EventLoop implements Runnable {
+
+    private static final transient Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+    // attachment of the selection keys, invoked by the event loop thread only
+    interface Listener {
+        void channelRegistered(SelectionKey key);
+
+        void channelReadable();
+
+        void channelWritable();
+
+        void channelClosed(StompException cause);
+    }
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    // shared by all the channels of the loop - their bytes are consumed before the next channel is read
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    EventLoop(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new StompIOException("Error during event loop initialization", e);
+        }
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // may be used by the event loop thread only
+    ByteBuffer getReadBuffer() {
+        readBuffer.clear();
+        return readBuffer;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (inEventLoop() == false) {
+            selector.wakeup();
+        }
+    }
+
+    // the channel is registered by the event loop thread, before any task submitted afterwards is run
+    void register(final SelectableChannel channel, final int operations, final Listener listener) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    listener.channelRegistered(channel.register(selector, operations, listener));
+                } catch (ClosedChannelException e) {
+                    listener.channelClosed(new StompIOException("Channel has been closed before registration", e));
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Event loop
+    // ----------------------------------------------------------------------------------
+    public void run() {
+        try {
+            while (running) {
+                // the tasks submitted by the event loop thread itself do not wake up the selector
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                processSelectedKeys();
+            }
+        } catch (IOException e) {
+            log.error("Event loop has failed", e);
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Event loop task has failed", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Listener listener = (Listener) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    listener.channelReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    listener.channelWritable();
+                }
+            } catch (CancelledKeyException e) {
+                // channel closed in the meantime
+            } catch (RuntimeException e) {
+                log.error("Event loop listener has failed", e);
+            }
+        }
+    }
+
+    private void closeChannels() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((Listener) key.attachment()).channelClosed(new StompIOException("Event loop has been shut down"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore that
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pool of the event loop threads shared by the connections using the event-loop transport. Every connection
+ * is served by a single thread of the pool, assigned in a round-robin fashion, so the number of threads does
+ * not depend on the number of connections. The threads are daemons; shutdown() breaks all the connections.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class EventLoopGroup {
+
+    private static final AtomicInteger groupCounter = new AtomicInteger();
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public EventLoopGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public EventLoopGroup(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        int group = groupCounter.incrementAndGet();
+        this.loops = new EventLoop[threads];
+        for (int index = 0; index < threads; index++) {
+            loops[index] = new EventLoop(String.format("cougar-event-loop-%d-%d", group, index + 1));
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    EventLoop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,466 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.core.AsyncTransmissionHandler;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.StompFrameDecoder;
+import org.reficio.cougar.core.TransportSettings;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Transport served by a thread of an EventLoopGroup. The frames are decoded incrementally by the event loop
+ * as the bytes arrive and either pushed to the frame handler of the connection or queued for unmarshall().
+ * The frames sent are written straight to the channel; the bytes it does not accept are written by the event
+ * loop once the channel becomes writable, so neither the caller nor the event loop ever waits for the peer.
+ * Requires the byte wire format; the payloads are never streamed.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class EventLoopTransmissionHandler extends TransmissionHandlerImpl
+        implements AsyncTransmissionHandler, EventLoop.Listener {
+
+    private static final transient Logger log = LoggerFactory.getLogger(EventLoopTransmissionHandler.class);
+
+    // queued once the connection has been broken, compared by identity
+    private static final Frame END_OF_STREAM = new Frame(Command.ERROR);
+
+    static final int DEFAULT_MAX_PENDING_WRITE_BYTES = 1024 * 1024 * 4; // 4MB
+    static final int DEFAULT_CLOSE_TIMEOUT_IN_MILLIS = 5000;
+
+    private final EventLoop loop;
+    private final BlockingQueue<Frame> receivedFrames = new LinkedBlockingQueue<Frame>();
+    // bytes not accepted by the channel yet, guarded by itself
+    private final Queue<ByteBuffer> pendingWrites = new LinkedList<ByteBuffer>();
+    private long pendingWriteBytes;
+    // high-water mark - the writers wait until the event loop has written the pending bytes below it
+    private int maxPendingWriteBytes = DEFAULT_MAX_PENDING_WRITE_BYTES;
+    // how long the close waits for the pending bytes to be written before the channel is closed anyway
+    private int closeTimeoutInMillis = DEFAULT_CLOSE_TIMEOUT_IN_MILLIS;
+    private SocketChannel channel;
+    private StompFrameDecoder decoder;
+    private volatile int receptionTimeout;
+    private volatile boolean frameHandlerSet;
+    private volatile boolean closing;
+    private volatile boolean closeRequested;
+    private volatile StompException failure;
+
+    // accessed by the event loop thread only
+    private SelectionKey key;
+    private FrameHandler frameHandler;
+    private boolean receptionSuspended;
+
+    EventLoopTransmissionHandler(TransportSettings settings, EventLoop loop) {
+        super(settings);
+        checkArgument(isByteWireFormat(), "The event-loop transport requires the byte wire format");
+        this.loop = checkNotNull(loop, "loop cannot be null");
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Communication handlers
+    // ----------------------------------------------------------------------------------
+    @Override
+    protected void initializeSocket(int timeout) {
+        try {
+            channel = SocketChannel.open();
+            channel.socket().connect(new InetSocketAddress(hostname, port), timeout);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            closeChannel();
+            throw new StompConnectionException("Error during connection initialization", e);
+        }
+    }
+
+    @Override
+    protected void initializeStreams(int timeout) {
+        initializeByteStreams(channel, new ChannelOutputStream());
+        decoder = WireFormats.decoder(getCharset());
+        loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void setReceptionTimeoutInMillis(int timeout) {
+        this.receptionTimeout = timeout;
+    }
+
+    void setMaxPendingWriteBytes(int maxPendingWriteBytes) {
+        checkArgument(maxPendingWriteBytes > 0, "maxPendingWriteBytes must be positive");
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    void setCloseTimeoutInMillis(int closeTimeoutInMillis) {
+        checkArgument(closeTimeoutInMillis >= 0, "closeTimeoutInMillis must not be negative");
+        this.closeTimeoutInMillis = closeTimeoutInMillis;
+    }
+
+    boolean isChannelOpen() {
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void closeCommunication() {
+        requestClose();
+        super.closeCommunication();
+    }
+
+    // a writer waiting for the pending bytes stops waiting, so that the close does not wait for the peer
+    private void requestClose() {
+        closeRequested = true;
+        synchronized (pendingWrites) {
+            pendingWrites.notifyAll();
+        }
+    }
+
+    // the channel is closed by the event loop once the pending bytes have been written - if the peer does not
+    // read them within the close timeout, they are dropped and the channel is closed anyway; the event loop
+    // thread cannot wait for them, so it drops them at once
+    @Override
+    protected void closeSocket() {
+        if (channel == null) {
+            return;
+        }
+        closing = true;
+        loop.execute(new Runnable() {
+            public void run() {
+                synchronized (pendingWrites) {
+                    if (pendingWrites.isEmpty()) {
+                        channelClosed(new StompConnectionException("Connection has been closed"));
+                    }
+                }
+            }
+        });
+        if (loop.inEventLoop() == false) {
+            awaitPendingWritesOnClose();
+        }
+        loop.execute(new Runnable() {
+            public void run() {
+                synchronized (pendingWrites) {
+                    if (failure == null) {
+                        log.warn(String.format("[%d] pending bytes dropped, peer does not read", pendingWriteBytes));
+                        channelClosed(new StompConnectionException("Connection has been closed"));
+                    }
+                }
+            }
+        });
+    }
+
+    private void awaitPendingWritesOnClose() {
+        long deadline = System.currentTimeMillis() + closeTimeoutInMillis;
+        synchronized (pendingWrites) {
+            try {
+                long remaining;
+                while (pendingWrites.isEmpty() == false && failure == null
+                        && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    pendingWrites.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Ignore that
+        }
+    }
+
+    @Override
+    public void marshall(Frame frame) {
+        // the broker closes the socket after DISCONNECT, which must not be reported as an error
+        if (Command.DISCONNECT.equals(frame.getCommand())) {
+            closing = true;
+            requestClose();
+        }
+        super.marshall(frame);
+    }
+
+    @Override
+    public void marshall(Collection<Frame> frames) {
+        for (Frame frame : frames) {
+            if (Command.DISCONNECT.equals(frame.getCommand())) {
+                closing = true;
+                requestClose();
+            }
+        }
+        super.marshall(frames);
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Frame reception
+    // ----------------------------------------------------------------------------------
+    @Override
+    public Frame unmarshall() {
+        if (frameHandlerSet) {
+            throw new StompConnectionException("Frames of the connection are delivered to the frame handler");
+        }
+        Frame frame;
+        try {
+            int timeout = receptionTimeout;
+            frame = (timeout > 0) ? receivedFrames.poll(timeout, TimeUnit.MILLISECONDS) : receivedFrames.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompIOException("Interrupted during frame receipt", e);
+        }
+        if (frame == null) {
+            throw new StompSocketTimeoutException(new SocketTimeoutException("Read timed out"));
+        }
+        if (frame == END_OF_STREAM) {
+            // every subsequent call has to fail as well
+            receivedFrames.add(END_OF_STREAM);
+            throw failure;
+        }
+        return frame;
+    }
+
+    public void setFrameHandler(final FrameHandler handler) {
+        checkNotNull(handler, "handler cannot be null");
+        frameHandlerSet = true;
+        // the frames already queued are delivered by the event loop as well, before any new one
+        loop.execute(new Runnable() {
+            public void run() {
+                frameHandler = handler;
+                Frame frame;
+                while ((frame = receivedFrames.poll()) != null) {
+                    if (frame == END_OF_STREAM) {
+                        notifyError();
+                    } else {
+                        deliver(frame);
+                    }
+                }
+            }
+        });
+    }
+
+    public void suspendReception() {
+        setReceptionSuspended(true);
+    }
+
+    public void resumeReception() {
+        setReceptionSuspended(false);
+    }
+
+    private void setReceptionSuspended(final boolean suspended) {
+        loop.execute(new Runnable() {
+            public void run() {
+                receptionSuspended = suspended;
+                if (key != null && key.isValid()) {
+                    key.interestOps(readInterest() | (key.interestOps() & SelectionKey.OP_WRITE));
+                }
+            }
+        });
+    }
+
+    // no bytes are read while the reception is suspended, the socket buffers fill up and hold up the peer
+    private int readInterest() {
+        return receptionSuspended ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void deliver(Frame frame) {
+        if (frameHandler == null) {
+            receivedFrames.add(frame);
+            return;
+        }
+        try {
+            frameHandler.handleFrame(frame);
+        } catch (RuntimeException e) {
+            log.error("Frame handler has failed", e);
+        }
+    }
+
+    private void notifyError() {
+        if (closing) {
+            return;
+        }
+        try {
+            frameHandler.handleError(failure);
+        } catch (RuntimeException e) {
+            log.error("Frame handler has failed", e);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Event loop callbacks
+    // ----------------------------------------------------------------------------------
+    public void channelRegistered(SelectionKey key) {
+        this.key = key;
+        if (receptionSuspended) {
+            key.interestOps(readInterest());
+        }
+    }
+
+    // a single read per readiness, so that one busy connection does not hold up the others of the loop
+    public void channelReadable() {
+        try {
+            ByteBuffer buffer = loop.getReadBuffer();
+            int bytesRead = channel.read(buffer);
+            if (bytesRead < 0) {
+                throw new StompIOException("End of stream has been reached");
+            }
+            buffer.flip();
+            for (Frame frame : decoder.decode(buffer)) {
+                deliver(frame);
+            }
+        } catch (IOException e) {
+            channelClosed(new StompIOException("Error during frame receipt", e));
+        } catch (StompException e) {
+            channelClosed(e);
+        }
+    }
+
+    public void channelWritable() {
+        synchronized (pendingWrites) {
+            try {
+                while (pendingWrites.isEmpty() == false) {
+                    ByteBuffer buffer = pendingWrites.peek();
+                    pendingWriteBytes -= channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    pendingWrites.remove();
+                }
+            } catch (IOException e) {
+                channelClosed(new StompIOException("Error during data send", e));
+                return;
+            } finally {
+                pendingWrites.notifyAll();
+            }
+            if (closing) {
+                channelClosed(new StompConnectionException("Connection has been closed"));
+            } else {
+                key.interestOps(readInterest());
+            }
+        }
+    }
+
+    public void channelClosed(StompException cause) {
+        if (failure != null) {
+            return;
+        }
+        failure = cause;
+        closeChannel();
+        // the writers waiting for the pending bytes to be written fail
+        synchronized (pendingWrites) {
+            pendingWrites.notifyAll();
+        }
+        if (frameHandler != null) {
+            notifyError();
+        } else {
+            receivedFrames.add(END_OF_STREAM);
+        }
+    }
+
+    // writes what the channel accepts, the rest is handed over to the event loop; once the bytes pending
+    // exceed the high-water mark the writer waits for them, unless the connection is being closed -
+    // the event loop itself cannot wait, so it fails
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (failure != null) {
+                throw new IOException("Connection has been broken", failure);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            synchronized (pendingWrites) {
+                boolean writable = pendingWrites.isEmpty();
+                if (writable) {
+                    channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                    copy.put(buffer);
+                    copy.flip();
+                    pendingWrites.add(copy);
+                    pendingWriteBytes += copy.remaining();
+                    if (writable) {
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                if (key != null && key.isValid()) {
+                                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                                }
+                            }
+                        });
+                    }
+                }
+                awaitPendingWrites();
+            }
+        }
+
+        // has to be called with the monitor of the pending writes held
+        private void awaitPendingWrites() throws IOException {
+            if (pendingWriteBytes <= maxPendingWriteBytes || closeRequested) {
+                return;
+            }
+            if (loop.inEventLoop()) {
+                throw new IOException(String.format("[%d] bytes pending, peer does not read", pendingWriteBytes));
+            }
+            try {
+                while (pendingWriteBytes > maxPendingWriteBytes && failure == null && closeRequested == false) {
+                    pendingWrites.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the pending writes");
+            }
+            if (failure != null) {
+                throw new IOException("Connection has been broken", failure);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the channel is closed by the handler
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer handed over to the char-based wire format - its flush() is ignored, so that the transmission handler
+ * decides when the frames are flushed according to the flush policy. Counts the chars written since the last
+ * real flush.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class FlushDeferringWriter extends FilterWriter {
+
+    private int pendingChars;
+
+    FlushDeferringWriter(Writer target) {
+        super(target);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        out.write(c);
+        pendingChars++;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        out.write(chars, offset, length);
+        pendingChars += length;
+    }
+
+    @Override
+    public void write(String value, int offset, int length) throws IOException {
+        out.write(value, offset, length);
+        pendingChars += length;
+    }
+
+    @Override
+    public void flush() {
+        // deferred - see flushTarget()
+    }
+
+    public void flushTarget() throws IOException {
+        pendingChars = 0;
+        out.flush();
+    }
+
+    public int getPendingChars() {
+        return pendingChars;
+    }
+
+    public boolean isWrapping(Writer writer) {
+        return out == writer;
+    }
+
+}
@@ -0,0 +1,264 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompWireFormatException;
+import org.reficio.cougar.core.FrameBuffer;
+import org.reficio.cougar.core.StompFrameDecoder;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.Header;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.reficio.cougar.impl.WireFormatImpl.*;
+
+/**
+ * State machine decoding the frames from the chunks of bytes. Every byte is examined once, no matter how many
+ * chunks a frame is split into; the lines completely contained in a chunk are parsed straight from it.
+ * The command and the headers are parsed by the ByteWireFormatImpl, so the limits and the error handling
+ * are the same.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class FrameDecoderImpl implements StompFrameDecoder {
+
+    private enum State {
+        FRAME_START, COMMAND, HEADERS, PAYLOAD, DELIMITED_PAYLOAD, END_OF_FRAME
+    }
+
+    private static final int LINE_BUFFER_SIZE = 256;
+
+    private final ByteWireFormatImpl wireFormat;
+    private final Charset charset;
+
+    private State state = State.FRAME_START;
+    // part of the command or header line received in the previous chunks
+    private final FrameBuffer line = new FrameBuffer(LINE_BUFFER_SIZE);
+    // payload of the frame without the content-length, received in the previous chunks
+    private final FrameBuffer delimitedPayload = new FrameBuffer();
+
+    private Command command;
+    private Map<String, Header> headers;
+    private byte[] payload;
+    private int payloadLength;
+
+    FrameDecoderImpl(ByteWireFormatImpl wireFormat, Charset charset) {
+        this.wireFormat = checkNotNull(wireFormat, "wireFormat cannot be null");
+        this.charset = checkNotNull(charset, "charset cannot be null");
+    }
+
+    public List<Frame> decode(ByteBuffer input) {
+        List<Frame> frames = null;
+        try {
+            while (input.hasRemaining()) {
+                Frame frame = decodeNext(input);
+                if (frame != null) {
+                    if (frames == null) {
+                        frames = new ArrayList<Frame>(2);
+                    }
+                    frames.add(frame);
+                }
+            }
+        } catch (RuntimeException e) {
+            reset();
+            throw e;
+        }
+        return (frames != null) ? frames : Collections.<Frame>emptyList();
+    }
+
+    public boolean isInsideFrame() {
+        return state != State.FRAME_START;
+    }
+
+    public void reset() {
+        state = State.FRAME_START;
+        line.clear();
+        delimitedPayload.clear();
+        command = null;
+        headers = null;
+        payload = null;
+        payloadLength = 0;
+    }
+
+    // ----------------------------------------------------------------------------------
+    // States
+    // ----------------------------------------------------------------------------------
+    // consumes the bytes of the current state, returns the frame once it is complete
+    private Frame decodeNext(ByteBuffer input) {
+        switch (state) {
+            case FRAME_START:
+                skipLeadingEndOfLines(input);
+                break;
+            case COMMAND:
+                decodeCommand(input);
+                break;
+            case HEADERS:
+                decodeHeader(input);
+                break;
+            case PAYLOAD:
+                decodePayload(input);
+                break;
+            case END_OF_FRAME:
+                return decodeEndOfFrame(input);
+            case DELIMITED_PAYLOAD:
+                return decodeDelimitedPayload(input);
+        }
+        return null;
+    }
+
+    private void skipLeadingEndOfLines(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            if (input.get(input.position()) != END_OF_LINE) {
+                state = State.COMMAND;
+                return;
+            }
+            input.get();
+        }
+    }
+
+    private void decodeCommand(ByteBuffer input) {
+        ByteBuffer commandLine = readLine(input, MAX_COMMAND_LENGTH);
+        if (commandLine != null) {
+            command = wireFormat.parseCommand(
+                    wireFormat.decode(commandLine, commandLine.position(), commandLine.limit(), charset));
+            headers = new HashMap<String, Header>();
+            state = State.HEADERS;
+        }
+    }
+
+    private void decodeHeader(ByteBuffer input) {
+        ByteBuffer headerLine = readLine(input, MAX_HEADER_LENGTH);
+        if (headerLine == null) {
+            return;
+        }
+        if (wireFormat.parseHeader(headerLine, headerLine.position(), headerLine.limit(), charset, headers)) {
+            return;
+        }
+        // empty line - end of the headers
+        Integer contentLength = wireFormat.parseContentLength(headers);
+        if (contentLength == null) {
+            state = State.DELIMITED_PAYLOAD;
+        } else if (contentLength < 0 || contentLength > MAX_PAYLOAD_LENGTH) {
+            throw new StompWireFormatException(String.format("Content-length header value [%d] out of range", contentLength));
+        } else {
+            payload = new byte[contentLength];
+            payloadLength = 0;
+            state = (contentLength > 0) ? State.PAYLOAD : State.END_OF_FRAME;
+        }
+    }
+
+    private void decodePayload(ByteBuffer input) {
+        int length = Math.min(input.remaining(), payload.length - payloadLength);
+        input.get(payload, payloadLength, length);
+        payloadLength += length;
+        if (payloadLength == payload.length) {
+            state = State.END_OF_FRAME;
+        }
+    }
+
+    private Frame decodeEndOfFrame(ByteBuffer input) {
+        if (input.get() != END_OF_FRAME) {
+            throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value TOO SMALL.");
+        }
+        return completeFrame(payload);
+    }
+
+    private Frame decodeDelimitedPayload(ByteBuffer input) {
+        int endOfFrame = indexOf(input, (byte) END_OF_FRAME);
+        int end = (endOfFrame < 0) ? input.limit() : endOfFrame;
+        if (delimitedPayload.size() + (end - input.position()) > MAX_PAYLOAD_LENGTH) {
+            throw new StompWireFormatException("Max length exceeded");
+        }
+        if (endOfFrame < 0) {
+            delimitedPayload.put(input);
+            return null;
+        }
+        byte[] bytes;
+        if (delimitedPayload.isEmpty()) {
+            bytes = new byte[end - input.position()];
+            input.get(bytes);
+        } else {
+            delimitedPayload.put(slice(input, end));
+            bytes = delimitedPayload.toByteArray();
+            delimitedPayload.clear();
+        }
+        // behind the end-of-frame marker
+        input.position(endOfFrame + 1);
+        return completeFrame(bytes);
+    }
+
+    private Frame completeFrame(byte[] bytes) {
+        Frame frame = new Frame(command, headers, ByteBuffer.wrap(bytes), charset);
+        frame.freeze();
+        reset();
+        return frame;
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Helper methods
+    // ----------------------------------------------------------------------------------
+    // returns the line without the end-of-line marker, or null if it has not been received completely yet
+    private ByteBuffer readLine(ByteBuffer input, int maxLength) {
+        int endOfLine = indexOf(input, (byte) END_OF_LINE);
+        int end = (endOfLine < 0) ? input.limit() : endOfLine;
+        if (line.size() + (end - input.position()) > maxLength) {
+            throw new StompWireFormatException("Max length exceeded");
+        }
+        if (endOfLine < 0) {
+            line.put(input);
+            return null;
+        }
+        ByteBuffer result;
+        if (line.isEmpty()) {
+            // the whole line is in the chunk - parsed in place
+            result = slice(input, endOfLine);
+        } else {
+            line.put(slice(input, endOfLine));
+            result = ByteBuffer.wrap(line.toByteArray());
+            line.clear();
+        }
+        input.position(endOfLine + 1);
+        return result;
+    }
+
+    private int indexOf(ByteBuffer input, byte marker) {
+        for (int index = input.position(); index < input.limit(); index++) {
+            if (input.get(index) == marker) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    // view of the bytes from the position to the end, the position of the input is not changed
+    private ByteBuffer slice(ByteBuffer input, int end) {
+        ByteBuffer result = input.duplicate();
+        result.limit(end);
+        return result;
+    }
+
+}
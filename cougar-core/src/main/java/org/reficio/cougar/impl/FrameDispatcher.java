@@ -0,0 +1,422 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompProtocolException;
+import org.reficio.cougar.connection.MessageListener;
+import org.reficio.cougar.core.AsyncTransmissionHandler;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.domain.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pushes the received frames to the message listener of a client. The frames are pulled by a dedicated
+ * reader thread - or pushed by the transport, if it is able to - and the listener is invoked by the executor,
+ * so the reception of the next frames is not held up by the processing of the previous ones.
+ * <p/>
+ * The messages of the registered subscriptions are routed by the subscription header to the queues of the
+ * subscriptions instead - see SubscriptionQueue. While any of them is full, no frame is received: the reader
+ * thread waits, an asynchronous transport is asked to stop reading.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class FrameDispatcher implements FrameHandler, SubscriptionQueue.FlowControl, Runnable {
+
+    private static final transient Logger log = LoggerFactory.getLogger(FrameDispatcher.class);
+
+    public static final int DEFAULT_SUBSCRIPTION_QUEUE_CAPACITY = 1000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    // marked as broken once the reception fails
+    private final ConnectionImpl connection;
+    // tracks the subscriptions of the received messages for the cumulative acknowledgements
+    private final PendingAcks pendingAcks;
+    // subscription id -> queue
+    private final ConcurrentMap<String, SubscriptionQueue> subscriptions =
+            new ConcurrentHashMap<String, SubscriptionQueue>();
+    private final ReceiptTracker receiptTracker = new ReceiptTracker();
+    private int subscriptionQueueCapacity = DEFAULT_SUBSCRIPTION_QUEUE_CAPACITY;
+    private TransmissionHandler transmissionHandler;
+    private volatile MessageListener listener;
+    private volatile Executor executor;
+    // created if no executor has been given, shut down together with the dispatcher
+    private ExecutorService defaultExecutor;
+    private volatile boolean running;
+    private volatile boolean stopped;
+    // reads the frames, unless they are pushed by the transport
+    private Thread reader;
+    // receipt of the frame after which the reader thread exits, see requestRelease()
+    private String releaseReceiptId;
+    // number of the subscription queues over their capacity, the reception is suspended while there are any
+    private int fullSubscriptions;
+
+    FrameDispatcher(ConnectionImpl connection, PendingAcks pendingAcks) {
+        this.connection = checkNotNull(connection, "connection cannot be null");
+        this.pendingAcks = checkNotNull(pendingAcks, "pendingAcks cannot be null");
+    }
+
+    void setSubscriptionQueueCapacity(int subscriptionQueueCapacity) {
+        checkArgument(subscriptionQueueCapacity > 0, "subscriptionQueueCapacity must be positive");
+        this.subscriptionQueueCapacity = subscriptionQueueCapacity;
+    }
+
+    synchronized void setListener(MessageListener listener, Executor executor) {
+        this.listener = checkNotNull(listener, "listener cannot be null");
+        if (executor != null) {
+            this.executor = executor;
+        } else {
+            initializeDefaultExecutor();
+        }
+    }
+
+    // the RECEIPT frames awaited by the tracker are not dispatched to the listener
+    ReceiptTracker getReceiptTracker() {
+        return receiptTracker;
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Subscriptions
+    // ----------------------------------------------------------------------------------
+    void addSubscription(String subscriptionId) {
+        subscriptions.putIfAbsent(subscriptionId, new SubscriptionQueue(subscriptionId, subscriptionQueueCapacity, this));
+    }
+
+    void removeSubscription(String subscriptionId) {
+        SubscriptionQueue queue = subscriptions.remove(subscriptionId);
+        if (queue != null) {
+            queue.close(new StompConnectionException(String.format(
+                    "Subscription [%s] has been cancelled", subscriptionId)));
+        }
+    }
+
+    synchronized void setListener(String subscriptionId, MessageListener listener) {
+        checkNotNull(listener, "listener cannot be null");
+        initializeDefaultExecutor();
+        getSubscription(subscriptionId).setListener(listener, executor);
+    }
+
+    Frame receive(String subscriptionId, int timeout) {
+        return getSubscription(subscriptionId).receive(timeout);
+    }
+
+    Frame poll(String subscriptionId) {
+        return getSubscription(subscriptionId).poll();
+    }
+
+    private SubscriptionQueue getSubscription(String subscriptionId) {
+        SubscriptionQueue queue = subscriptions.get(checkNotNull(subscriptionId, "subscriptionId cannot be null"));
+        if (queue == null) {
+            throw new StompConnectionException(String.format("No subscription [%s]", subscriptionId));
+        }
+        return queue;
+    }
+
+    private void initializeDefaultExecutor() {
+        if (executor == null) {
+            defaultExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("cougar-dispatcher"));
+            executor = defaultExecutor;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Lifecycle
+    // ----------------------------------------------------------------------------------
+    synchronized void start(TransmissionHandler transmissionHandler) {
+        if (running || stopped) {
+            return;
+        }
+        this.transmissionHandler = checkNotNull(transmissionHandler, "transmissionHandler cannot be null");
+        running = true;
+        if (transmissionHandler instanceof AsyncTransmissionHandler) {
+            ((AsyncTransmissionHandler) transmissionHandler).setFrameHandler(this);
+        } else {
+            reader = new DaemonThreadFactory("cougar-reader").newThread(this);
+            reader.start();
+        }
+    }
+
+    // the reader thread is not needed once nothing is dispatched any more - it exits after the receipt of the
+    // frame cancelling the last subscription and the frames are pulled by receive() again
+    synchronized boolean requestRelease(String subscriptionId, String receiptId) {
+        if (running == false || reader == null || listener != null || receiptTracker.getPendingCount() > 0
+                || subscriptions.size() != 1 || subscriptions.containsKey(subscriptionId) == false) {
+            return false;
+        }
+        releaseReceiptId = receiptId;
+        return true;
+    }
+
+    // returns at once if no release is pending, the reader keeps on reading if a subscription has been made
+    // in the meantime
+    synchronized void awaitRelease(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (running && releaseReceiptId != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.warn(String.format("Receipt [%s] not received - frames are still dispatched",
+                            releaseReceiptId));
+                    releaseReceiptId = null;
+                    return;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean release(Frame frame) {
+        if (releaseReceiptId == null || releaseReceiptId.equals(frame.receiptId()) == false) {
+            return false;
+        }
+        releaseReceiptId = null;
+        notifyAll();
+        if (listener == null && subscriptions.isEmpty() && receiptTracker.getPendingCount() == 0) {
+            running = false;
+            reader = null;
+            return true;
+        }
+        return false;
+    }
+
+    // the reader thread exits once the connection has been closed, the frames already received are dispatched
+    synchronized void stop() {
+        running = false;
+        stopped = true;
+        notifyAll();
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+        }
+        StompException failure = new StompConnectionException("Connection has been closed");
+        closeSubscriptions(failure);
+        receiptTracker.failAll(failure);
+        receiptTracker.stop();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Flow control
+    // ----------------------------------------------------------------------------------
+    public synchronized void suspendReception() {
+        if (fullSubscriptions++ == 0 && transmissionHandler instanceof AsyncTransmissionHandler) {
+            ((AsyncTransmissionHandler) transmissionHandler).suspendReception();
+        }
+    }
+
+    public synchronized void resumeReception() {
+        if (--fullSubscriptions == 0) {
+            if (transmissionHandler instanceof AsyncTransmissionHandler) {
+                ((AsyncTransmissionHandler) transmissionHandler).resumeReception();
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void awaitReception() {
+        try {
+            while (running && fullSubscriptions > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeSubscriptions(StompException failure) {
+        for (SubscriptionQueue queue : subscriptions.values()) {
+            queue.close(failure);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Reader thread
+    // ----------------------------------------------------------------------------------
+    public void run() {
+        transmissionHandler.setReceptionTimeoutInMillis(ConnectionImpl.INDEFINITE_RECEPTION_TIMEOUT);
+        try {
+            while (running) {
+                awaitReception();
+                if (running == false) {
+                    return;
+                }
+                Frame frame;
+                try {
+                    frame = transmissionHandler.unmarshall();
+                } catch (StompException e) {
+                    handleError(e);
+                    return;
+                }
+                if (release(frame)) {
+                    return;
+                }
+                handleFrame(frame);
+            }
+        } finally {
+            // no frames are dispatched once the reader has exited - unless it has been released and the
+            // dispatcher has been started again already
+            synchronized (this) {
+                if (reader == Thread.currentThread()) {
+                    running = false;
+                    reader = null;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Dispatching
+    // ----------------------------------------------------------------------------------
+    public void handleFrame(final Frame frame) {
+        pendingAcks.received(frame);
+        if (receiptTracker.handleFrame(frame) || route(frame)) {
+            return;
+        }
+        execute(new Runnable() {
+            public void run() {
+                dispatch(frame);
+            }
+        });
+    }
+
+    public void handleError(final StompException exception) {
+        if (running == false) {
+            // the connection has been closed by the client
+            return;
+        }
+        running = false;
+        connection.markBroken();
+        closeSubscriptions(exception);
+        receiptTracker.failAll(exception);
+        if (listener == null) {
+            log.error("Connection has been broken", exception);
+            return;
+        }
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    listener.onException(exception);
+                } catch (RuntimeException e) {
+                    log.error("Message listener has failed", e);
+                }
+            }
+        });
+    }
+
+    // O(1) lookup of the subscription the message has been received for
+    private boolean route(Frame frame) {
+        String subscriptionId = frame.subscription();
+        if (subscriptionId == null) {
+            return false;
+        }
+        SubscriptionQueue queue = subscriptions.get(subscriptionId);
+        if (queue == null) {
+            return false;
+        }
+        queue.deliver(frame);
+        return true;
+    }
+
+    protected void dispatch(Frame frame) {
+        MessageListener target = listener;
+        if (target == null) {
+            dispatchUnrouted(frame);
+            return;
+        }
+        try {
+            switch (frame.getCommand()) {
+                case MESSAGE:
+                    target.onMessage(frame);
+                    break;
+                case RECEIPT:
+                    target.onReceipt(frame);
+                    break;
+                case ERROR:
+                    target.onError(frame);
+                    break;
+                default:
+                    log.warn(String.format("Unexpected frame received [%s]", frame.getCommand().getName()));
+            }
+        } catch (RuntimeException e) {
+            log.error("Message listener has failed", e);
+        }
+    }
+
+    // only the subscription queues and the receipt futures are waiting for the frames
+    private void dispatchUnrouted(Frame frame) {
+        switch (frame.getCommand()) {
+            case ERROR:
+                StompException failure = new StompProtocolException(String.format("Error frame received [%s]",
+                        frame.errorMessageContent()));
+                closeSubscriptions(failure);
+                receiptTracker.failAll(failure);
+                break;
+            case RECEIPT:
+                // the receipt of a future that has already timed out
+                log.debug(String.format("Receipt not awaited [%s]", frame.receiptId()));
+                break;
+            default:
+                log.warn(String.format("Frame dropped - no message listener [%s]", frame));
+        }
+    }
+
+    private void execute(Runnable task) {
+        Executor target = executor;
+        if (target == null) {
+            // frames received while only the subscription queues are read
+            task.run();
+            return;
+        }
+        try {
+            target.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.warn("Frame dropped - the dispatcher has been stopped");
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
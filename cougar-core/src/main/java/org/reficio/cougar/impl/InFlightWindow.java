@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompFlowControlException;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.core.ReceiptWindow;
+import org.reficio.cougar.core.ReceiptWindowStatistics;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Slots of the receipt window of a client, see ReceiptWindow.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class InFlightWindow implements ReceiptWindowStatistics {
+
+    private final ReceiptWindow window;
+    private final Semaphore slots;
+    private final AtomicLong stallCount = new AtomicLong();
+    private final AtomicLong stallTimeInNanos = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    InFlightWindow(ReceiptWindow window) {
+        this.window = checkNotNull(window, "window cannot be null");
+        this.slots = new Semaphore(window.getMaxInFlight(), true);
+    }
+
+    void acquire() {
+        if (slots.tryAcquire()) {
+            return;
+        }
+        long maxWait = window.getMaxWaitInNanos();
+        if (maxWait == 0) {
+            rejectedCount.incrementAndGet();
+            throw new StompFlowControlException(String.format("Receipt window full [%d frames in flight]",
+                    window.getMaxInFlight()));
+        }
+        stallCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            if (maxWait == ReceiptWindow.WAIT_INDEFINITELY) {
+                slots.acquire();
+            } else if (slots.tryAcquire(maxWait, TimeUnit.NANOSECONDS) == false) {
+                rejectedCount.incrementAndGet();
+                throw new StompFlowControlException(String.format(
+                        "Receipt window full [%d frames in flight] - no slot freed in time", window.getMaxInFlight()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompIOException("Interrupted while waiting for a free slot of the receipt window", e);
+        } finally {
+            stallTimeInNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    void release() {
+        slots.release();
+    }
+
+    public int getMaxInFlight() {
+        return window.getMaxInFlight();
+    }
+
+    public int getInFlightCount() {
+        return window.getMaxInFlight() - slots.availablePermits();
+    }
+
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    public long getStallTimeInMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallTimeInNanos.get());
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Registry of the in-JVM endpoints the connections using the in-JVM transport connect to. The hostname
+ * of such a connection is the name of the endpoint; the port is ignored.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class InVmEndpoints {
+
+    /**
+     * Server side of the in-JVM endpoint. Invoked by the connecting thread with the channels of the new
+     * connection, in the blocking mode - the acceptor has to serve them in its own thread.
+     */
+    public interface Acceptor {
+        void accept(ReadableByteChannel input, WritableByteChannel output);
+    }
+
+    private static final ConcurrentMap<String, Acceptor> endpoints = new ConcurrentHashMap<String, Acceptor>();
+
+    private InVmEndpoints() {
+    }
+
+    public static void bind(String name, Acceptor acceptor) {
+        checkNotNull(name, "name cannot be null");
+        checkNotNull(acceptor, "acceptor cannot be null");
+        if (endpoints.putIfAbsent(name, acceptor) != null) {
+            throw new IllegalStateException(String.format("Endpoint [%s] is already bound", name));
+        }
+    }
+
+    public static void unbind(String name) {
+        endpoints.remove(checkNotNull(name, "name cannot be null"));
+    }
+
+    static void connect(String name, ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        Acceptor acceptor = endpoints.get(name);
+        if (acceptor == null) {
+            throw new IOException(String.format("No in-JVM endpoint bound to [%s]", name));
+        }
+        acceptor.accept(input, output);
+    }
+
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.core.TransportSettings;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+
+/**
+ * In-JVM transport - the connection talks to an endpoint registered in the InVmEndpoints through a pair
+ * of pipes, without any network stack involved.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class InVmTransmissionHandler extends ChannelTransmissionHandler {
+
+    InVmTransmissionHandler(TransportSettings settings) {
+        super(settings);
+    }
+
+    @Override
+    protected void openChannels(int timeout) throws IOException {
+        Pipe toServer = Pipe.open();
+        Pipe toClient = Pipe.open();
+        try {
+            InVmEndpoints.connect(hostname, toServer.source(), toClient.sink());
+        } catch (IOException e) {
+            toServer.source().close();
+            toServer.sink().close();
+            toClient.source().close();
+            toClient.sink().close();
+            throw e;
+        }
+        setChannels(toClient.source(), toServer.sink());
+    }
+
+}
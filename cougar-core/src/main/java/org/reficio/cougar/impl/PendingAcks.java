@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.core.AckPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Acknowledgements recorded by a client according to its ack policy. They are sent with a single write - either
+ * all of them or, for the cumulative policy, just the last one of every subscription - once enough of them is
+ * pending, by the shared flush scheduler once the max delay has passed, or whenever the client asks for it.
+ * <p/>
+ * A cumulative acknowledgement covers only the messages of its own subscription, so the subscriptions of the
+ * received messages are tracked until the messages are acknowledged or their subscriptions are cancelled.
+ * As a cumulative acknowledgement covers all the earlier messages of its subscription too, they are no longer
+ * tracked once it has been recorded - the messages not acknowledged one by one are not tracked forever.
+ * The acknowledgements of untracked messages are treated as a single subscription.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class PendingAcks {
+
+    private static final transient Logger log = LoggerFactory.getLogger(PendingAcks.class);
+
+    private final ClientImpl client;
+    private AckPolicy ackPolicy = AckPolicy.immediate();
+    private List<String> messageIds = new ArrayList<String>();
+    // cumulative policy: subscription id -> last message id, the messages of unknown subscriptions under null
+    private Map<String, String> lastMessageIds = new LinkedHashMap<String, String>();
+    // cumulative policy: message id -> subscription id, updated by the reader without holding the lock
+    private final ConcurrentMap<String, String> receivedSubscriptions = new ConcurrentHashMap<String, String>();
+    // cumulative policy: subscription id -> ids of the tracked messages in the order of reception
+    private final ConcurrentMap<String, Queue<String>> receivedMessageIds =
+            new ConcurrentHashMap<String, Queue<String>>();
+    private volatile boolean cumulative;
+    private ScheduledFuture<?> scheduledSend;
+
+    PendingAcks(ClientImpl client) {
+        this.client = client;
+    }
+
+    synchronized void setAckPolicy(AckPolicy ackPolicy) {
+        this.ackPolicy = ackPolicy;
+        this.cumulative = ackPolicy.isCumulative();
+    }
+
+    synchronized boolean isImmediate() {
+        return ackPolicy.isImmediate();
+    }
+
+    void received(Frame frame) {
+        if (cumulative && frame.getCommand().equals(Command.MESSAGE)) {
+            String messageId = frame.messageId();
+            String subscriptionId = frame.subscription();
+            if (messageId != null && subscriptionId != null) {
+                receivedSubscriptions.put(messageId, subscriptionId);
+                messageIdsOf(subscriptionId).add(messageId);
+            }
+        }
+    }
+
+    private Queue<String> messageIdsOf(String subscriptionId) {
+        Queue<String> messageIds = receivedMessageIds.get(subscriptionId);
+        if (messageIds == null) {
+            Queue<String> created = new ConcurrentLinkedQueue<String>();
+            messageIds = receivedMessageIds.putIfAbsent(subscriptionId, created);
+            if (messageIds == null) {
+                messageIds = created;
+            }
+        }
+        return messageIds;
+    }
+
+    void removeSubscription(String subscriptionId) {
+        Queue<String> messageIds = receivedMessageIds.remove(subscriptionId);
+        if (messageIds != null) {
+            for (String messageId : messageIds) {
+                receivedSubscriptions.remove(messageId);
+            }
+        }
+    }
+
+    // the acknowledged message and the ones received before it on its subscription are not tracked anymore
+    private String acknowledged(String messageId) {
+        String subscriptionId = receivedSubscriptions.remove(messageId);
+        if (subscriptionId == null) {
+            return null;
+        }
+        Queue<String> messageIds = receivedMessageIds.get(subscriptionId);
+        if (messageIds != null) {
+            String received;
+            while ((received = messageIds.poll()) != null && received.equals(messageId) == false) {
+                receivedSubscriptions.remove(received);
+            }
+        }
+        return subscriptionId;
+    }
+
+    // number of the received messages tracked for the cumulative acknowledgements
+    int getTrackedCount() {
+        return receivedSubscriptions.size();
+    }
+
+    synchronized void add(String messageId) {
+        messageIds.add(messageId);
+        if (ackPolicy.isCumulative()) {
+            lastMessageIds.put(acknowledged(messageId), messageId);
+        }
+        if (ackPolicy.isSendRequired(messageIds.size())) {
+            send();
+        } else if (scheduledSend == null) {
+            ScheduledSend task = new ScheduledSend();
+            scheduledSend = TransmissionHandlerImpl.FlushScheduler.schedule(task, ackPolicy.getMaxDelayInNanos());
+            task.future = scheduledSend;
+        }
+    }
+
+    synchronized void send() {
+        if (scheduledSend != null) {
+            scheduledSend.cancel(false);
+            scheduledSend = null;
+        }
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        List<String> acknowledged = messageIds;
+        messageIds = new ArrayList<String>();
+        if (ackPolicy.isCumulative()) {
+            acknowledged = new ArrayList<String>(lastMessageIds.values());
+            lastMessageIds = new LinkedHashMap<String, String>();
+        }
+        client.sendAcks(acknowledged);
+    }
+
+    // the messages not acknowledged due to the failure are redelivered by the broker
+    private class ScheduledSend implements Runnable {
+        // assigned under the lock, before the task may run
+        private ScheduledFuture<?> future;
+
+        public void run() {
+            synchronized (PendingAcks.this) {
+                // cancelled once handed over - the send scheduled for the next acknowledgements is kept
+                if (scheduledSend != future) {
+                    return;
+                }
+                scheduledSend = null;
+                try {
+                    send();
+                } catch (StompException e) {
+                    log.warn("Pending acknowledgements could not be sent", e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.core.AsyncTransmissionHandler;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.domain.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Makes the sending side of a transmission handler safe for many producer threads. The frames are put on
+ * a lock-free queue and marshalled by a single writer thread of the connection, which flushes them to the
+ * socket once the queue has been drained - so the frames sent concurrently are written in batches, whole and
+ * in the order of every producer. The failure of the writer is reported to the subsequent callers.
+ * <p/>
+ * The number of the frames queued is bounded - the producers wait for the writer once the queue is full,
+ * so a slow peer holds them up instead of filling the heap.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class QueuedTransmissionHandler implements TransmissionHandler, Runnable {
+
+    private static final transient Logger log = LoggerFactory.getLogger(QueuedTransmissionHandler.class);
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final long WRITER_CHECK_PERIOD_IN_MILLIS = 100;
+
+    public static final int DEFAULT_MAX_QUEUED_FRAMES = 10000;
+
+    // a frame to write, a batch of frames to write at once or a flush request - the latch is released once
+    // the frames before it have been flushed
+    private static class Entry {
+        final Frame frame;
+        final Collection<Frame> frames;
+        final CountDownLatch flushed;
+        // the capacity of the queue taken by the entry
+        int permits;
+
+        Entry(Frame frame, CountDownLatch flushed) {
+            this(frame, null, flushed);
+        }
+
+        Entry(Frame frame, Collection<Frame> frames, CountDownLatch flushed) {
+            this.frame = frame;
+            this.frames = frames;
+            this.flushed = flushed;
+        }
+    }
+
+    protected final TransmissionHandler target;
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private int maxQueuedFrames = DEFAULT_MAX_QUEUED_FRAMES;
+    private Semaphore capacity = new Semaphore(DEFAULT_MAX_QUEUED_FRAMES);
+    private volatile Thread writer;
+    private volatile boolean running;
+    private volatile StompException failure;
+
+    QueuedTransmissionHandler(TransmissionHandler target) {
+        this.target = checkNotNull(target, "target cannot be null");
+    }
+
+    static TransmissionHandler wrap(TransmissionHandler target) {
+        if (target instanceof AsyncTransmissionHandler) {
+            return new AsyncQueuedTransmissionHandler((AsyncTransmissionHandler) target);
+        }
+        return new QueuedTransmissionHandler(target);
+    }
+
+    void setMaxQueuedFrames(int maxQueuedFrames) {
+        checkArgument(maxQueuedFrames > 0, "maxQueuedFrames must be positive");
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.capacity = new Semaphore(maxQueuedFrames);
+    }
+
+    // ----------------------------------------------------------------------------------
+    // TransmissionHandler methods
+    // ----------------------------------------------------------------------------------
+    public void initializeCommunication(int timeout) {
+        target.initializeCommunication(timeout);
+        running = true;
+        writer = new Thread(this, "cougar-writer-" + threadCounter.incrementAndGet());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void closeCommunication() {
+        try {
+            if (running && failure == null) {
+                flush();
+            }
+        } finally {
+            running = false;
+            wakeUpWriter();
+            target.closeCommunication();
+        }
+    }
+
+    public void setReceptionTimeoutInMillis(int timeout) {
+        target.setReceptionTimeoutInMillis(timeout);
+    }
+
+    public void marshall(Frame frame) {
+        enqueue(new Entry(checkNotNull(frame, "frame cannot be null"), null), 1);
+    }
+
+    // the batch is written by the writer thread as a whole, without the frames of the other producers in between
+    public void marshall(Collection<Frame> frames) {
+        checkNotNull(frames, "frames cannot be null");
+        // a batch larger than the queue waits for the queue to be empty
+        enqueue(new Entry(null, new ArrayList<Frame>(frames), null), Math.min(frames.size(), maxQueuedFrames));
+    }
+
+    // waits until the frames enqueued before have been flushed
+    public void flush() {
+        CountDownLatch flushed = new CountDownLatch(1);
+        enqueue(new Entry(null, flushed), 0);
+        try {
+            while (flushed.await(WRITER_CHECK_PERIOD_IN_MILLIS, TimeUnit.MILLISECONDS) == false) {
+                if (writer.isAlive() == false) {
+                    // enqueued just after the writer has finished
+                    assertNotFailed();
+                    throw new StompConnectionException("Communication has been closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompIOException("Interrupted while waiting for the frames to be flushed", e);
+        }
+        assertNotFailed();
+    }
+
+    public Frame unmarshall() {
+        return target.unmarshall();
+    }
+
+    private void enqueue(Entry entry, int permits) {
+        assertNotFailed();
+        if (running == false) {
+            throw new StompConnectionException("Communication has not been initialized or has been closed");
+        }
+        acquire(permits);
+        entry.permits = permits;
+        queue.offer(entry);
+        wakeUpWriter();
+    }
+
+    // waits while the queue is full, as long as the writer is able to drain it
+    private void acquire(int permits) {
+        try {
+            while (capacity.tryAcquire(permits, WRITER_CHECK_PERIOD_IN_MILLIS, TimeUnit.MILLISECONDS) == false) {
+                assertNotFailed();
+                if (running == false) {
+                    throw new StompConnectionException("Communication has been closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompIOException("Interrupted while waiting for the queue of the writer", e);
+        }
+    }
+
+    private void assertNotFailed() {
+        StompException exception = failure;
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void wakeUpWriter() {
+        if (signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Writer thread
+    // ----------------------------------------------------------------------------------
+    public void run() {
+        try {
+            while (running || queue.isEmpty() == false) {
+                drain();
+                // reset after the drain - the target may have consumed the unpark while it was blocked itself
+                signalled.set(false);
+                if (queue.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+            }
+        } catch (Throwable e) {
+            // whatever the failure, the producers must not wait for a writer which is gone
+            if (failure == null) {
+                failure = (e instanceof StompException) ? (StompException) e
+                        : new StompIOException("Writer thread has failed", e);
+            }
+            log.error("Frames could not be written, closing the communication", e);
+            running = false;
+            closeTarget();
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        } finally {
+            releaseWaiters();
+        }
+    }
+
+    private void closeTarget() {
+        try {
+            target.closeCommunication();
+        } catch (RuntimeException e) {
+            log.warn("Communication could not be closed", e);
+        }
+    }
+
+    private void drain() {
+        int written = 0;
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            capacity.release(entry.permits);
+            if (entry.frame != null) {
+                target.marshall(entry.frame);
+                written++;
+            } else if (entry.frames != null) {
+                // flushes the frames written before as well
+                target.marshall(entry.frames);
+                written = 0;
+            } else {
+                try {
+                    target.flush();
+                } catch (StompException e) {
+                    // has to be visible to the waiter once released
+                    failure = e;
+                    throw e;
+                } finally {
+                    entry.flushed.countDown();
+                }
+                written = 0;
+            }
+        }
+        if (written > 0) {
+            target.flush();
+        }
+    }
+
+    // the waiters check the failure once released - the capacity taken by the dropped entries is given back,
+    // so no producer waits for it
+    private void releaseWaiters() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            capacity.release(entry.permits);
+            if (entry.flushed != null) {
+                entry.flushed.countDown();
+            }
+        }
+    }
+
+    static class AsyncQueuedTransmissionHandler extends QueuedTransmissionHandler implements AsyncTransmissionHandler {
+
+        AsyncQueuedTransmissionHandler(AsyncTransmissionHandler target) {
+            super(target);
+        }
+
+        public void setFrameHandler(FrameHandler frameHandler) {
+            ((AsyncTransmissionHandler) target).setFrameHandler(frameHandler);
+        }
+
+        public void suspendReception() {
+            ((AsyncTransmissionHandler) target).suspendReception();
+        }
+
+        public void resumeReception() {
+            ((AsyncTransmissionHandler) target).resumeReception();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.connection.ReceiptFuture;
+import org.reficio.cougar.domain.Frame;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ReceiptFuture completed by the ReceiptTracker - the first of the complete(), fail() and cancel() calls wins.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class ReceiptFutureImpl implements ReceiptFuture {
+
+    private final String receiptId;
+    private final long deadline;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Frame receipt;
+    private volatile StompException failure;
+    private volatile boolean cancelled;
+
+    ReceiptFutureImpl(String receiptId, long deadline) {
+        this.receiptId = receiptId;
+        this.deadline = deadline;
+    }
+
+    public String getReceiptId() {
+        return receiptId;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    boolean complete(Frame receipt) {
+        synchronized (done) {
+            if (isDone()) {
+                return false;
+            }
+            this.receipt = receipt;
+            done.countDown();
+            return true;
+        }
+    }
+
+    boolean fail(StompException failure) {
+        synchronized (done) {
+            if (isDone()) {
+                return false;
+            }
+            this.failure = failure;
+            done.countDown();
+            return true;
+        }
+    }
+
+    // the receipt may still arrive - it is ignored then
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (done) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+            return true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public Frame get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public Frame get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (done.await(timeout, unit) == false) {
+            throw new TimeoutException(String.format("Receipt [%s] has not been received yet", receiptId));
+        }
+        return getResult();
+    }
+
+    private Frame getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return receipt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReceiptFuture[%s]", receiptId);
+    }
+
+}
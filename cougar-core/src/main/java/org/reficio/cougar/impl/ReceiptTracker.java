@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompProtocolException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.core.ReceiptWindow;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.HeaderType;
+
+import java.util.concurrent.*;
+
+/**
+ * Correlates the received RECEIPT frames with the futures of the frames sent asynchronously. The futures
+ * not completed within the receipt timeout are failed by a sweep run periodically by a timer shared by
+ * all the clients. Every pending future holds a slot of the receipt window until it is removed.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class ReceiptTracker {
+
+    private static final long SWEEP_PERIOD_IN_MILLIS = 100;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cougar-receipt-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // receipt id -> future
+    private final ConcurrentMap<String, ReceiptFutureImpl> pending = new ConcurrentHashMap<String, ReceiptFutureImpl>();
+    private volatile InFlightWindow window = new InFlightWindow(ReceiptWindow.unbounded());
+    private ScheduledFuture<?> sweep;
+
+    // has to be set before the first registration
+    void setWindow(ReceiptWindow window) {
+        this.window = new InFlightWindow(window);
+    }
+
+    InFlightWindow getWindow() {
+        return window;
+    }
+
+    // waits for a free slot of the window or fails, depending on the window
+    ReceiptFutureImpl register(String receiptId, int timeout) {
+        window.acquire();
+        ReceiptFutureImpl future = new ReceiptFutureImpl(receiptId, System.currentTimeMillis() + timeout);
+        if (pending.putIfAbsent(receiptId, future) != null) {
+            window.release();
+            throw new IllegalArgumentException(String.format("Receipt [%s] is already awaited", receiptId));
+        }
+        scheduleSweep();
+        return future;
+    }
+
+    void remove(String receiptId) {
+        take(receiptId);
+    }
+
+    private ReceiptFutureImpl take(String receiptId) {
+        ReceiptFutureImpl future = (receiptId != null) ? pending.remove(receiptId) : null;
+        if (future != null) {
+            window.release();
+        }
+        return future;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    // returns false if the frame is not awaited by any future
+    boolean handleFrame(Frame frame) {
+        if (frame.getCommand() == Command.RECEIPT) {
+            ReceiptFutureImpl future = take(frame.receiptId());
+            if (future != null) {
+                future.complete(frame);
+                return true;
+            }
+        } else if (frame.getCommand() == Command.ERROR) {
+            StompException failure = new StompProtocolException(String.format("Error frame received [%s]",
+                    frame.errorMessageContent()));
+            String receiptId = frame.custom(HeaderType.RECEIPT_ID.getName());
+            if (receiptId != null) {
+                ReceiptFutureImpl future = take(receiptId);
+                if (future != null) {
+                    future.fail(failure);
+                }
+            } else {
+                // the error cannot be correlated - the broker closes the connection after it anyway
+                failAll(failure);
+            }
+        }
+        return false;
+    }
+
+    void failAll(StompException failure) {
+        for (String receiptId : pending.keySet()) {
+            ReceiptFutureImpl future = take(receiptId);
+            if (future != null) {
+                future.fail(failure);
+            }
+        }
+    }
+
+    synchronized void stop() {
+        if (sweep != null) {
+            sweep.cancel(false);
+            sweep = null;
+        }
+    }
+
+    private synchronized void scheduleSweep() {
+        if (sweep == null) {
+            sweep = timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    failExpired();
+                }
+            }, SWEEP_PERIOD_IN_MILLIS, SWEEP_PERIOD_IN_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void failExpired() {
+        long now = System.currentTimeMillis();
+        for (ReceiptFutureImpl future : pending.values()) {
+            if (future.isCancelled()) {
+                take(future.getReceiptId());
+            } else if (future.getDeadline() <= now && take(future.getReceiptId()) != null) {
+                future.fail(new StompSocketTimeoutException(String.format("Receipt [%s] has not been received in time",
+                        future.getReceiptId())));
+            }
+        }
+    }
+
+}
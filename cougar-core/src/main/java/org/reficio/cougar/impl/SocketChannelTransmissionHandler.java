@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.core.TransportSettings;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NIO SocketChannel transport.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class SocketChannelTransmissionHandler extends ChannelTransmissionHandler {
+
+    SocketChannelTransmissionHandler(TransportSettings settings) {
+        super(settings);
+    }
+
+    @Override
+    protected void openChannels(int timeout) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(hostname, port)) == false) {
+                awaitConnection(channel, timeout);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        setChannels(channel, channel);
+    }
+
+    private void awaitConnection(SocketChannel channel, int timeout) throws IOException {
+        Selector selector = Selector.open();
+        try {
+            channel.register(selector, SelectionKey.OP_CONNECT);
+            if (selector.select(timeout) == 0) {
+                throw new SocketTimeoutException("Connect timed out");
+            }
+            channel.finishConnect();
+        } finally {
+            selector.close();
+        }
+    }
+
+}
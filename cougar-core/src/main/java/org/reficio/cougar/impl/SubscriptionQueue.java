@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.MessageListener;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queue of the messages received for a single subscription. The messages are either pulled by
+ * receive() or pushed to the listener of the subscription - in order, by at most one task of the executor
+ * at a time, so the subscriptions served by a multi-threaded executor do not hold each other up.
+ * <p/>
+ * The messages are delivered by the thread receiving the frames of the connection, which must never be
+ * blocked. Once the messages queued reach the capacity, the reception of the connection is suspended through
+ * the flow control instead - the broker is held up by the flow control of the network, so no message is ever
+ * dropped, whatever the ack mode. The reception is resumed once the queue has been drained to half of its
+ * capacity. The frames already read by the transport are queued over the capacity in the meantime.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+class SubscriptionQueue {
+
+    private static final transient Logger log = LoggerFactory.getLogger(SubscriptionQueue.class);
+
+    private static final Frame END_OF_STREAM = new Frame(Command.ERROR);
+
+    // told when a queue goes over its capacity and when it has been drained, or closed, afterwards
+    interface FlowControl {
+        void suspendReception();
+
+        void resumeReception();
+    }
+
+    private static final FlowControl NO_FLOW_CONTROL = new FlowControl() {
+        public void suspendReception() {
+        }
+
+        public void resumeReception() {
+        }
+    };
+
+    private final String subscriptionId;
+    private final int capacity;
+    private final FlowControl flowControl;
+    private final BlockingQueue<Frame> messages = new LinkedBlockingQueue<Frame>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean suspending = new AtomicBoolean();
+    private volatile MessageListener listener;
+    private volatile Executor executor;
+    private volatile StompException failure;
+
+    SubscriptionQueue(String subscriptionId, int capacity) {
+        this(subscriptionId, capacity, NO_FLOW_CONTROL);
+    }
+
+    SubscriptionQueue(String subscriptionId, int capacity, FlowControl flowControl) {
+        this.subscriptionId = subscriptionId;
+        this.capacity = capacity;
+        this.flowControl = flowControl;
+    }
+
+    String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    void setListener(MessageListener listener, Executor executor) {
+        this.executor = executor;
+        this.listener = listener;
+        // the messages queued before have to be delivered as well
+        scheduleDrain();
+    }
+
+    void deliver(Frame message) {
+        if (failure != null) {
+            log.warn(String.format("Message dropped - subscription [%s] has been closed", subscriptionId));
+            return;
+        }
+        messages.offer(message);
+        if (messages.size() >= capacity && suspending.compareAndSet(false, true)) {
+            log.debug(String.format("Queue of subscription [%s] full [%d messages] - reception suspended",
+                    subscriptionId, capacity));
+            flowControl.suspendReception();
+        }
+        scheduleDrain();
+    }
+
+    // the queued messages are still received, then every receive() fails with the first failure given
+    void close(StompException failure) {
+        if (this.failure == null) {
+            this.failure = failure;
+        }
+        messages.offer(END_OF_STREAM);
+        // the messages of a closed subscription are not queued any more
+        if (suspending.compareAndSet(true, false)) {
+            flowControl.resumeReception();
+        }
+    }
+
+    private Frame taken(Frame frame) {
+        if (frame != null && messages.size() <= capacity / 2 && suspending.compareAndSet(true, false)) {
+            flowControl.resumeReception();
+        }
+        return frame;
+    }
+
+    Frame receive(int timeout) {
+        Frame frame = poll();
+        if (frame == null) {
+            frame = checkEndOfStream(await(timeout));
+        }
+        return frame;
+    }
+
+    // null if no message is queued, the failure is thrown once the queue is empty
+    Frame poll() {
+        if (listener != null) {
+            throw new StompConnectionException(String.format(
+                    "Messages of subscription [%s] are pushed to the message listener", subscriptionId));
+        }
+        Frame frame = taken(messages.poll());
+        if (frame == null && failure != null) {
+            throw failure;
+        }
+        return checkEndOfStream(frame);
+    }
+
+    private Frame checkEndOfStream(Frame frame) {
+        if (frame == END_OF_STREAM) {
+            messages.offer(END_OF_STREAM);
+            throw failure;
+        }
+        return frame;
+    }
+
+    private Frame await(int timeout) {
+        Frame frame;
+        try {
+            frame = taken((timeout > 0) ? messages.poll(timeout, TimeUnit.MILLISECONDS) : messages.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompIOException("Interrupted during frame receipt", e);
+        }
+        if (frame == null) {
+            throw new StompSocketTimeoutException(new SocketTimeoutException("Read timed out"));
+        }
+        return frame;
+    }
+
+    private void scheduleDrain() {
+        Frame head = messages.peek();
+        if (listener == null || head == null || head == END_OF_STREAM || draining.compareAndSet(false, true) == false) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+            log.warn(String.format("Messages of subscription [%s] not dispatched - the dispatcher has been stopped",
+                    subscriptionId));
+        }
+    }
+
+    private void drain() {
+        Frame message;
+        while ((message = messages.peek()) != null && message != END_OF_STREAM) {
+            taken(messages.poll());
+            try {
+                listener.onMessage(message);
+            } catch (RuntimeException e) {
+                log.error("Message listener has failed", e);
+            }
+        }
+        draining.set(false);
+        // a message might have been queued after the last poll
+        scheduleDrain();
+    }
+
+}
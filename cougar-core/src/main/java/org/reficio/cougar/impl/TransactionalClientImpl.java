@@ -24,12 +24,21 @@ import org.reficio.cougar.connection.TransactionalClient;
 import org.reficio.cougar.core.FrameDecorator;
 import org.reficio.cougar.core.FramePreprocessor;
 import org.reficio.cougar.core.StompWireFormat;
+import org.reficio.cougar.core.TransactionBatchPolicy;
 import org.reficio.cougar.domain.Command;
 import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * User: Tom Bujok (tom.bujok@reficio.org)
@@ -44,6 +53,23 @@ class TransactionalClientImpl extends ClientImpl implements TransactionalClient
     private static final transient Logger log = LoggerFactory.getLogger(TransactionalClientImpl.class);
 
     protected String transactionId;
+    // the BEGIN frame is sent along with the first frame of the transaction, an empty one is not sent at all
+    private boolean transactionBegun;
+
+    // the automatic transactions of the batch policy may be committed by the flush scheduler
+    private final Object batchLock = new Object();
+    private TransactionBatchPolicy batchPolicy = TransactionBatchPolicy.disabled();
+    // true if the current transaction has been begun automatically for a batch of messages
+    private boolean batchTransaction;
+    private int batchedMessages;
+    private ScheduledFuture<?> scheduledCommit;
+    private StompException scheduledCommitFailure;
+
+    // the messages and the acknowledgements of a transaction begun by the user are held back until
+    // the transaction ends, 0 if they are sent at once
+    private int transactionBufferSize;
+    private final List<Frame> bufferedFrames = new ArrayList<Frame>();
+    private int bufferedBytes;
 
     TransactionalClientImpl(StompWireFormat wireFormat, FramePreprocessor preprocessor) {
         super(wireFormat, preprocessor);
@@ -53,12 +79,25 @@ class TransactionalClientImpl extends ClientImpl implements TransactionalClient
         super.postConstruct();
     }
 
+    void setTransactionBatchPolicy(TransactionBatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+    }
+
+    void setTransactionBufferSize(int transactionBufferSize) {
+        this.transactionBufferSize = transactionBufferSize;
+    }
+
     // ----------------------------------------------------------------------------------
     // Overridden transaction-aware methods
     // ----------------------------------------------------------------------------------
     // Be aware that ack acknowledges all previous not-acknowledged messages too
+    // Outside of a transaction the acknowledgement may be deferred by the ack policy
     @Override
     public void ack(String messageId) {
+        if (isInTransaction() == false) {
+            super.ack(messageId);
+            return;
+        }
         TransactionAwareDecorator txDecorator = new TransactionAwareDecorator();
         super.ack(messageId, txDecorator);
     }
@@ -72,55 +111,372 @@ class TransactionalClientImpl extends ClientImpl implements TransactionalClient
     @Override
     public void send(String destination, final FrameDecorator frameDecorator) throws StompException {
         TransactionAwareDecorator txDecorator = new TransactionAwareDecorator(frameDecorator);
-        super.send(destination, txDecorator);
+        if (isBatching()) {
+            synchronized (batchLock) {
+                beginBatch();
+                super.send(destination, txDecorator);
+                batchSent(1);
+            }
+        } else {
+            super.send(destination, txDecorator);
+        }
+    }
+
+    // the frames sent and acknowledged in the batch become a part of the current transaction
+    @Override
+    public void send(Collection<Frame> frames) throws StompException {
+        checkNotNull(frames, "frames cannot be null");
+        if (isBatching()) {
+            synchronized (batchLock) {
+                beginBatch();
+                batchSent(sendInTransaction(frames));
+            }
+        } else {
+            sendInTransaction(frames);
+        }
+    }
+
+    // returns the number of the messages sent
+    private int sendInTransaction(Collection<Frame> frames) {
+        int messages = 0;
+        boolean beginDeferred = false;
+        boolean bufferable = true;
+        for (Frame frame : frames) {
+            Command command = checkNotNull(frame, "frame cannot be null").getCommand();
+            if (Command.SEND.equals(command)) {
+                messages++;
+            }
+            if (Command.SEND.equals(command) || Command.ACK.equals(command)) {
+                preprocessor.decorate(frame, new TransactionAwareDecorator());
+                beginDeferred |= isBeginDeferred(frame);
+            }
+            bufferable &= isBufferable(frame);
+        }
+        if (isBuffering() && bufferable) {
+            buffer(frames);
+        } else if (isBuffering() && bufferedFrames.isEmpty() == false) {
+            // the frames which cannot be held back are written after the buffered ones
+            List<Frame> framesWithBuffered = drainTransactionBuffer();
+            framesWithBuffered.addAll(frames);
+            super.send(framesWithBuffered);
+            transactionBegun = true;
+        } else if (beginDeferred) {
+            List<Frame> framesWithBegin = new ArrayList<Frame>(frames.size() + 1);
+            framesWithBegin.add(createBeginFrame());
+            framesWithBegin.addAll(frames);
+            super.send(framesWithBegin);
+            transactionBegun = true;
+        } else {
+            super.send(frames);
+        }
+        return messages;
+    }
+
+    // the first message or acknowledgement of the transaction is written together with its BEGIN
+    // the frames which cannot be held back, e.g. an UNSUBSCRIBE, are written after the buffered ones, so they
+    // do not overtake the frames sent before them
+    @Override
+    public void send(Frame frame) throws StompException {
+        checkNotNull(frame, "frame cannot be null");
+        if (isBuffering() && isBufferable(frame)) {
+            buffer(Collections.singletonList(frame));
+        } else if (isBuffering() && bufferedFrames.isEmpty() == false) {
+            List<Frame> frames = drainTransactionBuffer();
+            frames.add(frame);
+            super.send(frames);
+            transactionBegun = true;
+        } else if (isBeginDeferred(frame)) {
+            List<Frame> frames = new ArrayList<Frame>(2);
+            frames.add(createBeginFrame());
+            frames.add(frame);
+            super.send(frames);
+            transactionBegun = true;
+        } else {
+            super.send(frame);
+        }
+    }
+
+    // commits the automatic transaction of the batch policy and writes the frames held back in the transaction
+    // begun by the user before the pending frames are flushed
+    @Override
+    public void flush() throws StompException {
+        synchronized (batchLock) {
+            throwScheduledCommitFailure();
+            commitBatch();
+        }
+        if (bufferedFrames.isEmpty() == false) {
+            writeTransactionBuffer();
+        }
+        super.flush();
+    }
+
+    @Override
+    protected void beforeClose() {
+        try {
+            synchronized (batchLock) {
+                commitBatch();
+            }
+        } catch (StompException e) {
+            log.warn("Batch of messages could not be committed before closing the client", e);
+        }
+        super.beforeClose();
     }
 
     // ----------------------------------------------------------------------------------
     // StompTransactionalConnection methods - also transaction-aware :)
     // ----------------------------------------------------------------------------------
+    // the BEGIN frame is deferred until the first message or acknowledgement of the transaction
     public void begin() {
+        assertOperational();
         assertNotInTransaction();
+        synchronized (batchLock) {
+            commitBatch();
+        }
         this.transactionId = UUID.randomUUID().toString();
+        this.transactionBegun = false;
         log.info(String.format("Beginning transaction id=[%s]", transactionId));
-        try {
-            begin(transactionId);
-        } catch (RuntimeException ex) {
-            this.transactionId = null;
-            throw ex;
-        }
     }
 
+    // the decorator may ask for a receipt, so even an empty transaction is sent to the broker
+    // the frames held back in the transaction are discarded
     public void rollback(FrameDecorator frameDecorator) throws StompException {
         assertInTransaction();
+        clearTransactionBuffer();
         Frame frame = new Frame(Command.ABORT);
         frame.transaction(transactionId);
         preprocessor.decorate(frame, frameDecorator);
-        send(frame);
+        sendEnding(frame);
+        endTransaction();
     }
 
     public void rollback() throws StompException {
-        abort(transactionId, emptyDecorator);
+        assertInTransaction();
+        clearTransactionBuffer();
+        if (transactionBegun) {
+            abort(transactionId, emptyDecorator);
+        } else {
+            log.info(String.format("Transaction id=[%s] is empty, nothing to roll back", transactionId));
+        }
+        endTransaction();
     }
 
+    // the decorator may ask for a receipt, so even an empty transaction is sent to the broker
     public void commit(FrameDecorator frameDecorator) throws StompException {
         assertInTransaction();
         Frame frame = new Frame(Command.COMMIT);
         frame.transaction(transactionId);
         preprocessor.decorate(frame, frameDecorator);
-        send(frame);
+        sendEnding(frame);
+        endTransaction();
     }
 
+    // the frames held back in the transaction are written together with the BEGIN and the COMMIT frames
     public void commit() throws StompException {
         assertInTransaction();
-        log.info(String.format("Committing transaction id=[%s]", transactionId));
-        commit(transactionId);
+        if (transactionBegun || bufferedFrames.isEmpty() == false) {
+            log.info(String.format("Committing transaction id=[%s]", transactionId));
+            Frame frame = new Frame(Command.COMMIT);
+            frame.transaction(transactionId);
+            preprocessor.decorate(frame, emptyDecorator);
+            sendEnding(frame);
+        } else {
+            log.info(String.format("Transaction id=[%s] is empty, nothing to commit", transactionId));
+        }
+        endTransaction();
+    }
+
+    // the client may begin the next transaction afterwards
+    private void endTransaction() {
+        this.transactionId = null;
+        this.transactionBegun = false;
+        this.batchTransaction = false;
+        clearTransactionBuffer();
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Deferred BEGIN of the transactions begun by the user
+    // ----------------------------------------------------------------------------------
+    private boolean isBeginDeferred(Frame frame) {
+        Command command = frame.getCommand();
+        return transactionBegun == false && batchTransaction == false && transactionId != null
+                && (Command.SEND.equals(command) || Command.ACK.equals(command))
+                && transactionId.equals(frame.transaction());
+    }
+
+    private Frame createBeginFrame() {
+        Frame frame = new Frame(Command.BEGIN);
+        frame.transaction(transactionId);
+        preprocessor.decorate(frame, emptyDecorator);
+        return frame;
+    }
+
+    // sends the COMMIT or the ABORT frame, preceded by the BEGIN one if it has not been sent yet
+    // and by the frames held back in the transaction
+    private void sendEnding(Frame frame) {
+        List<Frame> frames = drainTransactionBuffer();
+        if (frames.isEmpty()) {
+            super.send(frame);
+        } else {
+            frames.add(frame);
+            super.send(frames);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Transaction buffer - the frames of the transaction begun by the user are written in one go
+    // ----------------------------------------------------------------------------------
+    private boolean isBuffering() {
+        return transactionBufferSize > 0 && isInTransaction();
+    }
+
+    private boolean isInCurrentTransaction(Frame frame) {
+        Command command = frame.getCommand();
+        return (Command.SEND.equals(command) || Command.ACK.equals(command))
+                && transactionId.equals(frame.transaction());
+    }
+
+    // the streamed payload is read while the frame is being sent and the sender may wait for the receipt,
+    // so such frames are written at once
+    private boolean isBufferable(Frame frame) {
+        return isInCurrentTransaction(frame) && frame.hasStreamPayload() == false && frame.receipt() == null;
+    }
+
+    // the buffer is written once its estimated size reaches the limit, the transaction goes on
+    private void buffer(Collection<Frame> frames) {
+        for (Frame frame : frames) {
+            bufferedFrames.add(frame);
+            bufferedBytes += estimateSize(frame);
+        }
+        if (bufferedBytes >= transactionBufferSize) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Transaction buffer of [%d] frames full, transaction id=[%s]",
+                        bufferedFrames.size(), transactionId));
+            }
+            writeTransactionBuffer();
+        }
+    }
+
+    private void writeTransactionBuffer() {
+        super.send(drainTransactionBuffer());
+        transactionBegun = true;
+    }
+
+    // returns the frames held back in the transaction preceded by the BEGIN frame if it has not been sent yet
+    private List<Frame> drainTransactionBuffer() {
+        List<Frame> frames = new ArrayList<Frame>(bufferedFrames.size() + 2);
+        if (transactionBegun == false) {
+            frames.add(createBeginFrame());
+        }
+        frames.addAll(bufferedFrames);
+        clearTransactionBuffer();
+        return frames;
+    }
+
+    private void clearTransactionBuffer() {
+        bufferedFrames.clear();
+        bufferedBytes = 0;
+    }
+
+    // approximate size of the encoded frame, the payload given as a string is counted in chars
+    private static int estimateSize(Frame frame) {
+        int size = frame.getCommandName().length() + 2;
+        for (Header header : frame.getHeaders()) {
+            size += header.getName().length() + header.getValue().length() + 2;
+        }
+        if (frame.hasBinaryPayload()) {
+            size += frame.binaryPayload().remaining();
+        } else if (frame.payload() != null) {
+            size += frame.payload().length();
+        }
+        return size;
+    }
+
+    // ----------------------------------------------------------------------------------
+    // Automatic transactions of the batch policy - always under the batch lock
+    // ----------------------------------------------------------------------------------
+    private boolean isBatching() {
+        return batchPolicy.isDisabled() == false && isInTransaction() == false;
+    }
+
+    private void beginBatch() {
+        throwScheduledCommitFailure();
+        if (batchTransaction) {
+            return;
+        }
+        String batchTransactionId = UUID.randomUUID().toString();
+        begin(batchTransactionId);
+        this.transactionId = batchTransactionId;
+        this.batchTransaction = true;
+        this.batchedMessages = 0;
+        scheduledCommit = TransmissionHandlerImpl.FlushScheduler.schedule(new ScheduledCommit(batchTransactionId),
+                batchPolicy.getMaxDelayInNanos());
+    }
+
+    private void batchSent(int messages) {
+        batchedMessages += messages;
+        if (batchPolicy.isCommitRequired(batchedMessages)) {
+            commitBatch();
+        }
+    }
+
+    private void commitBatch() {
+        if (batchTransaction == false) {
+            return;
+        }
+        if (scheduledCommit != null) {
+            scheduledCommit.cancel(false);
+            scheduledCommit = null;
+        }
+        String batchTransactionId = transactionId;
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Committing batch of [%d] messages, transaction id=[%s]",
+                    batchedMessages, batchTransactionId));
+        }
+        // the client is out of the transaction even if the commit fails
+        endTransaction();
+        commit(batchTransactionId);
+    }
+
+    private void throwScheduledCommitFailure() {
+        if (scheduledCommitFailure != null) {
+            StompException failure = scheduledCommitFailure;
+            scheduledCommitFailure = null;
+            throw failure;
+        }
+    }
+
+    // the failure of the commit is reported to the next caller
+    private class ScheduledCommit implements Runnable {
+        private final String batchTransactionId;
+
+        ScheduledCommit(String batchTransactionId) {
+            this.batchTransactionId = batchTransactionId;
+        }
+
+        public void run() {
+            synchronized (batchLock) {
+                // the batch may have been committed in the meantime
+                if (batchTransaction && batchTransactionId.equals(transactionId)) {
+                    scheduledCommit = null;
+                    try {
+                        commitBatch();
+                    } catch (StompException e) {
+                        scheduledCommitFailure = e;
+                    }
+                }
+            }
+        }
     }
 
     // ----------------------------------------------------------------------------------
     // Helper methods - connection state verification
     // ----------------------------------------------------------------------------------
-    protected boolean isInTransaction() {
-        return this.transactionId != null;
+    // the automatic transactions of the batch policy are not reported - read under the batch lock, as an automatic
+    // transaction may be committed by the flush scheduler in the meantime
+    public boolean isInTransaction() {
+        synchronized (batchLock) {
+            return this.transactionId != null && this.batchTransaction == false;
+        }
     }
 
     protected void assertInTransaction() {
@@ -154,7 +510,12 @@ class TransactionalClientImpl extends ClientImpl implements TransactionalClient
             if (frame.transaction() != null) {
                 throw new StompInvalidHeaderException("TransactionId header can't be set manually in transactional connection");
             }
-            frame.transaction(transactionId);
+            // only the messages are a part of an automatic transaction, which may be committed in the meantime
+            synchronized (batchLock) {
+                if (batchTransaction == false || Command.SEND.equals(frame.getCommand())) {
+                    frame.transaction(transactionId);
+                }
+            }
         }
     }
 
@@ -4,8 +4,12 @@ import org.reficio.cougar.StompConnectionException;
 import org.reficio.cougar.StompEncodingException;
 import org.reficio.cougar.StompException;
 import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.core.FlushPolicy;
+import org.reficio.cougar.core.FrameBuffer;
+import org.reficio.cougar.core.StompByteWireFormat;
 import org.reficio.cougar.core.StompWireFormat;
 import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.core.TransportSettings;
 import org.reficio.cougar.domain.Frame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +18,21 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by IntelliJ IDEA.
@@ -29,11 +48,24 @@ class TransmissionHandlerImpl implements TransmissionHandler {
     protected Socket socket;
     protected Writer writer;
     protected Reader reader;
+    protected ByteFrameReader frameReader;
+    protected OutputStream output;
+    protected FrameBuffer outputBuffer;
     protected StompWireFormat wireFormat;
 
-    private String hostname;
-    private int port;
-    private String encoding;
+    protected String hostname;
+    protected int port;
+    protected String encoding;
+    private Charset charset;
+    private int payloadStreamingThreshold = TransportSettings.STREAMING_DISABLED;
+
+    // the output is accessed by the caller and by the time-bounded flush, always under this lock
+    final Object outputLock = new Object();
+    private FlushPolicy flushPolicy = FlushPolicy.immediate();
+    private FlushDeferringWriter deferringWriter;
+    private int pendingFrames;
+    private ScheduledFuture<?> scheduledFlush;
+    private StompException scheduledFlushFailure;
 
     TransmissionHandlerImpl(StompWireFormat wireFormat, String hostname, int port, String encoding) {
         this.hostname = hostname;
@@ -42,6 +74,12 @@ class TransmissionHandlerImpl implements TransmissionHandler {
         this.wireFormat = wireFormat;
     }
 
+    TransmissionHandlerImpl(TransportSettings settings) {
+        this(settings.getWireFormat(), settings.getHostname(), settings.getPort(), settings.getEncoding());
+        setFlushPolicy(settings.getFlushPolicy());
+        setPayloadStreamingThreshold(settings.getPayloadStreamingThreshold());
+    }
+
     // ----------------------------------------------------------------------------------
     // Communication and socket handlers
     // ----------------------------------------------------------------------------------
@@ -61,17 +99,61 @@ class TransmissionHandlerImpl implements TransmissionHandler {
 
     protected void initializeStreams(int timeout) {
         try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), encoding));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), encoding));
-        } catch (UnsupportedEncodingException e) {
-            throw new StompEncodingException("Error during connection initialization", e);
+            if (isByteWireFormat()) {
+                initializeByteStreams(Channels.newChannel(socket.getInputStream()), socket.getOutputStream());
+            } else {
+                initializeCharStreams(socket.getInputStream(), socket.getOutputStream());
+            }
         } catch (IOException e) {
             throw new StompConnectionException("Error during connection initialization", e);
         }
     }
 
+    protected boolean isByteWireFormat() {
+        return wireFormat instanceof StompByteWireFormat;
+    }
+
+    protected void initializeByteStreams(ReadableByteChannel input, OutputStream output) {
+        charset = getCharset();
+        frameReader = new ByteFrameReader(input, (StompByteWireFormat) wireFormat, charset);
+        frameReader.setStreamingThreshold(payloadStreamingThreshold);
+        // frames are encoded into the buffer and sent with a single write, no need to buffer the stream;
+        // stream payloads are passed to the output in chunks of the buffer size
+        this.output = output;
+        this.outputBuffer = new FrameBuffer(FrameBuffer.DEFAULT_CAPACITY, output);
+    }
+
+    protected void initializeCharStreams(InputStream input, OutputStream output) {
+        try {
+            reader = new BufferedReader(new InputStreamReader(input, encoding));
+            writer = new BufferedWriter(new OutputStreamWriter(output, encoding));
+        } catch (UnsupportedEncodingException e) {
+            throw new StompEncodingException("Error during connection initialization", e);
+        }
+    }
+
+    void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    // payloads of at least that many bytes are received as streams, supported only by the byte wire format
+    void setPayloadStreamingThreshold(int payloadStreamingThreshold) {
+        this.payloadStreamingThreshold = payloadStreamingThreshold;
+    }
+
+    protected Charset getCharset() {
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalCharsetNameException e) {
+            throw new StompEncodingException("Error during connection initialization", e);
+        } catch (UnsupportedCharsetException e) {
+            throw new StompEncodingException("Error during connection initialization", e);
+        }
+    }
+
     public void closeCommunication() {
         try {
+            flushBeforeClose();
             closeStreams();
         } finally {
             closeSocket();
@@ -112,6 +194,8 @@ class TransmissionHandlerImpl implements TransmissionHandler {
         try {
             if (writer != null)
                 writer.close();
+            if (output != null)
+                output.close();
         } catch (IOException e) {
             // Ignore that
         }
@@ -121,7 +205,7 @@ class TransmissionHandlerImpl implements TransmissionHandler {
         if (log.isInfoEnabled()) {
             log.info("Receiving frame: ");
         }
-        Frame frame = wireFormat.unmarshal(reader);
+        Frame frame = (frameReader != null) ? frameReader.read() : wireFormat.unmarshal(reader);
         if (log.isInfoEnabled()) {
             log.info(frame.toString());
         }
@@ -129,10 +213,225 @@ class TransmissionHandlerImpl implements TransmissionHandler {
     }
 
     public void marshall(Frame frame) throws StompException {
+        synchronized (outputLock) {
+            throwScheduledFlushFailure();
+            write(frame);
+            if (flushPolicy.isFlushRequired(pendingFrames, getPendingBytes())) {
+                flushOutput();
+            } else if (flushPolicy.isTimeBounded() && scheduledFlush == null) {
+                ScheduledFlush task = new ScheduledFlush();
+                scheduledFlush = FlushScheduler.schedule(task, flushPolicy.getMaxDelayInNanos());
+                task.future = scheduledFlush;
+            }
+        }
+    }
+
+    // the byte wire format encodes the batch into the output buffer, which is written with a single write
+    public void marshall(Collection<Frame> frames) throws StompException {
+        synchronized (outputLock) {
+            throwScheduledFlushFailure();
+            for (Frame frame : frames) {
+                write(frame);
+            }
+            flushOutput();
+        }
+    }
+
+    public void flush() {
+        synchronized (outputLock) {
+            throwScheduledFlushFailure();
+            flushOutput();
+        }
+    }
+
+    // has to be called under the output lock
+    void write(Frame frame) {
+        if (log.isInfoEnabled()) {
+            log.info("Sending frame: \n" + frame);
+        }
+        if (outputBuffer != null) {
+            marshallBytes(frame);
+        } else {
+            wireFormat.marshal(frame, getDeferringWriter());
+        }
+        pendingFrames++;
+    }
+
+    private void marshallBytes(Frame frame) {
+        int mark = outputBuffer.size();
+        long bytesPassed = outputBuffer.getBytesPassedToSink();
+        try {
+            ((StompByteWireFormat) wireFormat).marshal(frame, outputBuffer, charset);
+        } catch (RuntimeException e) {
+            discardPartialFrame(mark, bytesPassed, pendingFrames);
+            throw e;
+        }
+    }
+
+    // has to be called under the output lock - the frame is encoded without its binary payload, which belongs
+    // at the returned offset of the output buffer
+    int writeWithoutPayload(Frame frame) {
         if (log.isInfoEnabled()) {
             log.info("Sending frame: \n" + frame);
         }
-        wireFormat.marshal(frame, writer);
+        ((StompByteWireFormat) wireFormat).marshalHeaders(frame, outputBuffer, charset);
+        int payloadOffset = outputBuffer.size();
+        outputBuffer.put((byte) WireFormatImpl.END_OF_FRAME);
+        pendingFrames++;
+        return payloadOffset;
+    }
+
+    // has to be called under the output lock
+    int getPendingFrames() {
+        return pendingFrames;
+    }
+
+    // has to be called under the output lock - the pending frames are written by the caller
+    void takePendingOutput() {
+        cancelScheduledFlush();
+        pendingFrames = 0;
+    }
+
+    // a partially encoded frame must not be prepended to the next one, the pending frames are still sent
+    // by the next flush - unless a part of the stream payload has already been passed to the output with them
+    void discardPartialFrame(int mark, long bytesPassed, int pendingFramesAtMark) {
+        if (outputBuffer.getBytesPassedToSink() == bytesPassed) {
+            outputBuffer.truncate(mark);
+            pendingFrames = pendingFramesAtMark;
+        } else {
+            outputBuffer.clear();
+            pendingFrames = 0;
+        }
+    }
+
+    private FlushDeferringWriter getDeferringWriter() {
+        if (deferringWriter == null || deferringWriter.isWrapping(writer) == false) {
+            deferringWriter = new FlushDeferringWriter(writer);
+        }
+        return deferringWriter;
+    }
+
+    private int getPendingBytes() {
+        if (outputBuffer != null) {
+            return outputBuffer.size();
+        }
+        return (deferringWriter != null) ? deferringWriter.getPendingChars() : 0;
+    }
+
+    // has to be called under the output lock
+    void flushOutput() {
+        cancelScheduledFlush();
+        if (pendingFrames == 0) {
+            return;
+        }
+        pendingFrames = 0;
+        try {
+            if (outputBuffer != null) {
+                outputBuffer.writeTo(output);
+            } else {
+                getDeferringWriter().flushTarget();
+            }
+        } catch (IOException e) {
+            if (outputBuffer != null) {
+                outputBuffer.clear();
+            }
+            throw new StompIOException("Error during data send", e);
+        }
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    void throwScheduledFlushFailure() {
+        if (scheduledFlushFailure != null) {
+            StompException failure = scheduledFlushFailure;
+            scheduledFlushFailure = null;
+            throw failure;
+        }
+    }
+
+    private void flushBeforeClose() {
+        try {
+            synchronized (outputLock) {
+                flushOutput();
+            }
+        } catch (StompException e) {
+            log.warn("Pending frames could not be sent before closing the connection", e);
+        }
+    }
+
+    // the failure of the time-bounded flush is reported to the next caller
+    private class ScheduledFlush implements Runnable {
+        // assigned under the output lock, before the task may run
+        private ScheduledFuture<?> future;
+
+        public void run() {
+            synchronized (outputLock) {
+                // cancelled once handed over - the frames have been flushed already and the flush scheduled
+                // for the next ones must not be forgotten
+                if (scheduledFlush != future) {
+                    return;
+                }
+                scheduledFlush = null;
+                try {
+                    flushOutput();
+                } catch (StompException e) {
+                    scheduledFlushFailure = e;
+                }
+            }
+        }
+    }
+
+    // single daemon timer thread shared by all the connections with the time-bounded flush, the deferred ack policy
+    // or the batch policy - the tasks write to the connections, which may block, so the timer only hands them over
+    // to the daemon writer threads, a connection stalled by its peer does not hold up the deferred writes of the others
+    static class FlushScheduler {
+        private static final AtomicInteger writerCounter = new AtomicInteger();
+
+        private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "cougar-flush-scheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        // the writer threads are bounded - once all of them are held up by stalled peers, the tasks handed over
+        // are not queued behind them, but handed over again after the retry delay
+        static final int MAX_WRITERS = 32;
+        static final long RETRY_DELAY_IN_MILLIS = 10;
+
+        private static final ThreadPoolExecutor writers = new ThreadPoolExecutor(0, MAX_WRITERS,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "cougar-deferred-writer-" + writerCounter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        scheduler.schedule(handOver(task), RETRY_DELAY_IN_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                });
+
+        // a task cancelled once handed over is still run, so it has to check whether there is anything to write
+        static ScheduledFuture<?> schedule(final Runnable task, long delayInNanos) {
+            return scheduler.schedule(handOver(task), delayInNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private static Runnable handOver(final Runnable task) {
+            return new Runnable() {
+                public void run() {
+                    writers.execute(task);
+                }
+            };
+        }
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.core.TransportFactory;
+import org.reficio.cougar.core.TransportSettings;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Factory of the transports that may be passed to the ConnectionBuilder.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class Transports {
+
+    private static final TransportFactory SOCKET = new TransportFactory() {
+        public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+            return new TransmissionHandlerImpl(settings);
+        }
+    };
+
+    private static final TransportFactory SOCKET_CHANNEL = new TransportFactory() {
+        public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+            return new SocketChannelTransmissionHandler(settings);
+        }
+    };
+
+    private static final TransportFactory IN_VM = new TransportFactory() {
+        public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+            return new InVmTransmissionHandler(settings);
+        }
+    };
+
+    private Transports() {
+    }
+
+    // blocking java.net.Socket - used by default
+    public static TransportFactory socket() {
+        return SOCKET;
+    }
+
+    // NIO SocketChannel in the non-blocking mode
+    public static TransportFactory socketChannel() {
+        return SOCKET_CHANNEL;
+    }
+
+    // endpoint registered in the InVmEndpoints under the name passed as the hostname
+    public static TransportFactory inVm() {
+        return IN_VM;
+    }
+
+    // non-blocking SocketChannel served by a thread of the group - requires the byte wire format
+    public static TransportFactory eventLoop(final EventLoopGroup group) {
+        checkNotNull(group, "group cannot be null");
+        return new TransportFactory() {
+            public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+                return new EventLoopTransmissionHandler(settings, group.next());
+            }
+        };
+    }
+
+}
@@ -18,6 +18,7 @@
 package org.reficio.cougar.impl;
 
 import org.apache.commons.lang.StringUtils;
+import org.reficio.cougar.StompEncodingException;
 import org.reficio.cougar.StompIOException;
 import org.reficio.cougar.StompSocketTimeoutException;
 import org.reficio.cougar.StompWireFormatException;
@@ -71,6 +72,10 @@ class WireFormatImpl implements StompWireFormat {
 
     @Override
     public void marshal(Frame frame, Writer output) {
+        if (frame.hasBinaryPayload() || frame.hasStreamPayload()) {
+            // bytes cannot be passed through the writer unchanged
+            throw new StompEncodingException("Binary and stream payloads can be sent only using the byte wire format");
+        }
         StringBuilder builder = new StringBuilder();
         // command name followed by new line
 		builder.append(frame.getCommandName());
@@ -146,7 +151,7 @@ class WireFormatImpl implements StompWireFormat {
         return headers;
     }
 
-    private Integer parseContentLength(Map<String, Header> headers) {
+    Integer parseContentLength(Map<String, Header> headers) {
         Header contentLengthHeader = headers.get(HeaderType.CONTENT_LENGTH.getName());
         try {
             return contentLengthHeader != null ? Integer.parseInt(contentLengthHeader.getValue()) : null;
@@ -156,13 +161,28 @@ class WireFormatImpl implements StompWireFormat {
         }
     }
 
+    // the content-length is the number of the UTF-8 bytes of the payload, as set by the frame builder
     private String parsePayload(Reader input, Integer contentLength) {
         try {
             if (contentLength != null) {
-                char[] payloadChars = new char[contentLength];
-                int charsRead = input.read(payloadChars, 0, contentLength);
-                if(charsRead != contentLength) {
-                    throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value TOO BIG.");
+                StringBuilder payload = new StringBuilder(Math.min(contentLength, AVG_PAYLOAD_SIZE));
+                char[] chunk = new char[Math.max(1, Math.min(contentLength, AVG_PAYLOAD_SIZE))];
+                int bytesRead = 0;
+                while (bytesRead < contentLength) {
+                    // at most 3 bytes per char, so the payload is never read beyond its end - a single read may
+                    // return only the chars that have arrived so far
+                    int maxChars = Math.min(chunk.length, Math.max(1, (contentLength - bytesRead) / 3));
+                    int count = input.read(chunk, 0, maxChars);
+                    if (count < 0) {
+                        throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value TOO BIG.");
+                    }
+                    for (int index = 0; index < count; index++) {
+                        bytesRead += utf8Length(chunk[index]);
+                    }
+                    payload.append(chunk, 0, count);
+                }
+                if (bytesRead > contentLength) {
+                    throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value splits a character.");
                 }
                 int nextByte = input.read();
                 if(nextByte < 0) {
@@ -171,7 +191,7 @@ class WireFormatImpl implements StompWireFormat {
                 if(nextByte!=END_OF_FRAME) {
                     throw new StompWireFormatException("Mismatch during content read. Wrong content-length header! Content-length header value TOO SMALL.");
                 }
-                return new String(payloadChars);
+                return payload.toString();
             } else {
                 return readUntilEndMarker(input, MAX_PAYLOAD_LENGTH, END_OF_FRAME, "Error during payload parsing", false);
             }
@@ -180,6 +200,16 @@ class WireFormatImpl implements StompWireFormat {
         }
     }
 
+    // a surrogate pair is encoded as 4 bytes
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+            return 2;
+        }
+        return 3;
+    }
+
     private String readUntilEndMarker(Reader input, int maxLength, char endMarker, String errorMessage, boolean skipLeadingEndMarkers) {
        int currentByte;
        try {
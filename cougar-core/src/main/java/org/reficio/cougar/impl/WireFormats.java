@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.core.StompByteWireFormat;
+import org.reficio.cougar.core.StompFrameDecoder;
+import org.reficio.cougar.core.StompWireFormat;
+
+import java.nio.charset.Charset;
+
+/**
+ * Factory of the wire formats that may be passed to the ConnectionBuilder.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+public final class WireFormats {
+
+    private WireFormats() {
+    }
+
+    // char-oriented codec working on top of the Reader/Writer - used by default
+    public static StompWireFormat text() {
+        return new WireFormatImpl();
+    }
+
+    // byte-oriented codec working on top of the ByteBuffer
+    public static StompByteWireFormat bytes() {
+        return new ByteWireFormatImpl();
+    }
+
+    // incremental decoder of the byte-oriented format for the non-blocking I/O - one per connection
+    public static StompFrameDecoder decoder(Charset charset) {
+        return new FrameDecoderImpl(new ByteWireFormatImpl(), charset);
+    }
+
+}
@@ -21,6 +21,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.reficio.cougar.StompEncodingException;
+import org.reficio.cougar.core.AckPolicy;
 import org.reficio.cougar.core.FrameDecorator;
 import org.reficio.cougar.domain.Command;
 import org.reficio.cougar.domain.Frame;
@@ -28,7 +29,11 @@ import org.reficio.cougar.impl.IMockMessageHandler;
 import org.reficio.cougar.impl.MockConnectionBuilder;
 import org.reficio.cougar.impl.MockClientImpl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -47,7 +52,10 @@ public class ConnectionTest {
 
     @Before
     public void initialize() {
-        connection = MockConnectionBuilder.mockConnection().build();
+        connection = connect(MockConnectionBuilder.mockConnection().build());
+    }
+
+    private MockClientImpl connect(MockClientImpl connection) {
         // register handlers
         connection.getStub().getServer().registerHandler(Command.CONNECT, new IMockMessageHandler() {
             @Override
@@ -69,6 +77,17 @@ public class ConnectionTest {
         // initialize the connection
         // connection.init("localhost", 61613, "user", "pass", "UTF-8");
         connection.connect();
+        return connection;
+    }
+
+    private List<String> ackedMessageIds(MockClientImpl connection) {
+        List<String> messageIds = new ArrayList<String>();
+        for (Frame frame : connection.getServer().getFrames()) {
+            if (frame.getCommand().equals(Command.ACK)) {
+                messageIds.add(frame.messageId());
+            }
+        }
+        return messageIds;
     }
 
     @After
@@ -112,6 +131,66 @@ public class ConnectionTest {
         assertEquals(frame.messageId(), "msg1");
     }
 
+    @Test
+    public void ackCumulative() {
+        connection = connect(MockConnectionBuilder.mockConnection()
+                .ackPolicy(AckPolicy.cumulative(3, 1, TimeUnit.HOURS)).build());
+        for (int i = 1; i <= 4; i++) {
+            connection.ack("msg" + i);
+        }
+        connection.close();
+        // the third one acknowledges the first two, the last one is sent on close
+        assertEquals(Arrays.asList("msg3", "msg4"), ackedMessageIds(connection));
+    }
+
+    @Test
+    public void ackCumulativePerSubscription() {
+        connection = connect(MockConnectionBuilder.mockConnection()
+                .ackPolicy(AckPolicy.cumulative(4, 1, TimeUnit.HOURS)).build());
+        String[][] messages = {{"sub1", "msg1"}, {"sub2", "msg2"}, {"sub1", "msg3"}, {"sub2", "msg4"}};
+        for (String[] message : messages) {
+            Frame frame = new Frame(Command.MESSAGE);
+            frame.subscription(message[0]);
+            frame.messageId(message[1]);
+            connection.getServer().send(frame);
+        }
+        for (int i = 0; i < messages.length; i++) {
+            connection.ack(connection.receive(5000).messageId());
+        }
+        connection.close();
+        // the last message of every subscription is acknowledged
+        assertEquals(Arrays.asList("msg3", "msg4"), ackedMessageIds(connection));
+    }
+
+    @Test
+    public void ackIndividualPipelined() {
+        connection = connect(MockConnectionBuilder.mockConnection()
+                .ackPolicy(AckPolicy.individual(3, 1, TimeUnit.HOURS)).build());
+        connection.ack("msg1");
+        connection.ack("msg2");
+        connection.unsubscribe("sub1");
+        connection.ack("msg3");
+        connection.close();
+        List<Frame> frames = connection.getServer().getFrames();
+        assertEquals(Arrays.asList("msg1", "msg2", "msg3"), ackedMessageIds(connection));
+        // sent before the unsubscribe
+        assertEquals(Command.UNSUBSCRIBE, frames.get(3).getCommand());
+    }
+
+    @Test
+    public void ackSentAfterMaxDelay() throws InterruptedException {
+        connection = connect(MockConnectionBuilder.mockConnection()
+                .ackPolicy(AckPolicy.cumulative(100, 50, TimeUnit.MILLISECONDS)).build());
+        connection.ack("msg1");
+        connection.ack("msg2");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ackedMessageIds(connection).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("msg2"), ackedMessageIds(connection));
+        connection.close();
+    }
+
     @Test
     public void subscribe() {
         connection.subscribe("queue1");
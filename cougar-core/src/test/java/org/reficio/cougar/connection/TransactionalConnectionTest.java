@@ -24,6 +24,7 @@ import org.reficio.cougar.StompConnectionException;
 import org.reficio.cougar.StompIllegalTransactionStateException;
 import org.reficio.cougar.StompInvalidHeaderException;
 import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.core.TransactionBatchPolicy;
 import org.reficio.cougar.domain.Ack;
 import org.reficio.cougar.domain.Command;
 import org.reficio.cougar.domain.Frame;
@@ -31,11 +32,17 @@ import org.reficio.cougar.impl.IMockMessageHandler;
 import org.reficio.cougar.impl.MockConnectionBuilder;
 import org.reficio.cougar.impl.MockTransactionalClientImpl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * User: Tom Bujok (tom.bujok@reficio.org)
@@ -58,9 +65,12 @@ public class TransactionalConnectionTest {
 
     @Before
     public void initialize() {
-        txClient = MockConnectionBuilder.mockTransactionalConnection().hostname("localhost")
-                .port(61613).timeout(1000).build();
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection().hostname("localhost")
+                .port(61613).timeout(1000).build());
         decorator = new EmptyDecorator();
+    }
+
+    private MockTransactionalClientImpl connect(MockTransactionalClientImpl txClient) {
         // register handlers
         txClient.getStub().getServer().registerHandler(Command.CONNECT, new IMockMessageHandler() {
             @Override
@@ -91,6 +101,15 @@ public class TransactionalConnectionTest {
         });
         // initialize the txClient
         txClient.connect();
+        return txClient;
+    }
+
+    private List<Command> commands(List<Frame> frames) {
+        List<Command> commands = new ArrayList<Command>();
+        for (Frame frame : frames) {
+            commands.add(frame.getCommand());
+        }
+        return commands;
     }
 
     @After
@@ -129,6 +148,161 @@ public class TransactionalConnectionTest {
         assertEquals(Command.DISCONNECT, disconnect.getCommand());
     }
 
+    @Test
+    public void batchSendInTransaction() {
+        txClient.begin();
+        List<Frame> batch = new ArrayList<Frame>();
+        for (int i = 0; i < 3; i++) {
+            Frame frame = new Frame(Command.SEND);
+            frame.destination("queue1");
+            frame.payload("msg" + i);
+            batch.add(frame);
+        }
+        txClient.send(batch);
+        txClient.commit();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(7, frames.size());
+        String transactionId = frames.get(1).transaction();
+        assertNotNull(transactionId);
+        for (int i = 0; i < 3; i++) {
+            Frame send = frames.get(2 + i);
+            assertEquals(Command.SEND, send.getCommand());
+            assertEquals(transactionId, send.transaction());
+            assertEquals("msg" + i, send.payload());
+        }
+        assertEquals(Command.COMMIT, frames.get(5).getCommand());
+    }
+
+    @Test
+    public void sendsBatchedIntoTransactions() {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection()
+                .transactionBatchPolicy(TransactionBatchPolicy.batched(2, 1, TimeUnit.HOURS)).build());
+        for (int i = 0; i < 3; i++) {
+            txClient.send("queue1", decorator);
+        }
+        assertFalse(txClient.isInTransaction());
+        txClient.flush();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.BEGIN, Command.SEND, Command.SEND, Command.COMMIT,
+                Command.BEGIN, Command.SEND, Command.COMMIT, Command.DISCONNECT), commands(frames));
+        assertEquals(frames.get(1).transaction(), frames.get(3).transaction());
+        assertEquals(frames.get(1).transaction(), frames.get(4).transaction());
+        assertEquals(frames.get(5).transaction(), frames.get(7).transaction());
+    }
+
+    @Test
+    public void batchCommittedBeforeExplicitTransaction() {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection()
+                .transactionBatchPolicy(TransactionBatchPolicy.batched(10, 1, TimeUnit.HOURS)).build());
+        txClient.send("queue1", decorator);
+        txClient.ack("msg1");
+        txClient.begin();
+        txClient.send("queue1", decorator);
+        txClient.commit();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.BEGIN, Command.SEND, Command.ACK, Command.COMMIT,
+                Command.BEGIN, Command.SEND, Command.COMMIT, Command.DISCONNECT), commands(frames));
+        // the acknowledgement is not a part of the batch
+        assertNull(frames.get(3).transaction());
+        assertEquals(frames.get(5).transaction(), frames.get(6).transaction());
+    }
+
+    @Test
+    public void bufferedTransactionWrittenOnCommit() {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection().transactionBufferSize(65536).build());
+        txClient.begin();
+        txClient.send("queue1", decorator);
+        txClient.ack("msg1");
+        txClient.send("queue1", decorator);
+        txClient.commit();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.BEGIN, Command.SEND, Command.ACK, Command.SEND,
+                Command.COMMIT, Command.DISCONNECT), commands(frames));
+        for (int i = 2; i < 6; i++) {
+            assertEquals(frames.get(1).transaction(), frames.get(i).transaction());
+        }
+    }
+
+    @Test
+    public void bufferedTransactionDiscardedOnRollback() {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection().transactionBufferSize(65536).build());
+        txClient.begin();
+        txClient.send("queue1", decorator);
+        txClient.ack("msg1");
+        txClient.rollback();
+        assertFalse(txClient.isInTransaction());
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.DISCONNECT), commands(frames));
+    }
+
+    @Test
+    public void bufferedTransactionWrittenBeforeOtherFrames() throws InterruptedException {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection().transactionBufferSize(65536).build());
+        txClient.begin();
+        txClient.send("queue1", decorator);
+        txClient.unsubscribe("sub1");
+        txClient.send("queue1", decorator);
+        txClient.subscribe("sub2", "queue2");
+        txClient.commit();
+        txClient.close();
+        // the close returns once the MESSAGE sent in response to the SUBSCRIBE has been read, the server may not
+        // have processed the last frames yet
+        long deadline = System.currentTimeMillis() + 5000;
+        while (txClient.getServer().getLastFrameOfType(Command.DISCONNECT) == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.BEGIN, Command.SEND, Command.UNSUBSCRIBE, Command.SEND,
+                Command.SUBSCRIBE, Command.COMMIT, Command.DISCONNECT), commands(frames));
+        assertNull(frames.get(3).transaction());
+        assertEquals(frames.get(1).transaction(), frames.get(4).transaction());
+    }
+
+    @Test
+    public void bufferedTransactionWrittenWhenFull() {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection().transactionBufferSize(250).build());
+        final char[] payload = new char[60];
+        Arrays.fill(payload, 'x');
+        FrameDecorator payloadDecorator = new FrameDecorator() {
+            @Override
+            public void decorateFrame(Frame frame) {
+                frame.payload(new String(payload));
+            }
+        };
+        txClient.begin();
+        txClient.send("queue1", payloadDecorator);
+        txClient.send("queue1", payloadDecorator);
+        // the buffer has been written, the transaction goes on
+        assertTrue(txClient.isInTransaction());
+        txClient.send("queue1", payloadDecorator);
+        txClient.rollback();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        // the last message is discarded, the written ones are aborted
+        assertEquals(Arrays.asList(Command.CONNECT, Command.BEGIN, Command.SEND, Command.SEND, Command.ABORT,
+                Command.DISCONNECT), commands(frames));
+        assertEquals(frames.get(1).transaction(), frames.get(4).transaction());
+    }
+
+    @Test
+    public void batchCommittedAfterMaxDelay() throws InterruptedException {
+        txClient = connect(MockConnectionBuilder.mockTransactionalConnection()
+                .transactionBatchPolicy(TransactionBatchPolicy.batched(10, 50, TimeUnit.MILLISECONDS)).build());
+        txClient.send("queue1", decorator);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (txClient.getServer().getLastFrameOfType(Command.COMMIT) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(txClient.getServer().getLastFrameOfType(Command.COMMIT));
+        txClient.close();
+    }
+
     @Test
     public void send() {
         final String payload = "msg1";
@@ -181,10 +355,16 @@ public class TransactionalConnectionTest {
     public void beginComit() {
         final String payload = "msg1";
         txClient.begin();
+        txClient.send("queue1", new FrameDecorator() {
+            @Override
+            public void decorateFrame(Frame frame) {
+                frame.payload(payload);
+            }
+        });
         txClient.commit();
         txClient.close();
         List<Frame> frames = txClient.getServer().getFrames();
-        assertEquals(4, frames.size());
+        assertEquals(5, frames.size());
         // connect
         Frame connect = frames.get(0);
         assertEquals(Command.CONNECT, connect.getCommand());
@@ -193,12 +373,16 @@ public class TransactionalConnectionTest {
         assertEquals(Command.BEGIN, begin.getCommand());
         assertNotNull(begin.transaction());
         String transactionId = begin.transaction();
+        // send
+        Frame send = frames.get(2);
+        assertEquals(Command.SEND, send.getCommand());
+        assertEquals(transactionId, send.transaction());
         // commit
-        Frame commit = frames.get(2);
+        Frame commit = frames.get(3);
         assertEquals(Command.COMMIT, commit.getCommand());
         assertEquals(transactionId, commit.transaction());
         // disconnect
-        Frame disconnect = frames.get(3);
+        Frame disconnect = frames.get(4);
         assertEquals(Command.DISCONNECT, disconnect.getCommand());
     }
 
@@ -232,10 +416,16 @@ public class TransactionalConnectionTest {
     public void beginAbort() {
         final String payload = "msg1";
         txClient.begin();
+        txClient.send("queue1", new FrameDecorator() {
+            @Override
+            public void decorateFrame(Frame frame) {
+                frame.payload(payload);
+            }
+        });
         txClient.rollback();
         txClient.close();
         List<Frame> frames = txClient.getServer().getFrames();
-        assertEquals(4, frames.size());
+        assertEquals(5, frames.size());
         // connect
         Frame connect = frames.get(0);
         assertEquals(Command.CONNECT, connect.getCommand());
@@ -244,12 +434,16 @@ public class TransactionalConnectionTest {
         assertEquals(Command.BEGIN, begin.getCommand());
         assertNotNull(begin.transaction());
         String transactionId = begin.transaction();
+        // send
+        Frame send = frames.get(2);
+        assertEquals(Command.SEND, send.getCommand());
+        assertEquals(transactionId, send.transaction());
         // abort
-        Frame abort = frames.get(2);
+        Frame abort = frames.get(3);
         assertEquals(Command.ABORT, abort.getCommand());
         assertEquals(transactionId, abort.transaction());
         // disconnect
-        Frame disconnect = frames.get(3);
+        Frame disconnect = frames.get(4);
         assertEquals(Command.DISCONNECT, disconnect.getCommand());
     }
 
@@ -279,6 +473,30 @@ public class TransactionalConnectionTest {
     }
 
 
+    @Test
+    public void emptyTransactionNotSent() {
+        txClient.begin();
+        txClient.commit();
+        txClient.begin();
+        txClient.rollback();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.DISCONNECT), commands(frames));
+    }
+
+    @Test
+    public void beginSentWithFirstAck() {
+        txClient.begin();
+        txClient.ack("msg1");
+        txClient.ack("msg2");
+        txClient.commit();
+        txClient.close();
+        List<Frame> frames = txClient.getServer().getFrames();
+        assertEquals(Arrays.asList(Command.CONNECT, Command.BEGIN, Command.ACK, Command.ACK, Command.COMMIT,
+                Command.DISCONNECT), commands(frames));
+        assertEquals(frames.get(1).transaction(), frames.get(2).transaction());
+    }
+
     @Test(expected = StompIllegalTransactionStateException.class)
     public void doubleBegin() {
         txClient.begin();
@@ -290,6 +508,20 @@ public class TransactionalConnectionTest {
         txClient.commit();
     }
 
+    @Test
+    public void transactionEndsOnCommitAndRollback() {
+        txClient.begin();
+        assertTrue(txClient.isInTransaction());
+        txClient.commit();
+        assertFalse(txClient.isInTransaction());
+        txClient.begin();
+        txClient.rollback();
+        assertFalse(txClient.isInTransaction());
+        txClient.begin();
+        txClient.commit(decorator);
+        assertFalse(txClient.isInTransaction());
+    }
+
     @Test(expected = StompConnectionException.class)
     public void txUninitializedConnection() {
         MockTransactionalClientImpl conn = MockConnectionBuilder.mockTransactionalConnection().build();
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class FrameBufferTest {
+
+    private static final String[] SAMPLES = {
+            "",
+            "test_payload",
+            "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144",
+            "\u20ac \u4e2d\u6587 \ud83d\ude00",
+            "unpaired \ud83d surrogate \ude00",
+    };
+
+    @Test
+    public void putStringSameAsGetBytes() {
+        for (String charsetName : new String[]{"UTF-8", "US-ASCII", "ISO-8859-1", "UTF-16"}) {
+            Charset charset = Charset.forName(charsetName);
+            for (String sample : SAMPLES) {
+                FrameBuffer buffer = new FrameBuffer(4);
+                buffer.put(sample, charset);
+                assertArrayEquals(charsetName + " " + sample, sample.getBytes(charset), buffer.toByteArray());
+                assertEquals(sample.getBytes(charset).length, FrameBuffer.encodedLength(sample, charset));
+            }
+        }
+    }
+
+    @Test
+    public void putUtf8GrowsToEncodedLength() {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            payload.append(i % 2 == 0 ? "a" : "\u0105");
+        }
+        FrameBuffer buffer = new FrameBuffer(16);
+        buffer.put(payload.toString(), Charset.forName("UTF-8"));
+        assertEquals(15000, buffer.size());
+        assertEquals(15000, buffer.capacity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void growthBeyondMaxCapacity() throws IOException {
+        FrameBuffer buffer = new FrameBuffer(1);
+        buffer.put((byte) 1).put(new ByteArrayInputStream(new byte[0]), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void putDecimal() {
+        FrameBuffer buffer = new FrameBuffer(1);
+        buffer.putDecimal(0).put((byte) ' ').putDecimal(7).put((byte) ' ').putDecimal(1234567890L);
+        assertEquals("0 7 1234567890", new String(buffer.toByteArray(), Charset.forName("US-ASCII")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putNegativeDecimal() {
+        new FrameBuffer().putDecimal(-1);
+    }
+
+    @Test
+    public void putBytes() {
+        FrameBuffer buffer = new FrameBuffer(2);
+        buffer.put((byte) 1).put(new byte[]{2, 3}).put(new byte[]{0, 4, 5, 0}, 1, 2).put(ByteBuffer.wrap(new byte[]{6}));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, buffer.toByteArray());
+        assertEquals(6, buffer.size());
+    }
+
+    @Test
+    public void writeToClearsBuffer() throws IOException {
+        FrameBuffer buffer = new FrameBuffer();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        buffer.put("first", Charset.forName("UTF-8"));
+        buffer.writeTo(output);
+        assertTrue(buffer.isEmpty());
+        buffer.put("second", Charset.forName("UTF-8"));
+        buffer.writeTo(Channels.newChannel(output));
+        assertTrue(buffer.isEmpty());
+        assertEquals("firstsecond", output.toString("UTF-8"));
+    }
+
+    @Test
+    public void putStreamThroughSink() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        FrameBuffer buffer = new FrameBuffer(8, sink);
+        byte[] payload = new byte[100];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        buffer.put((byte) 7).put(new ByteArrayInputStream(payload), 99);
+        assertTrue(buffer.size() <= 8);
+        buffer.writeTo(sink);
+        byte[] written = sink.toByteArray();
+        assertEquals(100, written.length);
+        assertEquals(7, written[0]);
+        assertEquals(98, written[99]);
+    }
+
+    @Test
+    public void putStreamWithoutSinkGrows() throws IOException {
+        FrameBuffer buffer = new FrameBuffer(8);
+        buffer.put(new ByteArrayInputStream(new byte[100]), 100);
+        assertEquals(100, buffer.size());
+    }
+
+    @Test(expected = EOFException.class)
+    public void putStreamShorterThanLength() throws IOException {
+        new FrameBuffer().put(new ByteArrayInputStream(new byte[10]), 11);
+    }
+
+    @Test
+    public void clearReleasesLargeBuffer() {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.put(new byte[FrameBuffer.MAX_RETAINED_CAPACITY + 1]);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        buffer.put((byte) 1);
+        assertArrayEquals(new byte[]{1}, buffer.toByteArray());
+    }
+
+}
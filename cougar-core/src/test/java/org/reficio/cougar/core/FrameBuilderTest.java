@@ -21,6 +21,10 @@ import org.junit.Test;
 import org.reficio.cougar.StompInvalidHeaderException;
 import org.reficio.cougar.domain.*;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
 import static org.junit.Assert.*;
 
 /**
@@ -192,5 +196,81 @@ public class FrameBuilderTest {
 
     }
 
+    @Test
+    public void binaryPayload() {
+        Frame frame = new Frame(Command.SEND);
+        frame.binaryPayload(new byte[]{0, 1, 2, (byte) 0xFF});
+        assertTrue(frame.hasBinaryPayload());
+        assertEquals("4", frame.contentLength());
+        assertArrayEquals(new byte[]{0, 1, 2, (byte) 0xFF}, frame.binaryPayloadBytes());
+        assertEquals(4, frame.binaryPayload().remaining());
+
+        frame.payload("payload");
+        assertFalse(frame.hasBinaryPayload());
+        assertNull(frame.binaryPayload());
+        assertNull(frame.binaryPayloadBytes());
+        assertEquals("7", frame.contentLength());
+
+        frame.binaryPayload((byte[]) null);
+        assertFalse(frame.hasBinaryPayload());
+        assertNull(frame.payload());
+        assertNull(frame.contentLength());
+    }
+
+    @Test
+    public void binaryPayloadContentLengthInBytes() {
+        Frame frame = new Frame(Command.SEND);
+        frame.binaryPayload("za\u017c\u00f3\u0142\u0107".getBytes(FrameBuilder.DEFAULT_PAYLOAD_CHARSET));
+        assertEquals("10", frame.contentLength());
+        assertEquals("za\u017c\u00f3\u0142\u0107", frame.payload());
+    }
+
+    @Test
+    public void binaryPayloadFromByteBufferRemaining() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5});
+        buffer.position(1).limit(4);
+        Frame frame = new Frame(Command.SEND);
+        frame.binaryPayload(buffer);
+        assertEquals("3", frame.contentLength());
+        assertArrayEquals(new byte[]{2, 3, 4}, frame.binaryPayloadBytes());
+        // the buffer passed by the user is not modified
+        assertEquals(1, buffer.position());
+        // consuming the returned view does not consume the payload
+        frame.binaryPayload().get();
+        assertEquals(3, frame.binaryPayload().remaining());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void binaryPayloadReadOnly() {
+        Frame frame = new Frame(Command.SEND);
+        frame.binaryPayload(new byte[]{1});
+        frame.binaryPayload().put(0, (byte) 2);
+    }
+
+    @Test
+    public void streamPayload() {
+        Frame frame = new Frame(Command.SEND);
+        frame.binaryPayload(new byte[]{1});
+        frame.streamPayload(new ByteArrayInputStream(new byte[]{1, 2, 3}), 3);
+        assertTrue(frame.hasStreamPayload());
+        assertFalse(frame.hasBinaryPayload());
+        assertNull(frame.payload());
+        assertEquals("3", frame.contentLength());
+        assertEquals(3, frame.payloadStreamLength());
+
+        frame.payload("payload");
+        assertFalse(frame.hasStreamPayload());
+        assertNull(frame.payloadStream());
+        assertEquals("payload", frame.payload());
+    }
+
+    @Test
+    public void binaryPayloadWithoutContentLength() {
+        Frame frame = new Frame(Command.SEND);
+        frame.binaryPayload(new byte[]{1}, true);
+        assertNull(frame.contentLength());
+        assertTrue(frame.hasBinaryPayload());
+    }
+
 
 }
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.factory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.connection.Connection;
+import org.reficio.cougar.connection.ConnectionFactory;
+import org.reficio.cougar.core.StompResourceState;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.impl.ConnectionBuilder;
+import org.reficio.cougar.impl.EchoServer;
+import org.reficio.cougar.impl.InVmEndpoints;
+import org.reficio.cougar.impl.Transports;
+
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class PooledConnectionFactoryTest {
+
+    private static final String ENDPOINT = "pooled-connection-factory-test";
+
+    private final AtomicInteger created = new AtomicInteger();
+    private PooledConnectionFactory<Connection> pool;
+
+    @Before
+    public void initialize() {
+        InVmEndpoints.bind(ENDPOINT, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+                EchoServer.start(Channels.newInputStream(input), Channels.newOutputStream(output));
+            }
+        });
+        pool = new PooledConnectionFactory<Connection>(new ConnectionFactory<Connection>() {
+            public Connection createConnection() {
+                created.incrementAndGet();
+                return ConnectionBuilder.client().hostname(ENDPOINT).transport(Transports.inVm()).buildAndConnect();
+            }
+        });
+        pool.setEvictionInterval(60000);
+    }
+
+    @After
+    public void cleanup() {
+        pool.close();
+        InVmEndpoints.unbind(ENDPOINT);
+    }
+
+    private void assertEcho(Connection connection, String payload) {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload(payload);
+        connection.send(frame);
+        assertEquals(payload, connection.receive(5000).payload());
+    }
+
+    @Test
+    public void returnedConnectionIsReused() {
+        Connection first = pool.createConnection();
+        assertEcho(first, "first");
+        first.close();
+        assertFalse(first.isConnected());
+        assertEquals(1, pool.getIdleCount());
+
+        Connection second = pool.createConnection();
+        assertEcho(second, "second");
+        assertEquals(1, created.get());
+        assertEquals(1, pool.getSize());
+        assertFalse(first.equals(second));
+        second.close();
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void returnedConnectionCannotBeUsed() {
+        Connection connection = pool.createConnection();
+        connection.close();
+        connection.send(new Frame(Command.SEND));
+    }
+
+    @Test
+    public void borrowTimesOutAtMaxSize() {
+        pool.setMaxSize(1);
+        pool.setBorrowTimeout(100);
+        Connection connection = pool.createConnection();
+        long start = System.currentTimeMillis();
+        try {
+            pool.createConnection();
+            fail("Borrow should have timed out");
+        } catch (StompConnectionException e) {
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        connection.close();
+        pool.createConnection().close();
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void borrowerWaitsForReturnedConnection() throws InterruptedException {
+        pool.setMaxSize(1);
+        final Connection connection = pool.createConnection();
+        Thread returner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // close right away
+                }
+                connection.close();
+            }
+        });
+        returner.start();
+        Connection borrowed = pool.createConnection();
+        assertEcho(borrowed, "after wait");
+        borrowed.close();
+        returner.join();
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void brokenConnectionIsDiscarded() {
+        Connection connection = pool.createConnection();
+        Frame frame = new Frame(Command.SEND);
+        frame.destination(EchoServer.CLOSE_DESTINATION);
+        connection.send(frame);
+        try {
+            connection.receive(5000);
+            fail("Connection should have been closed by the server");
+        } catch (StompException e) {
+            assertEquals(StompResourceState.BROKEN, connection.getState());
+        }
+        connection.close();
+        assertEquals(0, pool.getSize());
+        assertEquals(0, pool.getIdleCount());
+
+        Connection fresh = pool.createConnection();
+        assertEcho(fresh, "fresh");
+        assertEquals(2, created.get());
+        fresh.close();
+    }
+
+    @Test
+    public void idleConnectionsAreEvictedDownToMinSize() throws InterruptedException {
+        pool.setMinSize(1);
+        pool.setIdleTimeout(50);
+        pool.init();
+        assertEquals(1, pool.getIdleCount());
+
+        Connection first = pool.createConnection();
+        Connection second = pool.createConnection();
+        Connection third = pool.createConnection();
+        first.close();
+        second.close();
+        third.close();
+        assertEquals(3, pool.getIdleCount());
+
+        Thread.sleep(100);
+        pool.evict();
+        assertEquals(1, pool.getSize());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(3, created.get());
+    }
+
+    @Test
+    public void closedPoolRejectsBorrowers() {
+        Connection connection = pool.createConnection();
+        pool.close();
+        try {
+            pool.createConnection();
+            fail("Closed pool should not hand out connections");
+        } catch (StompConnectionException e) {
+            // expected
+        }
+        connection.close();
+        assertEquals(0, pool.getSize());
+    }
+
+}
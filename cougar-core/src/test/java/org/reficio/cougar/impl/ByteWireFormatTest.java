@@ -0,0 +1,573 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.Test;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.StompWireFormatException;
+import org.reficio.cougar.core.FrameBuffer;
+import org.reficio.cougar.core.StompByteWireFormat;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.HeaderType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parity tests of the byte-oriented codec - the same cases as in the WireFormatTest.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class ByteWireFormatTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final StompByteWireFormat wireFormat = new ByteWireFormatImpl();
+
+    private Frame unmarshal(String marshalledFrame) {
+        return reader(marshalledFrame).read();
+    }
+
+    private ByteFrameReader reader(String marshalledFrame) {
+        return new ByteFrameReader(Channels.newChannel(new ByteArrayInputStream(bytes(marshalledFrame))), wireFormat, UTF_8);
+    }
+
+    private byte[] bytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String connectFrame(String commandName, String payload) {
+        return commandName + WireFormatImpl.END_OF_LINE +
+                HeaderType.ENCODING.getName() + WireFormatImpl.HEADER_DELIMITER + "UTF-8" + WireFormatImpl.END_OF_LINE +
+                HeaderType.LOGIN.getName() + WireFormatImpl.HEADER_DELIMITER + "test_login" + WireFormatImpl.END_OF_LINE +
+                HeaderType.PASS_CODE.getName() + WireFormatImpl.HEADER_DELIMITER + "test_passcode" + WireFormatImpl.END_OF_LINE +
+                WireFormatImpl.END_OF_LINE +
+                payload + WireFormatImpl.END_OF_FRAME;
+    }
+
+    private String contentLengthFrame(String payload, int contentLength) {
+        return Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE +
+                HeaderType.CONTENT_LENGTH.getName() + WireFormatImpl.HEADER_DELIMITER + contentLength + WireFormatImpl.END_OF_LINE +
+                WireFormatImpl.END_OF_LINE + payload + WireFormatImpl.END_OF_FRAME;
+    }
+
+    @Test
+    public void unmarshall() {
+        Frame frame = unmarshal(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        assertEquals(Command.CONNECT, frame.getCommand());
+        assertEquals("test_login", frame.login());
+        assertEquals("test_passcode", frame.passcode());
+        assertEquals("UTF-8", frame.encoding());
+        assertEquals("test_payload", frame.payload());
+        assertTrue(frame.isFrozen());
+    }
+
+    @Test
+    public void unmarshallMarshalledByTextWireFormat() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.custom("custom", "value");
+        frame.payload("test_payload");
+        StringWriter writer = new StringWriter();
+        new WireFormatImpl().marshal(frame, writer);
+
+        Frame result = unmarshal(writer.toString());
+        assertEquals(Command.SEND, result.getCommand());
+        assertEquals("/queue/test", result.destination());
+        assertEquals("value", result.custom("custom"));
+        assertEquals("12", result.contentLength());
+        assertEquals("test_payload", result.payload());
+    }
+
+    @Test
+    public void leadingEndOfLinesSkipped() {
+        Frame frame = unmarshal("\n\n\n" + connectFrame(Command.CONNECT.getName(), "test_payload"));
+        assertEquals(Command.CONNECT, frame.getCommand());
+        assertEquals("test_payload", frame.payload());
+    }
+
+    @Test
+    public void multipleFramesInOneRead() {
+        ByteFrameReader reader = reader(connectFrame(Command.CONNECT.getName(), "first") + "\n" +
+                connectFrame(Command.CONNECTED.getName(), "second"));
+        assertEquals("first", reader.read().payload());
+        Frame second = reader.read();
+        assertEquals(Command.CONNECTED, second.getCommand());
+        assertEquals("second", second.payload());
+    }
+
+    @Test
+    public void incompleteFrameLeavesBufferUntouched() {
+        byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        ByteBuffer buffer = ByteBuffer.wrap(marshalledFrame, 0, marshalledFrame.length - 1);
+        assertNull(wireFormat.unmarshal(buffer, UTF_8));
+        assertEquals(0, buffer.position());
+
+        buffer.limit(marshalledFrame.length);
+        assertNotNull(wireFormat.unmarshal(buffer, UTF_8));
+        assertEquals(marshalledFrame.length, buffer.position());
+    }
+
+    @Test
+    public void directBuffer() {
+        byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(marshalledFrame.length);
+        buffer.put(marshalledFrame);
+        buffer.flip();
+        assertEquals("test_payload", wireFormat.unmarshal(buffer, UTF_8).payload());
+    }
+
+    @Test
+    public void frameReadInChunks() {
+        final byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), RandomStringUtils.randomAlphanumeric(50000)));
+        ReadableByteChannel channel = new ChunkedChannel(marshalledFrame, 7);
+        Frame frame = new ByteFrameReader(channel, wireFormat, UTF_8).read();
+        assertEquals(50000, frame.payload().length());
+    }
+
+    @Test
+    public void partialFrameSurvivesTimeout() {
+        byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        ChunkedChannel channel = new ChunkedChannel(marshalledFrame, 10);
+        channel.timeoutAfter = 20;
+        ByteFrameReader reader = new ByteFrameReader(channel, wireFormat, UTF_8);
+        try {
+            reader.read();
+            fail("timeout expected");
+        } catch (StompSocketTimeoutException ex) {
+            // expected
+        }
+        assertEquals("test_payload", reader.read().payload());
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void parseCommandException() {
+        unmarshal(connectFrame("YO YO FEEL THE FLOW COMMAND", "test_payload"));
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void headersCountExceeded() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        for (int i = 0; i < WireFormatImpl.MAX_HEADERS + 1; i++) {
+            marshalledFrame += "header" + i + WireFormatImpl.HEADER_DELIMITER + "header_value" + WireFormatImpl.END_OF_LINE;
+        }
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        unmarshal(marshalledFrame);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void headerSplitCondition1() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += "header" + "header_value" + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        unmarshal(marshalledFrame);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void headerSplitCondition2() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.HEADER_DELIMITER + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        unmarshal(marshalledFrame);
+    }
+
+    @Test
+    public void headerContentLengthHeaderNumericException() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += HeaderType.CONTENT_LENGTH.getName() + WireFormatImpl.HEADER_DELIMITER + "ThisHeaderWillBeIgnoredDueToNumericException:)" + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        assertEquals("test_payload", unmarshal(marshalledFrame).payload());
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void maxCommandLengthExceeded() {
+        String commandString = RandomStringUtils.randomAlphanumeric(WireFormatImpl.MAX_COMMAND_LENGTH + 1);
+        unmarshal(contentLengthFrame("test_payload", 1000).replaceFirst(Command.CONNECT.getName(), commandString));
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void maxHeaderLengthExceeded() {
+        String headerPrefix = "header" + WireFormatImpl.HEADER_DELIMITER;
+        String headerValue = RandomStringUtils.randomAlphanumeric(WireFormatImpl.MAX_HEADER_LENGTH - headerPrefix.length() + 1);
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += headerPrefix + headerValue + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        unmarshal(marshalledFrame);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void maxHeaderLengthExceededWithoutEndOfFrame() {
+        // the max length has to be detected before the whole frame is received
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE +
+                "header" + WireFormatImpl.HEADER_DELIMITER + RandomStringUtils.randomAlphanumeric(ByteFrameReader.DEFAULT_BUFFER_SIZE * 2);
+        unmarshal(marshalledFrame);
+    }
+
+    @Test(expected = StompIOException.class)
+    public void endOfStreamInReadUntilEndMarker() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += "header" + WireFormatImpl.HEADER_DELIMITER + "value";
+        unmarshal(marshalledFrame);
+    }
+
+    @Test(expected = StompIOException.class)
+    public void ioExceptionInReadUntilEndMarker() {
+        ChunkedChannel channel = new ChunkedChannel(new byte[0], 1);
+        channel.failure = new IOException();
+        new ByteFrameReader(channel, wireFormat, UTF_8).read();
+    }
+
+    @Test
+    public void parsePayloadWithContentLength() {
+        String payload = "test_payload";
+        assertEquals(payload, unmarshal(contentLengthFrame(payload, payload.length())).payload());
+    }
+
+    @Test
+    public void parsePayloadWithContentLengthCountedInBytes() {
+        // content-length contains the number of bytes, not chars
+        String payload = "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144";
+        int contentLength = bytes(payload).length;
+        assertTrue(contentLength > payload.length());
+        assertEquals(payload, unmarshal(contentLengthFrame(payload, contentLength)).payload());
+    }
+
+    @Test
+    public void parsePayloadWithContentLengthContainingEndOfFrame() {
+        String payload = "test" + WireFormatImpl.END_OF_FRAME + "payload";
+        assertEquals(payload, unmarshal(contentLengthFrame(payload, payload.length())).payload());
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void parsePayloadWithContentLengthTooSmall() {
+        String payload = "test_payload";
+        unmarshal(contentLengthFrame(payload, payload.length() - 1));
+    }
+
+    @Test(expected = StompIOException.class)
+    public void parsePayloadWithContentLengthTooBigSpecialCase() {
+        String payload = "test_payload";
+        unmarshal(contentLengthFrame(payload, payload.length() + 1));
+    }
+
+    // the text codec detects it as the WireFormatException - on a stream it is not possible to distinguish
+    // a too big content-length from the bytes that have not been received yet
+    @Test(expected = StompIOException.class)
+    public void parsePayloadWithContentLengthTooBig() {
+        String payload = "test_payload";
+        unmarshal(contentLengthFrame(payload, payload.length() + 2));
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void parsePayloadWithNegativeContentLength() {
+        unmarshal(contentLengthFrame("test_payload", -1));
+    }
+
+    @Test
+    public void marshallSameAsTextWireFormat() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.custom("custom", "value");
+        frame.payload("test_payload");
+        StringWriter writer = new StringWriter();
+        new WireFormatImpl().marshal(frame, writer);
+
+        FrameBuffer buffer = new FrameBuffer();
+        wireFormat.marshal(frame, buffer, UTF_8);
+        assertEquals(writer.toString(), new String(buffer.toByteArray(), UTF_8));
+        assertTrue(frame.isFrozen());
+    }
+
+    @Test
+    public void marshallContentLengthCountedInBytes() {
+        String payload = "za\u017c\u00f3\u0142\u0107 \ud83d\ude00";
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload(payload);
+        FrameBuffer buffer = new FrameBuffer();
+        wireFormat.marshal(frame, buffer, UTF_8);
+
+        Frame result = wireFormat.unmarshal(ByteBuffer.wrap(buffer.toByteArray()), UTF_8);
+        assertEquals(payload, result.payload());
+        assertEquals(String.valueOf(bytes(payload).length), result.contentLength());
+    }
+
+    @Test
+    public void marshallWithoutContentLength() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload("test_payload", true);
+        FrameBuffer buffer = new FrameBuffer();
+        wireFormat.marshal(frame, buffer, UTF_8);
+
+        Frame result = wireFormat.unmarshal(ByteBuffer.wrap(buffer.toByteArray()), UTF_8);
+        assertNull(result.contentLength());
+        assertEquals("test_payload", result.payload());
+    }
+
+    @Test
+    public void marshallHeadersOnly() {
+        byte[] payload = largePayload(5000);
+        Frame frame = new Frame(Command.MESSAGE);
+        frame.destination("/queue/test");
+        frame.binaryPayload(payload);
+        FrameBuffer buffer = new FrameBuffer();
+        wireFormat.marshalHeaders(frame, buffer, UTF_8);
+        byte[] marshalled = concat(buffer.toByteArray(), payload, new byte[]{0});
+        assertArrayEquals(binaryFrame(payload), marshalled);
+        assertTrue(frame.isFrozen());
+    }
+
+    @Test
+    public void marshallMultipleFramesIntoReusedBuffer() {
+        FrameBuffer buffer = new FrameBuffer(16);
+        for (int i = 0; i < 3; i++) {
+            Frame frame = new Frame(Command.SEND);
+            frame.destination("/queue/test");
+            frame.payload("payload" + i);
+            wireFormat.marshal(frame, buffer, UTF_8);
+        }
+        ByteBuffer input = ByteBuffer.wrap(buffer.toByteArray());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("payload" + i, wireFormat.unmarshal(input, UTF_8).payload());
+        }
+        assertFalse(input.hasRemaining());
+    }
+
+    @Test
+    public void marshallBinaryPayload() {
+        byte[] payload = new byte[256];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.binaryPayload(payload);
+        FrameBuffer buffer = new FrameBuffer();
+        wireFormat.marshal(frame, buffer, UTF_8);
+
+        Frame result = wireFormat.unmarshal(ByteBuffer.wrap(buffer.toByteArray()), UTF_8);
+        assertEquals("256", result.contentLength());
+        assertTrue(result.hasBinaryPayload());
+        assertArrayEquals(payload, result.binaryPayloadBytes());
+    }
+
+    @Test
+    public void unmarshallPayloadNotDecodedUntilAccessed() {
+        String payload = "za\u017c\u00f3\u0142\u0107";
+        Frame frame = wireFormat.unmarshal(ByteBuffer.wrap(bytes(contentLengthFrame(payload, bytes(payload).length))), UTF_8);
+        assertArrayEquals(bytes(payload), frame.binaryPayloadBytes());
+        assertEquals(payload, frame.payload());
+    }
+
+    @Test
+    public void unmarshalledPayloadIndependentFromInputBuffer() {
+        ByteBuffer input = ByteBuffer.wrap(bytes(contentLengthFrame("test_payload", 12)));
+        Frame frame = wireFormat.unmarshal(input, UTF_8);
+        input.clear();
+        input.put(new byte[input.capacity()]);
+        assertEquals("test_payload", frame.payload());
+    }
+
+    private byte[] binaryFrame(byte[] payload) {
+        Frame frame = new Frame(Command.MESSAGE);
+        frame.destination("/queue/test");
+        frame.binaryPayload(payload);
+        FrameBuffer buffer = new FrameBuffer();
+        wireFormat.marshal(frame, buffer, UTF_8);
+        return buffer.toByteArray();
+    }
+
+    private byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            output.write(array, 0, array.length);
+        }
+        return output.toByteArray();
+    }
+
+    private byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[333];
+        int count;
+        while ((count = input.read(chunk, 0, chunk.length)) >= 0) {
+            output.write(chunk, 0, count);
+        }
+        return output.toByteArray();
+    }
+
+    private byte[] largePayload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    @Test
+    public void marshallStreamPayload() {
+        byte[] payload = largePayload(100000);
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.streamPayload(new ByteArrayInputStream(payload), payload.length);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        FrameBuffer buffer = new FrameBuffer(1024, sink);
+        wireFormat.marshal(frame, buffer, UTF_8);
+        // the payload went through the sink, the buffer has not grown
+        assertTrue(sink.size() > 0);
+        assertTrue(buffer.size() <= 1024);
+
+        Frame result = wireFormat.unmarshal(ByteBuffer.wrap(concat(sink.toByteArray(), buffer.toByteArray())), UTF_8);
+        assertEquals("100000", result.contentLength());
+        assertArrayEquals(payload, result.binaryPayloadBytes());
+    }
+
+    @Test(expected = StompIOException.class)
+    public void marshallStreamPayloadShorterThanLength() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.streamPayload(new ByteArrayInputStream(new byte[10]), 11);
+        wireFormat.marshal(frame, new FrameBuffer(), UTF_8);
+    }
+
+    @Test
+    public void unmarshallStreamedPayload() throws IOException {
+        byte[] payload = largePayload(50000);
+        ChunkedChannel channel = new ChunkedChannel(concat(binaryFrame(payload), binaryFrame(bytes("small"))), 1000);
+        ByteFrameReader reader = new ByteFrameReader(channel, wireFormat, UTF_8);
+        reader.setStreamingThreshold(1024);
+
+        Frame frame = reader.read();
+        assertTrue(frame.hasStreamPayload());
+        assertEquals(50000, frame.payloadStreamLength());
+        assertEquals("/queue/test", frame.destination());
+        assertNull(frame.payload());
+        assertArrayEquals(payload, readFully(frame.payloadStream()));
+
+        Frame small = reader.read();
+        assertFalse(small.hasStreamPayload());
+        assertEquals("small", small.payload());
+    }
+
+    @Test
+    public void unreadStreamedPayloadSkipped() throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(concat(binaryFrame(largePayload(50000)),
+                binaryFrame(largePayload(20000)), binaryFrame(bytes("small"))), 999);
+        ByteFrameReader reader = new ByteFrameReader(channel, wireFormat, UTF_8);
+        reader.setStreamingThreshold(1024);
+
+        Frame first = reader.read();
+        first.payloadStream().read(new byte[100], 0, 100);
+        Frame second = reader.read();
+        assertEquals(20000, second.payloadStreamLength());
+        assertEquals(-1, first.payloadStream().read());
+        assertEquals("small", reader.read().payload());
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void unmarshallStreamedPayloadWithContentLengthTooSmall() throws IOException {
+        String payload = RandomStringUtils.randomAlphanumeric(5000);
+        ByteFrameReader reader = reader(contentLengthFrame(payload, 4000));
+        reader.setStreamingThreshold(1024);
+        readFully(reader.read().payloadStream());
+    }
+
+    @Test
+    public void getVersion() {
+        assertNotNull(wireFormat.getVersion());
+    }
+
+    @Test
+    public void parseError() {
+        ByteFrameReader reader = reader(connectFrame("YO YO FEEL THE FLOW COMMAND", "test_payload") +
+                connectFrame(Command.CONNECT.getName(), "test_payload"));
+        Exception caught = null;
+        try {
+            reader.read();
+        } catch (Exception ex) {
+            caught = ex;
+        }
+        assertNotNull(caught);
+        assertEquals(StompWireFormatException.class, caught.getClass());
+        assertNotNull(((StompWireFormatException) caught).getErrorContent());
+    }
+
+    // returns the data in chunks of the given size, may simulate a timeout or an IO failure
+    static class ChunkedChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int chunkSize;
+        private int position;
+        int timeoutAfter = -1;
+        IOException failure;
+
+        ChunkedChannel(byte[] data, int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (position == timeoutAfter) {
+                timeoutAfter = -1;
+                throw new SocketTimeoutException("Read timed out");
+            }
+            if (position == data.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(chunkSize, dst.remaining()), data.length - position);
+            if (timeoutAfter > position) {
+                count = Math.min(count, timeoutAfter - position);
+            }
+            dst.put(data, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
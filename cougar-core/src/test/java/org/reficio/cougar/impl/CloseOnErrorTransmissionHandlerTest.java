@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.core.AsyncTransmissionHandler;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.StompResourceState;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.impl.QueuedTransmissionHandlerTest.RecordingTransmissionHandler;
+
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class CloseOnErrorTransmissionHandlerTest {
+
+    private ConnectionImpl connection;
+
+    @Before
+    public void initialize() {
+        connection = new ConnectionImpl(new WireFormatImpl());
+        connection.setState(StompResourceState.CONNECTED);
+    }
+
+    @Test
+    public void delegatesToTarget() {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler();
+        TransmissionHandler handler = CloseOnErrorTransmissionHandler.wrap(connection, target);
+        handler.marshall(new Frame(Command.SEND));
+        handler.flush();
+        assertEquals(1, target.marshalled.size());
+        assertEquals(1, target.flushes);
+        assertEquals(Command.RECEIPT, handler.unmarshall().getCommand());
+        assertFalse(handler instanceof AsyncTransmissionHandler);
+    }
+
+    @Test
+    public void closedOnError() {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler();
+        TransmissionHandler handler = CloseOnErrorTransmissionHandler.wrap(connection, target);
+        target.failing = true;
+        try {
+            handler.marshall(new Frame(Command.SEND));
+            fail("Marshalling should have failed");
+        } catch (StompIOException e) {
+            // the original exception is rethrown
+        }
+        assertTrue(target.closed);
+        assertEquals(StompResourceState.BROKEN, connection.getState());
+    }
+
+    @Test
+    public void notClosedOnReceptionTimeout() {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler() {
+            @Override
+            public Frame unmarshall() {
+                throw new StompSocketTimeoutException(new SocketTimeoutException("Read timed out"));
+            }
+        };
+        TransmissionHandler handler = CloseOnErrorTransmissionHandler.wrap(connection, target);
+        try {
+            handler.unmarshall();
+            fail("Reception should have timed out");
+        } catch (StompSocketTimeoutException e) {
+            // the connection stays operational after the timeout
+        }
+        assertFalse(target.closed);
+        assertEquals(StompResourceState.CONNECTED, connection.getState());
+    }
+
+    @Test
+    public void asyncHandlerStaysAsync() {
+        final FrameHandler[] registered = new FrameHandler[1];
+        class AsyncRecordingTransmissionHandler extends RecordingTransmissionHandler implements AsyncTransmissionHandler {
+            public void setFrameHandler(FrameHandler frameHandler) {
+                registered[0] = frameHandler;
+            }
+
+            public void suspendReception() {
+            }
+
+            public void resumeReception() {
+            }
+        }
+        TransmissionHandler handler = CloseOnErrorTransmissionHandler.wrap(connection, new AsyncRecordingTransmissionHandler());
+        assertTrue(handler instanceof AsyncTransmissionHandler);
+        FrameHandler frameHandler = new FrameHandler() {
+            public void handleFrame(Frame frame) {
+            }
+
+            public void handleError(StompException exception) {
+            }
+        };
+        ((AsyncTransmissionHandler) handler).setFrameHandler(frameHandler);
+        assertSame(frameHandler, registered[0]);
+    }
+
+}
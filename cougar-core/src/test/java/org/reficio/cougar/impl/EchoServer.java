@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Minimal STOMP server for the transport tests. Answers the handshake and echoes every SEND frame
+ * as a MESSAGE frame - with the subscription header if a subscription to the destination has been made.
+ * Sends a RECEIPT for every frame with the receipt header and an ERROR for the frames sent to the
+ * ERROR_DESTINATION. Holds up the frames following the one sent to the SLOW_DESTINATION for a second.
+ * Closes the connection on DISCONNECT or on a frame sent to the CLOSE_DESTINATION.
+ * Uses the text wire format, which reads the payloads as UTF-8.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class EchoServer implements Runnable {
+
+    public static final String CLOSE_DESTINATION = "/queue/close";
+    public static final String ERROR_DESTINATION = "/queue/error";
+    public static final String SLOW_DESTINATION = "/queue/slow";
+
+    private final Reader reader;
+    private final Writer writer;
+    private final WireFormatImpl wireFormat = new WireFormatImpl();
+    // destination -> subscription id
+    private final Map<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+    private int messageId;
+
+    public EchoServer(InputStream input, OutputStream output) {
+        try {
+            this.reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            this.writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // serves the streams in a daemon thread and closes them once the connection is over
+    public static void start(final InputStream input, final OutputStream output) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                new EchoServer(input, output).run();
+                try {
+                    output.close();
+                    input.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Frame frame = wireFormat.unmarshal(reader);
+                if (frame.getCommand().equals(Command.DISCONNECT) || CLOSE_DESTINATION.equals(frame.destination())) {
+                    return;
+                }
+                handle(frame);
+                if (SLOW_DESTINATION.equals(frame.destination())) {
+                    writer.flush();
+                    Thread.sleep(1000);
+                }
+                if (frame.receipt() != null) {
+                    Frame receipt = new Frame(Command.RECEIPT);
+                    receipt.receiptId(frame.receipt());
+                    wireFormat.marshal(receipt, writer);
+                }
+            }
+        } catch (RuntimeException e) {
+            // connection closed by the client
+        } catch (IOException e) {
+            // connection closed by the client
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(Frame frame) {
+        if (frame.getCommand().equals(Command.CONNECT)) {
+            Frame connected = new Frame(Command.CONNECTED);
+            connected.session("session-1");
+            wireFormat.marshal(connected, writer);
+        } else if (frame.getCommand().equals(Command.SUBSCRIBE)) {
+            subscriptions.put(frame.destination(), frame.subscriptionId());
+        } else if (ERROR_DESTINATION.equals(frame.destination())) {
+            Frame error = new Frame(Command.ERROR);
+            error.errorMessageContent("error");
+            error.payload(frame.payload());
+            wireFormat.marshal(error, writer);
+        } else if (frame.getCommand().equals(Command.SEND)) {
+            Frame message = new Frame(Command.MESSAGE);
+            message.destination(frame.destination());
+            message.messageId(String.valueOf(++messageId));
+            String subscription = subscriptions.get(frame.destination());
+            if (subscription != null) {
+                message.subscription(subscription);
+            }
+            message.payload(frame.payload());
+            wireFormat.marshal(message, writer);
+        }
+    }
+
+}
@@ -0,0 +1,363 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.Client;
+import org.reficio.cougar.connection.Connection;
+import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.core.FrameHandler;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.core.TransportFactory;
+import org.reficio.cougar.core.TransportSettings;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class EventLoopTransportTest {
+
+    private ServerSocket server;
+    private EventLoopGroup group;
+
+    static class RecordingFrameHandler implements FrameHandler {
+        final BlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        final BlockingQueue<StompException> errors = new LinkedBlockingQueue<StompException>();
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        public void handleFrame(Frame frame) {
+            threads.add(Thread.currentThread().getName());
+            frames.add(frame);
+        }
+
+        public void handleError(StompException exception) {
+            errors.add(exception);
+        }
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        Thread thread = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    new EchoServer(socket.getInputStream(), socket.getOutputStream()).run();
+                                    socket.close();
+                                } catch (IOException e) {
+                                    // connection closed
+                                }
+                            }
+                        });
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        group = new EventLoopGroup(2);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        group.shutdown();
+        server.close();
+    }
+
+    private ConnectionBuilder.Builder<Connection> builder() {
+        return ConnectionBuilder.client().hostname("localhost").port(server.getLocalPort())
+                .transport(Transports.eventLoop(group)).wireFormat(WireFormats.bytes());
+    }
+
+    private Frame frame(String payload) {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload(payload);
+        return frame;
+    }
+
+    @Test
+    public void receive() {
+        Connection connection = builder().buildAndConnect();
+        assertEquals("session-1", connection.getSessionId());
+        connection.send(frame("first"));
+        connection.send(frame("second"));
+        assertEquals("first", connection.receive(5000).payload());
+        assertEquals("second", connection.receive(5000).payload());
+        connection.close();
+    }
+
+    @Test
+    public void receptionTimeout() {
+        Connection connection = builder().buildAndConnect();
+        try {
+            connection.receive(200);
+            fail("Reception should have timed out");
+        } catch (StompSocketTimeoutException e) {
+            // the connection stays operational after the timeout
+        }
+        assertTrue(connection.isConnected());
+        connection.send(frame("after timeout"));
+        assertEquals("after timeout", connection.receive(5000).payload());
+        connection.close();
+    }
+
+    @Test
+    public void frameHandlers() throws InterruptedException {
+        int count = 20;
+        List<Connection> connections = new ArrayList<Connection>();
+        List<RecordingFrameHandler> handlers = new ArrayList<RecordingFrameHandler>();
+        for (int index = 0; index < count; index++) {
+            RecordingFrameHandler handler = new RecordingFrameHandler();
+            handlers.add(handler);
+            connections.add(builder().frameHandler(handler).buildAndConnect());
+        }
+        for (int index = 0; index < count; index++) {
+            connections.get(index).send(frame("payload" + index));
+        }
+        Set<String> threads = new HashSet<String>();
+        for (int index = 0; index < count; index++) {
+            Frame message = handlers.get(index).frames.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals(Command.MESSAGE, message.getCommand());
+            assertEquals("payload" + index, message.payload());
+            threads.addAll(handlers.get(index).threads);
+        }
+        // all the connections are served by the two threads of the group
+        assertEquals(2, threads.size());
+        for (String thread : threads) {
+            assertTrue(thread.startsWith("cougar-event-loop-"));
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        for (RecordingFrameHandler handler : handlers) {
+            assertTrue(handler.errors.isEmpty());
+        }
+    }
+
+    @Test(expected = StompException.class)
+    public void receiveWithFrameHandler() {
+        Connection connection = builder().frameHandler(new RecordingFrameHandler()).buildAndConnect();
+        try {
+            connection.receive(100);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void brokenConnection() throws InterruptedException {
+        RecordingFrameHandler handler = new RecordingFrameHandler();
+        Connection connection = builder().frameHandler(handler).buildAndConnect();
+        Frame frame = new Frame(Command.SEND);
+        frame.destination(EchoServer.CLOSE_DESTINATION);
+        connection.send(frame);
+        assertNotNull(handler.errors.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void largePayload() {
+        char[] chars = new char[4 * 1024 * 1024];
+        Arrays.fill(chars, 'x');
+        String payload = new String(chars);
+        Connection connection = builder().buildAndConnect();
+        connection.send(frame(payload));
+        connection.send(frame("next"));
+        assertEquals(payload, connection.receive(10000).payload());
+        assertEquals("next", connection.receive(10000).payload());
+        connection.close();
+    }
+
+    @Test
+    public void writerWaitsForSlowPeer() throws Exception {
+        // accepts the connection and answers the handshake, but never reads anything else
+        final ServerSocket silentServer = new ServerSocket(0);
+        // the accepted socket is referenced by the test, so it is not closed once garbage collected
+        final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = silentServer.accept();
+                    accepted.add(socket);
+                    Frame connected = new Frame(Command.CONNECTED);
+                    connected.session("silent");
+                    Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                    new WireFormatImpl().marshal(connected, writer);
+                    writer.flush();
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        final List<EventLoopTransmissionHandler> handlers = new ArrayList<EventLoopTransmissionHandler>();
+        final Connection connection = ConnectionBuilder.client().hostname("localhost").port(silentServer.getLocalPort())
+                .wireFormat(WireFormats.bytes()).transport(new TransportFactory() {
+                    public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+                        EventLoopTransmissionHandler handler = new EventLoopTransmissionHandler(settings, group.next());
+                        handler.setMaxPendingWriteBytes(256 * 1024);
+                        handler.setCloseTimeoutInMillis(500);
+                        handlers.add(handler);
+                        return handler;
+                    }
+                }).buildAndConnect();
+        final char[] chars = new char[64 * 1024];
+        Arrays.fill(chars, 'x');
+        final AtomicInteger sent = new AtomicInteger();
+        final BlockingQueue<StompException> failures = new LinkedBlockingQueue<StompException>();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        connection.send(frame(new String(chars)));
+                        sent.incrementAndGet();
+                    }
+                } catch (StompException e) {
+                    failures.add(e);
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        // the writer stops once the socket buffers and the high-water mark are full
+        int previous = -1;
+        while (sent.get() != previous) {
+            previous = sent.get();
+            Thread.sleep(500);
+        }
+        assertTrue(writer.isAlive());
+        assertEquals(Thread.State.WAITING, writer.getState());
+        silentServer.close();
+        connection.close();
+        assertNotNull(failures.poll(5, TimeUnit.SECONDS));
+        // the pending bytes are dropped once the close timeout has elapsed
+        for (int i = 0; i < 50 && handlers.get(0).isChannelOpen(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(handlers.get(0).isChannelOpen());
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void taskSubmittedByEventLoopRunWithoutWakeUp() throws Exception {
+        final EventLoop loop = new EventLoop("test-loop");
+        loop.start();
+        final Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        final CountDownLatch taskRun = new CountDownLatch(1);
+        loop.register(pipe.source(), SelectionKey.OP_READ, new EventLoop.Listener() {
+            public void channelRegistered(SelectionKey key) {
+            }
+
+            public void channelReadable() {
+                try {
+                    pipe.source().read(loop.getReadBuffer());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                // e.g. the interest in the writability set when a frame is sent from a frame handler
+                loop.execute(new Runnable() {
+                    public void run() {
+                        taskRun.countDown();
+                    }
+                });
+            }
+
+            public void channelWritable() {
+            }
+
+            public void channelClosed(StompException cause) {
+            }
+        });
+        pipe.sink().write(ByteBuffer.wrap(new byte[]{1}));
+        try {
+            assertTrue(taskRun.await(5, TimeUnit.SECONDS));
+        } finally {
+            loop.shutdown();
+            pipe.sink().close();
+        }
+    }
+
+    @Test
+    public void fullSubscriptionQueueSuspendsReading() throws InterruptedException {
+        Client client = ConnectionBuilder.connection().hostname("localhost").port(server.getLocalPort())
+                .transport(Transports.eventLoop(group)).wireFormat(WireFormats.bytes())
+                .subscriptionQueueCapacity(2).buildAndConnect();
+        String subscription = client.subscribe("/queue/test");
+        for (int i = 0; i < 10; i++) {
+            client.send("/queue/test", new FrameDecorator() {
+                public void decorateFrame(Frame frame) {
+                    frame.payload("message");
+                }
+            });
+        }
+        // the event loop stops reading the channel instead of dropping the messages
+        Thread.sleep(200);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message", client.receive(subscription, 5000).payload());
+        }
+        client.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void textWireFormat() {
+        builder().wireFormat(new WireFormatImpl()).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void frameHandlerOnBlockingTransport() {
+        ConnectionBuilder.client().frameHandler(new RecordingFrameHandler()).build();
+    }
+
+}
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.Test;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.core.FlushPolicy;
+import org.reficio.cougar.core.StompResourceState;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class FlushPolicyTest {
+
+    // counts the real flushes and the chars that have been flushed
+    static class RecordingWriter extends StringWriter {
+        volatile int flushes;
+        volatile int flushedLength;
+
+        @Override
+        public void flush() {
+            flushes++;
+            flushedLength = getBuffer().length();
+        }
+    }
+
+    static class TestTransmissionHandler extends TransmissionHandlerImpl {
+        final RecordingWriter recordingWriter = new RecordingWriter();
+
+        TestTransmissionHandler(FlushPolicy flushPolicy, String input) {
+            super(new WireFormatImpl(), "localhost", 61613, "UTF-8");
+            setFlushPolicy(flushPolicy);
+            this.writer = recordingWriter;
+            this.reader = new StringReader(input);
+        }
+
+        @Override
+        public void setReceptionTimeoutInMillis(int timeout) {
+            // no socket
+        }
+    }
+
+    private Frame frame(int index) {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload("payload" + index);
+        return frame;
+    }
+
+    @Test
+    public void immediate() {
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.immediate(), "");
+        handler.marshall(frame(1));
+        assertEquals(1, handler.recordingWriter.flushes);
+        handler.marshall(frame(2));
+        assertEquals(2, handler.recordingWriter.flushes);
+    }
+
+    @Test
+    public void batchedByFrames() {
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.batched(3, Integer.MAX_VALUE), "");
+        handler.marshall(frame(1));
+        handler.marshall(frame(2));
+        assertEquals(0, handler.recordingWriter.flushes);
+        handler.marshall(frame(3));
+        assertEquals(1, handler.recordingWriter.flushes);
+        assertTrue(handler.recordingWriter.toString().contains("payload3"));
+    }
+
+    @Test
+    public void batchedByBytes() {
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.batched(Integer.MAX_VALUE, 100), "");
+        int sent = 0;
+        while (handler.recordingWriter.flushes == 0) {
+            handler.marshall(frame(sent++));
+        }
+        assertTrue(sent > 1);
+        assertTrue(handler.recordingWriter.flushedLength >= 100);
+    }
+
+    @Test
+    public void batchFlushedOnce() {
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.immediate(), "");
+        handler.marshall(Arrays.asList(frame(1), frame(2), frame(3)));
+        assertEquals(1, handler.recordingWriter.flushes);
+        assertTrue(handler.recordingWriter.toString().contains("payload3"));
+    }
+
+    @Test
+    public void explicitFlush() {
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.batched(100, Integer.MAX_VALUE), "");
+        handler.marshall(frame(1));
+        handler.flush();
+        assertEquals(1, handler.recordingWriter.flushes);
+        // nothing pending
+        handler.flush();
+        assertEquals(1, handler.recordingWriter.flushes);
+    }
+
+    @Test
+    public void flushBeforeReceive() {
+        Frame receipt = new Frame(Command.RECEIPT);
+        receipt.receiptId("1");
+        Writer marshalled = new StringWriter();
+        new WireFormatImpl().marshal(receipt, marshalled);
+
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.batched(100, Integer.MAX_VALUE), marshalled.toString());
+        ConnectionImpl connection = new ConnectionImpl(new WireFormatImpl());
+        connection.setTransmissionHandler(handler);
+        connection.setState(StompResourceState.CONNECTED);
+        connection.send(frame(1));
+        assertEquals(0, handler.recordingWriter.flushes);
+        assertEquals(Command.RECEIPT, connection.receive(1000).getCommand());
+        assertEquals(1, handler.recordingWriter.flushes);
+    }
+
+    @Test
+    public void noFlushByUnmarshall() {
+        Frame receipt = new Frame(Command.RECEIPT);
+        receipt.receiptId("1");
+        Writer marshalled = new StringWriter();
+        new WireFormatImpl().marshal(receipt, marshalled);
+
+        // a reader thread must not wait for the output
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.batched(100, Integer.MAX_VALUE), marshalled.toString());
+        handler.marshall(frame(1));
+        assertEquals(Command.RECEIPT, handler.unmarshall().getCommand());
+        assertEquals(0, handler.recordingWriter.flushes);
+    }
+
+    @Test
+    public void pendingFramesKeptOnEncodingError() {
+        TransmissionHandlerImpl handler = new TransmissionHandlerImpl(new ByteWireFormatImpl(), "localhost", 61613, "UTF-8");
+        handler.setFlushPolicy(FlushPolicy.batched(100, Integer.MAX_VALUE));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        handler.initializeByteStreams(Channels.newChannel(new ByteArrayInputStream(new byte[0])), output);
+        handler.marshall(frame(1));
+        Frame broken = new Frame(Command.SEND);
+        broken.destination("/queue/test");
+        // the stream ends before the declared length
+        broken.streamPayload(new ByteArrayInputStream("short".getBytes()), 100);
+        try {
+            handler.marshall(broken);
+            fail("Encoding should have failed");
+        } catch (StompIOException e) {
+            // expected
+        }
+        handler.marshall(frame(2));
+        handler.flush();
+        String sent = new String(output.toByteArray());
+        assertTrue(sent.contains("payload1"));
+        assertTrue(sent.contains("payload2"));
+        assertFalse(sent.contains("short"));
+    }
+
+    @Test
+    public void timeBounded() throws InterruptedException {
+        TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.timeBounded(10, TimeUnit.MILLISECONDS), "");
+        handler.marshall(frame(1));
+        handler.marshall(frame(2));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handler.recordingWriter.flushes == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, handler.recordingWriter.flushes);
+        assertTrue(handler.recordingWriter.toString().contains("payload2"));
+    }
+
+    @Test
+    public void timeBoundedNotHeldUpByStalledConnection() throws InterruptedException {
+        final CountDownLatch stalledFlushStarted = new CountDownLatch(1);
+        final CountDownLatch peerResumed = new CountDownLatch(1);
+        TestTransmissionHandler stalled = new TestTransmissionHandler(FlushPolicy.timeBounded(10, TimeUnit.MILLISECONDS), "");
+        stalled.writer = new StringWriter() {
+            @Override
+            public void flush() {
+                stalledFlushStarted.countDown();
+                try {
+                    peerResumed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            stalled.marshall(frame(1));
+            assertTrue(stalledFlushStarted.await(5, TimeUnit.SECONDS));
+            TestTransmissionHandler handler = new TestTransmissionHandler(FlushPolicy.timeBounded(10, TimeUnit.MILLISECONDS), "");
+            handler.marshall(frame(2));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (handler.recordingWriter.flushes == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, handler.recordingWriter.flushes);
+        } finally {
+            peerResumed.countDown();
+        }
+    }
+
+    @Test
+    public void deferredWritersBounded() throws InterruptedException {
+        final int tasks = TransmissionHandlerImpl.FlushScheduler.MAX_WRITERS + 5;
+        final CountDownLatch peerResumed = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(tasks);
+        final AtomicInteger started = new AtomicInteger();
+        try {
+            for (int i = 0; i < tasks; i++) {
+                TransmissionHandlerImpl.FlushScheduler.schedule(new Runnable() {
+                    public void run() {
+                        started.incrementAndGet();
+                        try {
+                            peerResumed.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        finished.countDown();
+                    }
+                }, 0);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (started.get() < TransmissionHandlerImpl.FlushScheduler.MAX_WRITERS
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(100);
+            // the tasks over the limit are handed over again later
+            assertEquals(TransmissionHandlerImpl.FlushScheduler.MAX_WRITERS, started.get());
+        } finally {
+            peerResumed.countDown();
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchedWithInvalidFrames() {
+        FlushPolicy.batched(0, 100);
+    }
+
+}
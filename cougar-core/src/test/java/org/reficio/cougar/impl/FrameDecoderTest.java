@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.Test;
+import org.reficio.cougar.StompWireFormatException;
+import org.reficio.cougar.core.FrameBuffer;
+import org.reficio.cougar.core.StompFrameDecoder;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.HeaderType;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The same cases as in the WireFormatTest, with the frames split into chunks.
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class FrameDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final StompFrameDecoder decoder = WireFormats.decoder(UTF_8);
+
+    private byte[] bytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String connectFrame(String commandName, String payload) {
+        return commandName + WireFormatImpl.END_OF_LINE +
+                HeaderType.ENCODING.getName() + WireFormatImpl.HEADER_DELIMITER + "UTF-8" + WireFormatImpl.END_OF_LINE +
+                HeaderType.LOGIN.getName() + WireFormatImpl.HEADER_DELIMITER + "test_login" + WireFormatImpl.END_OF_LINE +
+                HeaderType.PASS_CODE.getName() + WireFormatImpl.HEADER_DELIMITER + "test_passcode" + WireFormatImpl.END_OF_LINE +
+                WireFormatImpl.END_OF_LINE +
+                payload + WireFormatImpl.END_OF_FRAME;
+    }
+
+    private String contentLengthFrame(String payload, int contentLength) {
+        return Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE +
+                HeaderType.CONTENT_LENGTH.getName() + WireFormatImpl.HEADER_DELIMITER + contentLength + WireFormatImpl.END_OF_LINE +
+                WireFormatImpl.END_OF_LINE + payload + WireFormatImpl.END_OF_FRAME;
+    }
+
+    // feeds the decoder with the chunks of the given size
+    private List<Frame> decode(String marshalledFrames, int chunkSize) {
+        byte[] bytes = bytes(marshalledFrames);
+        List<Frame> frames = new ArrayList<Frame>();
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+            frames.addAll(decoder.decode(chunk));
+            assertFalse(chunk.hasRemaining());
+        }
+        return frames;
+    }
+
+    private Frame decodeSingle(String marshalledFrame, int chunkSize) {
+        List<Frame> frames = decode(marshalledFrame, chunkSize);
+        assertEquals(1, frames.size());
+        assertFalse(decoder.isInsideFrame());
+        return frames.get(0);
+    }
+
+    private Frame decodeSingle(String marshalledFrame) {
+        return decodeSingle(marshalledFrame, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void unmarshall() {
+        Frame frame = decodeSingle(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        assertEquals(Command.CONNECT, frame.getCommand());
+        assertEquals("test_login", frame.login());
+        assertEquals("test_passcode", frame.passcode());
+        assertEquals("UTF-8", frame.encoding());
+        assertEquals("test_payload", frame.payload());
+        assertTrue(frame.isFrozen());
+    }
+
+    @Test
+    public void unmarshallInChunksOfEverySize() {
+        String marshalledFrames = "\n" + connectFrame(Command.CONNECT.getName(), "first") + "\n\n" +
+                contentLengthFrame("second" + WireFormatImpl.END_OF_FRAME, 7) +
+                connectFrame(Command.CONNECTED.getName(), "third \u0105\u0119");
+        int length = bytes(marshalledFrames).length;
+        for (int chunkSize = 1; chunkSize <= length; chunkSize++) {
+            List<Frame> frames = decode(marshalledFrames, chunkSize);
+            assertEquals(3, frames.size());
+            assertEquals("first", frames.get(0).payload());
+            assertEquals("second" + WireFormatImpl.END_OF_FRAME, frames.get(1).payload());
+            assertEquals(Command.CONNECTED, frames.get(2).getCommand());
+            assertEquals("test_login", frames.get(2).login());
+            assertEquals("third \u0105\u0119", frames.get(2).payload());
+            assertFalse(decoder.isInsideFrame());
+        }
+    }
+
+    @Test
+    public void leadingEndOfLinesSkipped() {
+        assertTrue(decoder.decode(ByteBuffer.wrap(bytes("\n\n"))).isEmpty());
+        assertFalse(decoder.isInsideFrame());
+        Frame frame = decodeSingle("\n" + connectFrame(Command.CONNECT.getName(), "test_payload"), 3);
+        assertEquals(Command.CONNECT, frame.getCommand());
+        assertEquals("test_payload", frame.payload());
+    }
+
+    @Test
+    public void multipleFramesInOneChunk() {
+        List<Frame> frames = decode(connectFrame(Command.CONNECT.getName(), "first") + "\n" +
+                connectFrame(Command.CONNECTED.getName(), "second"), Integer.MAX_VALUE);
+        assertEquals(2, frames.size());
+        assertEquals("first", frames.get(0).payload());
+        assertEquals(Command.CONNECTED, frames.get(1).getCommand());
+        assertEquals("second", frames.get(1).payload());
+    }
+
+    @Test
+    public void partialFrameKeptBetweenChunks() {
+        byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        int half = marshalledFrame.length / 2;
+        assertTrue(decoder.decode(ByteBuffer.wrap(marshalledFrame, 0, half)).isEmpty());
+        assertTrue(decoder.isInsideFrame());
+        List<Frame> frames = decoder.decode(ByteBuffer.wrap(marshalledFrame, half, marshalledFrame.length - half));
+        assertEquals(1, frames.size());
+        assertEquals("test_payload", frames.get(0).payload());
+    }
+
+    @Test
+    public void directBuffer() {
+        byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(marshalledFrame.length);
+        buffer.put(marshalledFrame);
+        buffer.flip();
+        List<Frame> frames = decoder.decode(buffer);
+        assertEquals(1, frames.size());
+        assertEquals("test_login", frames.get(0).login());
+        assertEquals("test_payload", frames.get(0).payload());
+    }
+
+    @Test
+    public void decodedFrameIndependentFromInput() {
+        byte[] marshalledFrame = bytes(connectFrame(Command.CONNECT.getName(), "test_payload"));
+        Frame frame = decoder.decode(ByteBuffer.wrap(marshalledFrame)).get(0);
+        Arrays.fill(marshalledFrame, (byte) 'x');
+        assertEquals("test_login", frame.login());
+        assertEquals("test_payload", frame.payload());
+    }
+
+    @Test
+    public void missingContentLength() {
+        String payload = RandomStringUtils.randomAlphanumeric(5000);
+        assertEquals(payload, decodeSingle(connectFrame(Command.CONNECT.getName(), payload), 1000).payload());
+    }
+
+    @Test
+    public void headerContentLengthHeaderNumericException() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += HeaderType.CONTENT_LENGTH.getName() + WireFormatImpl.HEADER_DELIMITER + "ThisHeaderWillBeIgnoredDueToNumericException:)" + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        assertEquals("test_payload", decodeSingle(marshalledFrame, 5).payload());
+    }
+
+    @Test
+    public void parsePayloadWithContentLengthCountedInBytes() {
+        String payload = "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144";
+        int contentLength = bytes(payload).length;
+        assertTrue(contentLength > payload.length());
+        // chunks of 3 bytes split the two-byte chars
+        assertEquals(payload, decodeSingle(contentLengthFrame(payload, contentLength), 3).payload());
+    }
+
+    @Test
+    public void parsePayloadWithEmptyContent() {
+        assertEquals("", decodeSingle(contentLengthFrame("", 0), 2).payload());
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void parsePayloadWithContentLengthTooSmall() {
+        String payload = "test_payload";
+        decode(contentLengthFrame(payload, payload.length() - 1), 4);
+    }
+
+    @Test
+    public void parsePayloadWithContentLengthTooBig() {
+        String payload = "test_payload";
+        // the frame cannot be distinguished from the one whose bytes have not been received yet
+        assertTrue(decode(contentLengthFrame(payload, payload.length() + 2), 4).isEmpty());
+        assertTrue(decoder.isInsideFrame());
+        // it is detected as soon as the bytes of the next frame are received
+        try {
+            decode(connectFrame(Command.CONNECT.getName(), "next"), 4);
+            fail("Wrong content-length should have been detected");
+        } catch (StompWireFormatException e) {
+            assertFalse(decoder.isInsideFrame());
+        }
+    }
+
+    @Test
+    public void resetAfterError() {
+        try {
+            decode(contentLengthFrame("test_payload", 3), 100);
+            fail("Wrong content-length should have been detected");
+        } catch (StompWireFormatException e) {
+            // expected
+        }
+        assertEquals("next", decodeSingle(connectFrame(Command.CONNECT.getName(), "next")).payload());
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void parsePayloadWithNegativeContentLength() {
+        decode(contentLengthFrame("test_payload", -1), 100);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void parseCommandException() {
+        decode(connectFrame("YO YO FEEL THE FLOW COMMAND", "test_payload"), 5);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void headersCountExceeded() {
+        StringBuilder marshalledFrame = new StringBuilder(Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE);
+        for (int i = 0; i < WireFormatImpl.MAX_HEADERS + 1; i++) {
+            marshalledFrame.append("header" + i + WireFormatImpl.HEADER_DELIMITER + "header_value" + WireFormatImpl.END_OF_LINE);
+        }
+        marshalledFrame.append(WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME);
+        decode(marshalledFrame.toString(), 1000);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void headerSplitCondition1() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += "header" + "header_value" + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        decode(marshalledFrame, 3);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void headerSplitCondition2() {
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.HEADER_DELIMITER + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        decode(marshalledFrame, 3);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void maxCommandLengthExceeded() {
+        // detected without the end of the line
+        decode(RandomStringUtils.randomAlphanumeric(WireFormatImpl.MAX_COMMAND_LENGTH + 1), 100);
+    }
+
+    @Test(expected = StompWireFormatException.class)
+    public void maxHeaderLengthExceeded() {
+        String headerPrefix = "header" + WireFormatImpl.HEADER_DELIMITER;
+        String headerValue = RandomStringUtils.randomAlphanumeric(WireFormatImpl.MAX_HEADER_LENGTH - headerPrefix.length() + 1);
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += headerPrefix + headerValue + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        decode(marshalledFrame, 1000);
+    }
+
+    @Test
+    public void maxHeaderLength() {
+        String headerPrefix = "header" + WireFormatImpl.HEADER_DELIMITER;
+        String headerValue = RandomStringUtils.randomAlphanumeric(WireFormatImpl.MAX_HEADER_LENGTH - headerPrefix.length());
+        String marshalledFrame = Command.CONNECT.getName() + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += headerPrefix + headerValue + WireFormatImpl.END_OF_LINE;
+        marshalledFrame += WireFormatImpl.END_OF_LINE + "test_payload" + WireFormatImpl.END_OF_FRAME;
+        assertEquals(headerValue, decodeSingle(marshalledFrame, 1000).custom("header"));
+    }
+
+    @Test
+    public void sameResultAsByteWireFormat() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.custom("custom", "value");
+        frame.payload("test_payload \u0105\u0119");
+        FrameBuffer buffer = new FrameBuffer();
+        new ByteWireFormatImpl().marshal(frame, buffer, UTF_8);
+        Frame expected = new ByteWireFormatImpl().unmarshal(ByteBuffer.wrap(buffer.toByteArray()), UTF_8);
+
+        List<Frame> frames = decoder.decode(ByteBuffer.wrap(buffer.toByteArray()));
+        assertEquals(1, frames.size());
+        assertEquals(expected.getCommand(), frames.get(0).getCommand());
+        assertEquals(expected.getHeaders().size(), frames.get(0).getHeaders().size());
+        assertEquals(expected.destination(), frames.get(0).destination());
+        assertEquals(expected.contentLength(), frames.get(0).contentLength());
+        assertEquals(expected.payload(), frames.get(0).payload());
+    }
+
+}
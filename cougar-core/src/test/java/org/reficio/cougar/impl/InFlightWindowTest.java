@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.Test;
+import org.reficio.cougar.StompFlowControlException;
+import org.reficio.cougar.connection.Client;
+import org.reficio.cougar.connection.ReceiptFuture;
+import org.reficio.cougar.core.ReceiptWindow;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class InFlightWindowTest {
+
+    private static Frame receipt(String receiptId) {
+        Frame frame = new Frame(Command.RECEIPT);
+        frame.receiptId(receiptId);
+        return frame;
+    }
+
+    @Test
+    public void rejectingWindow() {
+        ReceiptTracker tracker = new ReceiptTracker();
+        tracker.setWindow(ReceiptWindow.rejecting(2));
+        tracker.register("r-1", 5000);
+        tracker.register("r-2", 5000);
+        assertEquals(2, tracker.getWindow().getInFlightCount());
+        try {
+            tracker.register("r-3", 5000);
+            fail("Window should have been full");
+        } catch (StompFlowControlException e) {
+            // expected
+        }
+        assertEquals(1, tracker.getWindow().getRejectedCount());
+        tracker.handleFrame(receipt("r-1"));
+        assertEquals(1, tracker.getWindow().getInFlightCount());
+        tracker.register("r-3", 5000);
+        tracker.stop();
+    }
+
+    @Test
+    public void timeBoundedWindow() {
+        ReceiptTracker tracker = new ReceiptTracker();
+        tracker.setWindow(ReceiptWindow.timeBounded(1, 100, TimeUnit.MILLISECONDS));
+        tracker.register("r-1", 5000);
+        try {
+            tracker.register("r-2", 5000);
+            fail("Window should have been full");
+        } catch (StompFlowControlException e) {
+            // expected
+        }
+        assertEquals(1, tracker.getWindow().getStallCount());
+        assertTrue(tracker.getWindow().getStallTimeInMillis() >= 90);
+        tracker.stop();
+    }
+
+    @Test
+    public void blockingWindowFreedByReceipt() throws InterruptedException {
+        final ReceiptTracker tracker = new ReceiptTracker();
+        tracker.setWindow(ReceiptWindow.blocking(1));
+        tracker.register("r-1", 5000);
+        final CountDownLatch registered = new CountDownLatch(1);
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                tracker.register("r-2", 5000);
+                registered.countDown();
+            }
+        });
+        sender.start();
+        assertFalse(registered.await(200, TimeUnit.MILLISECONDS));
+        tracker.handleFrame(receipt("r-1"));
+        assertTrue(registered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, tracker.getWindow().getStallCount());
+        assertEquals(0, tracker.getWindow().getRejectedCount());
+        tracker.stop();
+    }
+
+    @Test
+    public void slotFreedByFailureAndCancellation() throws InterruptedException {
+        ReceiptTracker tracker = new ReceiptTracker();
+        tracker.setWindow(ReceiptWindow.rejecting(1));
+        ReceiptFuture expiring = tracker.register("r-1", 50);
+        assertTrue(waitUntilDone(expiring));
+        ReceiptFuture cancelled = tracker.register("r-2", 5000);
+        cancelled.cancel(false);
+        tracker.failExpired();
+        assertEquals(0, tracker.getWindow().getInFlightCount());
+        tracker.stop();
+    }
+
+    @Test
+    public void pipelinedSendsWithinWindow() throws Exception {
+        String endpoint = "in-flight-window-test";
+        InVmEndpoints.bind(endpoint, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+                EchoServer.start(Channels.newInputStream(input), Channels.newOutputStream(output));
+            }
+        });
+        try {
+            Client client = ConnectionBuilder.connection().hostname(endpoint).transport(Transports.inVm())
+                    .wireFormat(WireFormats.bytes()).receiptWindow(ReceiptWindow.blocking(4)).buildAndConnect();
+            ReceiptFuture last = null;
+            for (int i = 0; i < 200; i++) {
+                last = client.sendAsync("/queue/test");
+                assertTrue(client.getReceiptWindowStatistics().getInFlightCount() <= 4);
+            }
+            last.get(5, TimeUnit.SECONDS);
+            assertEquals(4, client.getReceiptWindowStatistics().getMaxInFlight());
+            client.close();
+        } finally {
+            InVmEndpoints.unbind(endpoint);
+        }
+    }
+
+    private static boolean waitUntilDone(ReceiptFuture future) throws InterruptedException {
+        for (int i = 0; i < 100 && future.isDone() == false; i++) {
+            Thread.sleep(50);
+        }
+        return future.isDone();
+    }
+
+}
@@ -0,0 +1,446 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompProtocolException;
+import org.reficio.cougar.connection.Client;
+import org.reficio.cougar.connection.MessageListener;
+import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class MessageListenerTest {
+
+    private static final String ENDPOINT = "message-listener-test";
+
+    private Client client;
+
+    static class RecordingListener implements MessageListener {
+        final BlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        final BlockingQueue<StompException> errors = new LinkedBlockingQueue<StompException>();
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        public void onMessage(Frame message) {
+            record(message);
+        }
+
+        public void onReceipt(Frame receipt) {
+            record(receipt);
+        }
+
+        public void onError(Frame error) {
+            record(error);
+        }
+
+        public void onException(StompException exception) {
+            errors.add(exception);
+        }
+
+        private void record(Frame frame) {
+            threads.add(Thread.currentThread().getName());
+            frames.add(frame);
+        }
+
+        Frame next() throws InterruptedException {
+            Frame frame = frames.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Frame has not been dispatched", frame);
+            return frame;
+        }
+    }
+
+    @Before
+    public void bindEndpoint() {
+        InVmEndpoints.bind(ENDPOINT, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+                EchoServer.start(Channels.newInputStream(input), Channels.newOutputStream(output));
+            }
+        });
+    }
+
+    @After
+    public void unbindEndpoint() {
+        if (client != null && client.isConnected()) {
+            client.close();
+        }
+        InVmEndpoints.unbind(ENDPOINT);
+    }
+
+    private Client connectInVm() {
+        client = ConnectionBuilder.connection().hostname(ENDPOINT).transport(Transports.inVm())
+                .wireFormat(WireFormats.bytes()).buildAndConnect();
+        return client;
+    }
+
+    private void send(String destination, String payload, String receipt) {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination(destination);
+        frame.payload(payload);
+        if (receipt != null) {
+            frame.receipt(receipt);
+        }
+        ((ClientImpl) client).send(frame);
+    }
+
+    @Test
+    public void dispatchesAllFrameTypes() throws InterruptedException {
+        connectInVm();
+        RecordingListener listener = new RecordingListener();
+        client.setMessageListener(listener);
+
+        send("/queue/test", "first", null);
+        Frame message = listener.next();
+        assertEquals(Command.MESSAGE, message.getCommand());
+        assertEquals("first", message.payload());
+
+        send("/queue/test", "second", "receipt-1");
+        assertEquals("second", listener.next().payload());
+        Frame receipt = listener.next();
+        assertEquals(Command.RECEIPT, receipt.getCommand());
+        assertEquals("receipt-1", receipt.receiptId());
+
+        send(EchoServer.ERROR_DESTINATION, "failure", null);
+        Frame error = listener.next();
+        assertEquals(Command.ERROR, error.getCommand());
+        assertTrue(listener.errors.isEmpty());
+        assertEquals(1, listener.threads.size());
+        assertTrue(listener.threads.iterator().next().startsWith("cougar-dispatcher"));
+    }
+
+    @Test
+    public void customExecutor() throws InterruptedException {
+        connectInVm();
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "custom-executor");
+            }
+        });
+        try {
+            RecordingListener listener = new RecordingListener();
+            client.setMessageListener(listener, executor);
+            for (int i = 0; i < 10; i++) {
+                send("/queue/test", "payload-" + i, null);
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals("payload-" + i, listener.next().payload());
+            }
+            assertEquals(Collections.singleton("custom-executor"), listener.threads);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failingListenerDoesNotStopDispatching() throws InterruptedException {
+        connectInVm();
+        final RecordingListener recorder = new RecordingListener();
+        client.setMessageListener(new RecordingListener() {
+            @Override
+            public void onMessage(Frame message) {
+                recorder.onMessage(message);
+                throw new IllegalStateException("listener failure");
+            }
+        });
+        send("/queue/test", "first", null);
+        send("/queue/test", "second", null);
+        assertEquals("first", recorder.next().payload());
+        assertEquals("second", recorder.next().payload());
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void receiveNotAllowedWhileDispatching() {
+        connectInVm();
+        client.setMessageListener(new RecordingListener());
+        ((ClientImpl) client).receive(100);
+    }
+
+    @Test
+    public void closeStopsReaderQuietly() throws InterruptedException {
+        connectInVm();
+        RecordingListener listener = new RecordingListener();
+        client.setMessageListener(listener);
+        send("/queue/test", "payload", null);
+        listener.next();
+        client.close();
+        assertNull(listener.errors.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void brokenConnectionReported() throws InterruptedException {
+        connectInVm();
+        RecordingListener listener = new RecordingListener();
+        client.setMessageListener(listener);
+        send(EchoServer.CLOSE_DESTINATION, "bye", null);
+        assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+        client = null;
+    }
+
+    @Test
+    public void receivePerSubscription() {
+        connectInVm();
+        String first = client.subscribe("/queue/first");
+        String second = client.subscribe("/queue/second");
+        for (int i = 0; i < 5; i++) {
+            send("/queue/first", "first-" + i, null);
+            send("/queue/second", "second-" + i, null);
+        }
+        // the messages of the first subscription wait in its queue while the second one is read
+        for (int i = 0; i < 5; i++) {
+            Frame message = client.receive(second, 5000);
+            assertEquals(second, message.subscription());
+            assertEquals("second-" + i, message.payload());
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals("first-" + i, client.receive(first, 5000).payload());
+        }
+    }
+
+    @Test
+    public void fullSubscriptionQueueSuspendsReception() throws InterruptedException {
+        client = ConnectionBuilder.connection().hostname(ENDPOINT).transport(Transports.inVm())
+                .wireFormat(WireFormats.bytes()).subscriptionQueueCapacity(2).buildAndConnect();
+        String subscription = client.subscribe("/queue/test");
+        for (int i = 0; i < 10; i++) {
+            send("/queue/test", "message-" + i, null);
+        }
+        // the reader waits for the queue instead of dropping the messages
+        Thread.sleep(200);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message-" + i, client.receive(subscription, 5000).payload());
+        }
+    }
+
+    @Test
+    public void listenerPerSubscription() throws InterruptedException {
+        connectInVm();
+        String first = client.subscribe("/queue/first");
+        String second = client.subscribe("/queue/second");
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener clientListener = new RecordingListener();
+        client.setMessageListener(first, firstListener);
+        client.setMessageListener(clientListener);
+        send("/queue/first", "first", null);
+        send("/queue/unsubscribed", "unsubscribed", null);
+        assertEquals("first", firstListener.next().payload());
+        assertEquals("unsubscribed", clientListener.next().payload());
+        send("/queue/second", "second", null);
+        assertEquals("second", client.receive(second, 5000).payload());
+        assertTrue(clientListener.frames.isEmpty());
+    }
+
+    @Test
+    public void lastUnsubscribeReleasesReader() {
+        connectInVm();
+        String subscription = client.subscribe("/queue/test");
+        send("/queue/test", "pushed", null);
+        assertEquals("pushed", client.receive(subscription, 5000).payload());
+        client.unsubscribe(subscription);
+        // the frames are pulled by receive() again
+        send("/queue/other", "pulled", null);
+        assertEquals("pulled", ((ClientImpl) client).receive(5000).payload());
+        String second = client.subscribe("/queue/second");
+        send("/queue/second", "pushed again", null);
+        assertEquals("pushed again", client.receive(second, 5000).payload());
+    }
+
+    @Test
+    public void lastUnsubscribeDoesNotWaitForReceipt() {
+        connectInVm();
+        String subscription = client.subscribe("/queue/test");
+        send("/queue/test", "pushed", null);
+        assertEquals("pushed", client.receive(subscription, 5000).payload());
+        // the receipt of the UNSUBSCRIBE is held up by the server, the message sent is dropped by the reader
+        send(EchoServer.SLOW_DESTINATION, "slow", null);
+        long start = System.currentTimeMillis();
+        client.unsubscribe(subscription);
+        assertTrue(System.currentTimeMillis() - start < 500);
+        // receive() waits for the reader thread to be released
+        send("/queue/other", "pulled", null);
+        assertEquals("pulled", ((ClientImpl) client).receive(5000).payload());
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void receiveUnknownSubscription() {
+        connectInVm();
+        client.receive("no-such-subscription", 100);
+    }
+
+    @Test
+    public void closeWakesUpSubscriptionReceivers() throws InterruptedException {
+        connectInVm();
+        final String subscription = client.subscribe("/queue/test");
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    client.receive(subscription, 0);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        });
+        receiver.start();
+        Thread.sleep(200);
+        client.close();
+        assertTrue(errors.poll(5, TimeUnit.SECONDS) instanceof StompConnectionException);
+    }
+
+    @Test
+    public void errorFailsSubscriptionReceivers() throws InterruptedException {
+        connectInVm();
+        final String subscription = client.subscribe("/queue/test");
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    client.receive(subscription, 5000);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        });
+        receiver.start();
+        Thread.sleep(200);
+        send(EchoServer.ERROR_DESTINATION, "failure", null);
+        assertTrue(errors.poll(5, TimeUnit.SECONDS) instanceof StompProtocolException);
+    }
+
+    @Test
+    public void readerExitStopsDispatching() throws InterruptedException {
+        connectInVm();
+        final String subscription = client.subscribe("/queue/test");
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    client.receive(subscription, 5000);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        });
+        receiver.start();
+        Thread.sleep(200);
+        send(EchoServer.CLOSE_DESTINATION, "bye", null);
+        assertNotNull(errors.poll(5, TimeUnit.SECONDS));
+        try {
+            ((ClientImpl) client).receive(100);
+            fail("Broken client must not receive");
+        } catch (StompConnectionException e) {
+            // the reader is not running any more - the client is not operational instead
+            assertTrue(e.getMessage().contains("not operational"));
+        }
+        client = null;
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void streamedPayloadsNotDispatched() {
+        client = ConnectionBuilder.connection().hostname(ENDPOINT).transport(Transports.inVm())
+                .wireFormat(WireFormats.bytes()).payloadStreamingThreshold(1024).buildAndConnect();
+        client.setMessageListener(new RecordingListener());
+    }
+
+    @Test
+    public void blockingSocket() throws IOException, InterruptedException {
+        final ServerSocket server = new ServerSocket(0);
+        try {
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket socket = server.accept();
+                        new EchoServer(socket.getInputStream(), socket.getOutputStream()).run();
+                        socket.close();
+                    } catch (IOException e) {
+                        // server closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            client = ConnectionBuilder.connection().hostname("localhost").port(server.getLocalPort())
+                    .buildAndConnect();
+            RecordingListener listener = new RecordingListener();
+            client.setMessageListener(listener);
+            client.send("/queue/test", new FrameDecorator() {
+                public void decorateFrame(Frame frame) {
+                    frame.payload("socket payload");
+                }
+            });
+            assertEquals("socket payload", listener.next().payload());
+            client.close();
+            assertNull(listener.errors.poll(300, TimeUnit.MILLISECONDS));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void eventLoop() throws IOException, InterruptedException {
+        final ServerSocket server = new ServerSocket(0);
+        EventLoopGroup group = new EventLoopGroup(1);
+        try {
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket socket = server.accept();
+                        new EchoServer(socket.getInputStream(), socket.getOutputStream()).run();
+                        socket.close();
+                    } catch (IOException e) {
+                        // server closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            client = ConnectionBuilder.connection().hostname("localhost").port(server.getLocalPort())
+                    .transport(Transports.eventLoop(group)).wireFormat(WireFormats.bytes()).buildAndConnect();
+            RecordingListener listener = new RecordingListener();
+            client.setMessageListener(listener);
+            send("/queue/test", "event loop payload", "receipt-2");
+            assertEquals("event loop payload", listener.next().payload());
+            assertEquals(Command.RECEIPT, listener.next().getCommand());
+            client.close();
+            assertNull(listener.errors.poll(300, TimeUnit.MILLISECONDS));
+        } finally {
+            server.close();
+            group.shutdown();
+        }
+    }
+
+}
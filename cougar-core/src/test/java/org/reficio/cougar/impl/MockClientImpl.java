@@ -53,6 +53,7 @@ public class MockClientImpl extends ClientImpl {
     @Override
     public synchronized void close() {
         assertOperational();
+        beforeClose();
         setState(StompResourceState.CLOSING);
         disconnect();
         mockTransmissionHandler.unmarshall();
@@ -31,10 +31,10 @@ import java.util.concurrent.Executors;
  */
 public class MockConnectionStub {
 
-    private PipedInputStream clientInputStream;
+    private InputStream clientInputStream;
     private PipedOutputStream clientOutputStream;
     private PipedInputStream serverInputStream;
-    private PipedOutputStream serverOutputStream;
+    private OutputStream serverOutputStream;
 
     private Reader serverReader;
     private Writer serverWriter;
@@ -80,11 +80,15 @@ public class MockConnectionStub {
 
     public void initializeStreams(String encoding) {
         try {
-            this.clientInputStream = new PipedInputStream(1024 * 1024);
+            // the frames of the client may be read by different threads over time - by the reader thread of
+            // the client while dispatching, by the caller of receive() afterwards - a PipedInputStream does not
+            // accept any data once the thread which read from it last has finished
+            ClientPipe clientPipe = new ClientPipe();
+            this.clientInputStream = clientPipe.input;
             this.serverInputStream = new PipedInputStream(1024 * 1024);
 
             this.clientOutputStream = new PipedOutputStream(serverInputStream);
-            this.serverOutputStream = new PipedOutputStream(clientInputStream);
+            this.serverOutputStream = clientPipe.output;
 
             this.clientReader = new InputStreamReader(clientInputStream, encoding);
             this.clientWriter = new OutputStreamWriter(clientOutputStream, encoding);
@@ -119,4 +123,87 @@ public class MockConnectionStub {
         return this.executor;
     }
 
+    private static class ClientPipe {
+        private byte[] data = new byte[8192];
+        private int head = 0;
+        private int tail = 0;
+        private boolean closed = false;
+
+        private final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (ClientPipe.this) {
+                    while (head == tail && !closed) {
+                        try {
+                            ClientPipe.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (head == tail) {
+                        return -1;
+                    }
+                    int count = Math.min(len, tail - head);
+                    System.arraycopy(data, head, b, off, count);
+                    head += count;
+                    return count;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (ClientPipe.this) {
+                    return tail - head;
+                }
+            }
+
+            @Override
+            public void close() {
+                closePipe();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (ClientPipe.this) {
+                    if (closed) {
+                        throw new IOException("Pipe closed");
+                    }
+                    if (tail + len > data.length) {
+                        byte[] target = (tail - head + len > data.length) ? new byte[2 * (tail - head + len)] : data;
+                        System.arraycopy(data, head, target, 0, tail - head);
+                        data = target;
+                        tail -= head;
+                        head = 0;
+                    }
+                    System.arraycopy(b, off, data, tail, len);
+                    tail += len;
+                    ClientPipe.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void close() {
+                closePipe();
+            }
+        };
+
+        private synchronized void closePipe() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
 }
\ No newline at end of file
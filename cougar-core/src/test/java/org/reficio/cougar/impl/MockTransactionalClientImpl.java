@@ -48,11 +48,28 @@ public class MockTransactionalClientImpl extends TransactionalClientImpl {
         return mockTransmissionHandler.getStub().getServer();
     }
 
+    public int getFlushCount() {
+        return mockTransmissionHandler.getFlushCount();
+    }
+
+    // simulates a transmission error
+    @Override
+    public void markBroken() {
+        super.markBroken();
+    }
+
     @Override
     public synchronized void close() {
+        if (StompResourceState.BROKEN.equals(getState())) {
+            super.close();
+            return;
+        }
         assertOperational();
+        beforeClose();
         setState(StompResourceState.CLOSING);
         disconnect();
+        // the frames are read by the mock itself once the reader thread has been released
+        awaitReaderRelease();
         mockTransmissionHandler.unmarshall();
         mockTransmissionHandler.getStub().close();
         setState(StompResourceState.CLOSED);
@@ -4,7 +4,11 @@ import org.reficio.cougar.StompException;
 import org.reficio.cougar.core.StompWireFormat;
 import org.reficio.cougar.domain.Frame;
 
+import java.io.FilterWriter;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: Tom Bujok (tomasz.bujok@centeractive.com)
@@ -15,6 +19,8 @@ public class MockTransmissionHandler extends TransmissionHandlerImpl {
 
     private MockConnectionStub stub;
 
+    private final AtomicInteger flushCount = new AtomicInteger();
+
     MockTransmissionHandler(StompWireFormat wireFormat) {
         super(wireFormat, "localhost", 61616, "UTF-8");
         this.socket = new Socket();
@@ -28,7 +34,18 @@ public class MockTransmissionHandler extends TransmissionHandlerImpl {
     protected void initializeStreams(int timeout) {
         stub.initializeStreams("UTF-8");
         this.reader = stub.getMockClientReader();
-        this.writer = stub.getMockClientWriter();
+        this.writer = new FilterWriter(stub.getMockClientWriter()) {
+            @Override
+            public void flush() throws IOException {
+                flushCount.incrementAndGet();
+                super.flush();
+            }
+        };
+    }
+
+    // number of the writes to the mock socket
+    public int getFlushCount() {
+        return flushCount.get();
     }
 
     public void marshall(Frame frame) throws StompException {
@@ -36,6 +53,13 @@ public class MockTransmissionHandler extends TransmissionHandlerImpl {
         super.marshall(frame);
     }
 
+    public void marshall(Collection<Frame> frames) throws StompException {
+        for (Frame frame : frames) {
+            stub.getExecutor().submit(stub.getServer());
+        }
+        super.marshall(frames);
+    }
+
     public MockConnectionStub getStub() {
         return this.stub;
     }
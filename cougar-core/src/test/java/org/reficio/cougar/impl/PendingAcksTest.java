@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.core.AckPolicy;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class PendingAcksTest {
+
+    private PendingAcks pendingAcks;
+
+    @Before
+    public void initialize() {
+        // nothing is sent within the test
+        pendingAcks = new PendingAcks(MockConnectionBuilder.mockConnection().build());
+        pendingAcks.setAckPolicy(AckPolicy.cumulative(Integer.MAX_VALUE, 1, TimeUnit.HOURS));
+    }
+
+    private void receive(String subscriptionId, String messageId) {
+        Frame frame = new Frame(Command.MESSAGE);
+        frame.subscription(subscriptionId);
+        frame.messageId(messageId);
+        pendingAcks.received(frame);
+    }
+
+    @Test
+    public void everyNthAckKeepsTrackingBounded() {
+        for (int i = 1; i <= 10000; i++) {
+            receive("sub1", "msg" + i);
+            receive("sub2", "other" + i);
+            if (i % 10 == 0) {
+                pendingAcks.add("msg" + i);
+                pendingAcks.add("other" + i);
+            }
+            assertTrue(pendingAcks.getTrackedCount() <= 20);
+        }
+        assertEquals(0, pendingAcks.getTrackedCount());
+    }
+
+    @Test
+    public void ackCoversOnlyItsSubscription() {
+        receive("sub1", "msg1");
+        receive("sub2", "msg2");
+        receive("sub1", "msg3");
+        pendingAcks.add("msg3");
+        assertEquals(1, pendingAcks.getTrackedCount());
+        pendingAcks.add("msg2");
+        assertEquals(0, pendingAcks.getTrackedCount());
+    }
+
+    @Test
+    public void cancelledSubscriptionNotTracked() {
+        receive("sub1", "msg1");
+        receive("sub2", "msg2");
+        pendingAcks.removeSubscription("sub1");
+        assertEquals(1, pendingAcks.getTrackedCount());
+    }
+
+}
@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.Test;
+import org.reficio.cougar.StompIOException;
+import org.reficio.cougar.connection.Client;
+import org.reficio.cougar.connection.MessageListenerAdapter;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class QueuedTransmissionHandlerTest {
+
+    static class RecordingTransmissionHandler implements TransmissionHandler {
+        final List<Frame> marshalled = Collections.synchronizedList(new ArrayList<Frame>());
+        volatile int flushes;
+        volatile boolean failing;
+        volatile boolean closed;
+        // holds up the writer until released
+        volatile CountDownLatch gate;
+
+        public void initializeCommunication(int timeout) {
+        }
+
+        public void closeCommunication() {
+            closed = true;
+        }
+
+        public void setReceptionTimeoutInMillis(int timeout) {
+        }
+
+        public void marshall(Frame frame) {
+            if (failing) {
+                throw new StompIOException("Error during data send");
+            }
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            marshalled.add(frame);
+        }
+
+        public void marshall(Collection<Frame> frames) {
+            for (Frame frame : frames) {
+                marshall(frame);
+            }
+            flushes++;
+        }
+
+        public void flush() {
+            flushes++;
+        }
+
+        public Frame unmarshall() {
+            return new Frame(Command.RECEIPT);
+        }
+    }
+
+    private static Frame frame(String payload) {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload(payload);
+        return frame;
+    }
+
+    @Test
+    public void framesFlushedInBatches() {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler();
+        QueuedTransmissionHandler handler = new QueuedTransmissionHandler(target);
+        handler.initializeCommunication(1000);
+        for (int i = 0; i < 1000; i++) {
+            handler.marshall(frame("payload-" + i));
+        }
+        handler.flush();
+        assertEquals(1000, target.marshalled.size());
+        assertTrue(target.flushes < 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("payload-" + i, target.marshalled.get(i).payload());
+        }
+        handler.closeCommunication();
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void closeFlushesQueuedFrames() {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler();
+        QueuedTransmissionHandler handler = new QueuedTransmissionHandler(target);
+        handler.initializeCommunication(1000);
+        for (int i = 0; i < 100; i++) {
+            handler.marshall(frame("payload-" + i));
+        }
+        handler.closeCommunication();
+        assertEquals(100, target.marshalled.size());
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void producersWaitForFullQueue() throws InterruptedException {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler();
+        target.gate = new CountDownLatch(1);
+        final QueuedTransmissionHandler handler = new QueuedTransmissionHandler(target);
+        handler.setMaxQueuedFrames(2);
+        handler.initializeCommunication(1000);
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    handler.marshall(frame("payload-" + i));
+                }
+                sent.countDown();
+            }
+        });
+        producer.start();
+        // one frame is held by the writer, two are queued
+        assertFalse(sent.await(300, TimeUnit.MILLISECONDS));
+        target.gate.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        handler.flush();
+        assertEquals(5, target.marshalled.size());
+        handler.closeCommunication();
+    }
+
+    @Test
+    public void writerFailureReportedToProducers() {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler();
+        target.failing = true;
+        QueuedTransmissionHandler handler = new QueuedTransmissionHandler(target);
+        handler.initializeCommunication(1000);
+        handler.marshall(frame("lost"));
+        try {
+            handler.flush();
+            fail("Failure of the writer should have been reported");
+        } catch (StompIOException e) {
+            // expected
+        }
+        try {
+            handler.marshall(frame("rejected"));
+            fail("Failure of the writer should have been reported");
+        } catch (StompIOException e) {
+            // expected
+        }
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void unexpectedWriterFailureReleasesProducers() throws InterruptedException {
+        RecordingTransmissionHandler target = new RecordingTransmissionHandler() {
+            @Override
+            public void marshall(Frame frame) {
+                super.marshall(frame);
+                throw new IllegalStateException("Unexpected failure");
+            }
+        };
+        target.gate = new CountDownLatch(1);
+        final QueuedTransmissionHandler handler = new QueuedTransmissionHandler(target);
+        handler.setMaxQueuedFrames(2);
+        handler.initializeCommunication(1000);
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 5; i++) {
+                        handler.marshall(frame("payload-" + i));
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        });
+        producer.start();
+        // the producer waits for the full queue until the writer fails
+        Thread.sleep(300);
+        target.gate.countDown();
+        assertTrue(errors.poll(5, TimeUnit.SECONDS) instanceof StompIOException);
+        assertTrue(target.closed);
+        try {
+            handler.flush();
+            fail("Failure of the writer should have been reported");
+        } catch (StompIOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void concurrentProducersOnOneConnection() throws InterruptedException {
+        String endpoint = "queued-transmission-test";
+        InVmEndpoints.bind(endpoint, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+                EchoServer.start(Channels.newInputStream(input), Channels.newOutputStream(output));
+            }
+        });
+        final int producers = 8;
+        final int framesPerProducer = 250;
+        try {
+            final Client client = ConnectionBuilder.connection().hostname(endpoint).transport(Transports.inVm())
+                    .wireFormat(WireFormats.bytes()).threadSafe(true).buildAndConnect();
+            final BlockingQueue<Frame> messages = new LinkedBlockingQueue<Frame>();
+            client.setMessageListener(new MessageListenerAdapter() {
+                @Override
+                public void onMessage(Frame message) {
+                    messages.add(message);
+                }
+            });
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < framesPerProducer; i++) {
+                            ((ClientImpl) client).send(frame(producer + ":" + i));
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // the frames of every producer arrive whole and in order
+            int[] next = new int[producers];
+            for (int i = 0; i < producers * framesPerProducer; i++) {
+                Frame message = messages.poll(5, TimeUnit.SECONDS);
+                assertNotNull("Message has not arrived", message);
+                String[] parts = message.payload().split(":");
+                int producer = Integer.parseInt(parts[0]);
+                assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+            }
+            client.close();
+        } finally {
+            InVmEndpoints.unbind(endpoint);
+        }
+    }
+
+}
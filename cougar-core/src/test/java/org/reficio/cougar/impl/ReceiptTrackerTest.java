@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompProtocolException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.Client;
+import org.reficio.cougar.connection.ReceiptFuture;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class ReceiptTrackerTest {
+
+    private static final String ENDPOINT = "receipt-tracker-test";
+
+    private Client client;
+
+    private static Frame receipt(String receiptId) {
+        Frame frame = new Frame(Command.RECEIPT);
+        frame.receiptId(receiptId);
+        return frame;
+    }
+
+    private static Throwable failureOf(ReceiptFuture future) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Future should have failed");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (TimeoutException e) {
+            throw new AssertionError("Future has not been completed");
+        }
+    }
+
+    @Before
+    public void bindEndpoint() {
+        InVmEndpoints.bind(ENDPOINT, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+                EchoServer.start(Channels.newInputStream(input), Channels.newOutputStream(output));
+            }
+        });
+    }
+
+    @After
+    public void unbindEndpoint() {
+        if (client != null && client.isConnected()) {
+            client.close();
+        }
+        InVmEndpoints.unbind(ENDPOINT);
+    }
+
+    @Test
+    public void completedByMatchingReceipt() throws Exception {
+        ReceiptTracker tracker = new ReceiptTracker();
+        ReceiptFuture first = tracker.register("r-1", 5000);
+        ReceiptFuture second = tracker.register("r-2", 5000);
+        assertTrue(tracker.handleFrame(receipt("r-2")));
+        assertFalse(tracker.handleFrame(receipt("unknown")));
+        assertTrue(second.isDone());
+        assertEquals("r-2", second.get().receiptId());
+        assertFalse(first.isDone());
+        assertEquals(1, tracker.getPendingCount());
+        tracker.stop();
+    }
+
+    @Test
+    public void errorWithReceiptIdFailsMatchingFuture() throws Exception {
+        ReceiptTracker tracker = new ReceiptTracker();
+        ReceiptFuture first = tracker.register("r-1", 5000);
+        ReceiptFuture second = tracker.register("r-2", 5000);
+        Frame error = new Frame(Command.ERROR, false);
+        error.errorMessageContent("rejected");
+        error.custom("receipt-id", "r-1");
+        assertFalse(tracker.handleFrame(error));
+        assertTrue(failureOf(first) instanceof StompProtocolException);
+        assertFalse(second.isDone());
+        tracker.stop();
+    }
+
+    @Test
+    public void expiredFuturesFail() throws Exception {
+        ReceiptTracker tracker = new ReceiptTracker();
+        ReceiptFuture future = tracker.register("r-1", 50);
+        assertTrue(failureOf(future) instanceof StompSocketTimeoutException);
+        assertEquals(0, tracker.getPendingCount());
+        tracker.stop();
+    }
+
+    @Test
+    public void cancelledFutureIgnoresReceipt() {
+        ReceiptTracker tracker = new ReceiptTracker();
+        ReceiptFuture future = tracker.register("r-1", 5000);
+        assertTrue(future.cancel(false));
+        tracker.handleFrame(receipt("r-1"));
+        assertTrue(future.isCancelled());
+        tracker.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateReceiptId() {
+        ReceiptTracker tracker = new ReceiptTracker();
+        tracker.register("r-1", 5000);
+        tracker.register("r-1", 5000);
+    }
+
+    @Test
+    public void pipelinedSends() throws Exception {
+        client = ConnectionBuilder.connection().hostname(ENDPOINT).transport(Transports.inVm())
+                .wireFormat(WireFormats.bytes()).buildAndConnect();
+        List<ReceiptFuture> futures = new ArrayList<ReceiptFuture>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(client.sendAsync("/queue/test"));
+        }
+        for (ReceiptFuture future : futures) {
+            assertEquals(future.getReceiptId(), future.get(5, TimeUnit.SECONDS).receiptId());
+        }
+    }
+
+    @Test
+    public void errorFailsPendingSends() throws Exception {
+        client = ConnectionBuilder.connection().hostname(ENDPOINT).transport(Transports.inVm())
+                .wireFormat(WireFormats.bytes()).buildAndConnect();
+        ReceiptFuture future = client.sendAsync(EchoServer.ERROR_DESTINATION);
+        assertTrue(failureOf(future) instanceof StompProtocolException);
+    }
+
+    @Test
+    public void brokenConnectionFailsPendingSends() throws Exception {
+        client = ConnectionBuilder.connection().hostname(ENDPOINT).transport(Transports.inVm())
+                .wireFormat(WireFormats.bytes()).buildAndConnect();
+        // the echo server closes the connection instead of sending the receipt
+        ReceiptFuture future = client.sendAsync(EchoServer.CLOSE_DESTINATION);
+        assertTrue(failureOf(future) instanceof StompException);
+        client = null;
+    }
+
+    @Test
+    public void stopFailsPendingFutures() throws Exception {
+        ReceiptTracker tracker = new ReceiptTracker();
+        ReceiptFuture future = tracker.register("r-1", 5000);
+        tracker.failAll(new StompConnectionException("Connection has been closed"));
+        tracker.stop();
+        assertTrue(failureOf(future) instanceof StompConnectionException);
+    }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.Test;
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.MessageListenerAdapter;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class SubscriptionQueueTest {
+
+    private static Frame message(String payload) {
+        Frame frame = new Frame(Command.MESSAGE);
+        frame.subscription("sub-1");
+        frame.payload(payload);
+        return frame;
+    }
+
+    @Test
+    public void receiveInOrder() {
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 10);
+        queue.deliver(message("first"));
+        queue.deliver(message("second"));
+        assertEquals("first", queue.receive(100).payload());
+        assertEquals("second", queue.receive(100).payload());
+    }
+
+    @Test(expected = StompSocketTimeoutException.class)
+    public void receiveTimeout() {
+        new SubscriptionQueue("sub-1", 10).receive(50);
+    }
+
+    @Test
+    public void pollNeverWaits() {
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 10);
+        assertNull(queue.poll());
+        queue.deliver(message("queued"));
+        queue.close(new StompConnectionException("closed"));
+        assertEquals("queued", queue.poll().payload());
+        try {
+            queue.poll();
+            fail("Queue should have been closed");
+        } catch (StompConnectionException e) {
+            assertEquals("closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void closeWakesUpReceivers() {
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 10);
+        queue.deliver(message("queued"));
+        queue.close(new StompConnectionException("closed"));
+        assertEquals("queued", queue.receive(100).payload());
+        for (int i = 0; i < 2; i++) {
+            try {
+                queue.receive(100);
+                fail("Queue should have been closed");
+            } catch (StompConnectionException e) {
+                assertEquals("closed", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void closeFullQueue() throws InterruptedException {
+        final SubscriptionQueue queue = new SubscriptionQueue("sub-1", 2);
+        queue.deliver(message("first"));
+        queue.deliver(message("second"));
+        queue.close(new StompConnectionException("closed"));
+        assertEquals("first", queue.receive(100).payload());
+        assertEquals("second", queue.receive(100).payload());
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    queue.receive(0);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        });
+        receiver.start();
+        assertTrue(errors.poll(5, TimeUnit.SECONDS) instanceof StompConnectionException);
+    }
+
+    static class RecordingFlowControl implements SubscriptionQueue.FlowControl {
+        int suspended;
+        int resumed;
+
+        public void suspendReception() {
+            suspended++;
+        }
+
+        public void resumeReception() {
+            resumed++;
+        }
+    }
+
+    @Test
+    public void fullQueueSuspendsReception() {
+        RecordingFlowControl flowControl = new RecordingFlowControl();
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 4, flowControl);
+        for (int i = 0; i < 6; i++) {
+            // returns at once - the thread receiving the frames is never blocked
+            queue.deliver(message("message-" + i));
+        }
+        assertEquals(1, flowControl.suspended);
+        // no message is dropped, the reception is resumed once the queue is half empty
+        for (int i = 0; i < 3; i++) {
+            assertEquals("message-" + i, queue.receive(100).payload());
+            assertEquals(0, flowControl.resumed);
+        }
+        assertEquals("message-3", queue.receive(100).payload());
+        assertEquals(1, flowControl.resumed);
+        assertEquals("message-4", queue.receive(100).payload());
+        assertEquals("message-5", queue.receive(100).payload());
+        assertEquals(1, flowControl.suspended);
+    }
+
+    @Test
+    public void closeResumesReception() {
+        RecordingFlowControl flowControl = new RecordingFlowControl();
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 1, flowControl);
+        queue.deliver(message("first"));
+        queue.close(new StompConnectionException("closed"));
+        assertEquals(1, flowControl.suspended);
+        assertEquals(1, flowControl.resumed);
+        assertEquals("first", queue.receive(100).payload());
+        assertEquals(1, flowControl.resumed);
+    }
+
+    @Test
+    public void listenerReceivesQueuedAndNewMessages() throws InterruptedException {
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 101);
+        queue.deliver(message("queued"));
+        final BlockingQueue<String> payloads = new LinkedBlockingQueue<String>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            queue.setListener(new MessageListenerAdapter() {
+                @Override
+                public void onMessage(Frame message) {
+                    payloads.add(message.payload());
+                }
+            }, executor);
+            for (int i = 0; i < 100; i++) {
+                queue.deliver(message("message-" + i));
+            }
+            assertEquals("queued", payloads.poll(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertEquals("message-" + i, payloads.poll(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void receiveNotAllowedWithListener() {
+        SubscriptionQueue queue = new SubscriptionQueue("sub-1", 10);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            queue.setListener(new MessageListenerAdapter() {
+            }, executor);
+            queue.receive(100);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.reficio.cougar.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.Connection;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.core.TransportFactory;
+import org.reficio.cougar.core.TransportSettings;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.domain.Header;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org/
+ */
+public class TransportsTest {
+
+    private static final String ENDPOINT = "transports-test";
+    private static final int PORT = 32612;
+
+    @Before
+    public void bindEndpoint() {
+        InVmEndpoints.bind(ENDPOINT, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+                EchoServer.start(Channels.newInputStream(input), Channels.newOutputStream(output));
+            }
+        });
+    }
+
+    @After
+    public void unbindEndpoint() {
+        InVmEndpoints.unbind(ENDPOINT);
+    }
+
+    private void assertEcho(Connection connection, String payload) {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload(payload);
+        connection.send(frame);
+        Frame message = connection.receive(5000);
+        assertEquals(Command.MESSAGE, message.getCommand());
+        assertEquals("/queue/test", message.destination());
+        assertEquals(payload, message.payload());
+    }
+
+    @Test
+    public void inVmTextWireFormat() {
+        Connection connection = ConnectionBuilder.client().hostname(ENDPOINT)
+                .transport(Transports.inVm()).buildAndConnect();
+        assertEquals("session-1", connection.getSessionId());
+        assertEcho(connection, "text payload \u0105\u0119");
+        connection.close();
+    }
+
+    @Test
+    public void inVmByteWireFormat() {
+        Connection connection = ConnectionBuilder.client().hostname(ENDPOINT)
+                .transport(Transports.inVm()).wireFormat(WireFormats.bytes()).buildAndConnect();
+        assertEcho(connection, "byte payload");
+        assertEcho(connection, "second payload");
+        connection.close();
+    }
+
+    @Test
+    public void inVmReceptionTimeout() {
+        Connection connection = ConnectionBuilder.client().hostname(ENDPOINT)
+                .transport(Transports.inVm()).wireFormat(WireFormats.bytes()).buildAndConnect();
+        try {
+            connection.receive(200);
+            fail("Reception should have timed out");
+        } catch (StompSocketTimeoutException e) {
+            // the connection stays operational after the timeout
+        }
+        assertTrue(connection.isConnected());
+        assertEcho(connection, "after timeout");
+        connection.close();
+    }
+
+    @Test
+    public void inVmBatchWithGatheredPayloads() {
+        Connection connection = ConnectionBuilder.client().hostname(ENDPOINT)
+                .transport(Transports.inVm()).wireFormat(WireFormats.bytes()).buildAndConnect();
+        char[] large = new char[10000];
+        Arrays.fill(large, 'x');
+        List<String> payloads = Arrays.asList("small", new String(large), "between", new String(large, 0, 5000), "last");
+        List<Frame> batch = new ArrayList<Frame>();
+        for (String payload : payloads) {
+            Frame frame = new Frame(Command.SEND);
+            frame.destination("/queue/test");
+            frame.binaryPayload(payload.getBytes());
+            batch.add(frame);
+        }
+        connection.send(batch);
+        for (String payload : payloads) {
+            Frame message = connection.receive(5000);
+            assertEquals(Command.MESSAGE, message.getCommand());
+            assertEquals(payload, message.payload());
+        }
+        assertEcho(connection, "after batch");
+        connection.close();
+    }
+
+    @Test
+    public void inVmFailedBatchWithGatheredPayloadsDiscarded() {
+        // the connection wraps the handler, breaking itself on the failure - it is used directly instead
+        final List<TransmissionHandler> handlers = new ArrayList<TransmissionHandler>();
+        Connection connection = ConnectionBuilder.client().hostname(ENDPOINT).wireFormat(WireFormats.bytes())
+                .transport(new TransportFactory() {
+                    public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+                        TransmissionHandler handler = Transports.inVm().createTransmissionHandler(settings);
+                        handlers.add(handler);
+                        return handler;
+                    }
+                }).buildAndConnect();
+        char[] large = new char[10000];
+        Arrays.fill(large, 'x');
+        List<Frame> batch = new ArrayList<Frame>();
+        Frame first = new Frame(Command.SEND);
+        first.destination("/queue/test");
+        first.binaryPayload(new String(large).getBytes());
+        batch.add(first);
+        // fails once its command has been encoded
+        Frame broken = new Frame(Command.SEND) {
+            @Override
+            public List<Header> getHeaders() {
+                for (StackTraceElement element : new Throwable().getStackTrace()) {
+                    if (element.getMethodName().equals("marshalHeaders")) {
+                        throw new IllegalStateException("Headers cannot be encoded");
+                    }
+                }
+                return super.getHeaders();
+            }
+        };
+        broken.destination("/queue/test");
+        broken.binaryPayload(new String(large).getBytes());
+        batch.add(broken);
+        try {
+            handlers.get(0).marshall(batch);
+            fail("Batch should have failed");
+        } catch (IllegalStateException e) {
+            // the frames of the batch encoded before are not sent without their payloads
+        }
+        assertEcho(connection, "after batch");
+        connection.close();
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void inVmNoEndpoint() {
+        ConnectionBuilder.client().hostname("no-such-endpoint").transport(Transports.inVm()).buildAndConnect();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void inVmEndpointAlreadyBound() {
+        InVmEndpoints.bind(ENDPOINT, new InVmEndpoints.Acceptor() {
+            public void accept(ReadableByteChannel input, WritableByteChannel output) {
+            }
+        });
+    }
+
+    @Test
+    public void socketChannel() throws IOException {
+        final ServerSocket srv = new ServerSocket(PORT);
+        try {
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket socket = srv.accept();
+                        new EchoServer(socket.getInputStream(), socket.getOutputStream()).run();
+                        socket.close();
+                    } catch (IOException e) {
+                        // server closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            Connection connection = ConnectionBuilder.client().hostname("localhost").port(PORT)
+                    .transport(Transports.socketChannel()).wireFormat(WireFormats.bytes()).buildAndConnect();
+            assertEcho(connection, "socket channel payload");
+            connection.close();
+        } finally {
+            srv.close();
+        }
+    }
+
+    @Test(expected = StompConnectionException.class)
+    public void socketChannelConnectionError() {
+        ConnectionBuilder.client().hostname("localhost").port(PORT).timeout(1000)
+                .transport(Transports.socketChannel()).buildAndConnect();
+    }
+
+}
@@ -19,6 +19,7 @@ package org.reficio.cougar.impl;
 
 import org.apache.commons.lang.RandomStringUtils;
 import org.junit.Test;
+import org.reficio.cougar.StompEncodingException;
 import org.reficio.cougar.StompIOException;
 import org.reficio.cougar.StompWireFormatException;
 import org.reficio.cougar.core.StompWireFormat;
@@ -269,6 +270,29 @@ public class WireFormatTest {
        Frame frame = wireFormat.unmarshal(reader);
     }
 
+    @Test
+    public void contentLengthOfNonAsciiPayload() throws IOException {
+       String payload = "za\u017c\u00f3\u0142\u0107 \u20ac \ud83d\ude00";
+       Frame frame = new Frame(Command.SEND);
+       frame.destination("/queue/test");
+       frame.payload(payload);
+       assertEquals(String.valueOf(payload.getBytes("UTF-8").length), frame.contentLength());
+
+       ByteArrayOutputStream output = new ByteArrayOutputStream();
+       Writer writer = new OutputStreamWriter(output, "UTF-8");
+       StompWireFormat wireFormat = new WireFormatImpl();
+       // the first frame must not be read beyond its payload
+       wireFormat.marshal(frame, writer);
+       wireFormat.marshal(frame, writer);
+
+       Reader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output.toByteArray()), "UTF-8"));
+       for (int i = 0; i < 2; i++) {
+           Frame result = wireFormat.unmarshal(reader);
+           assertEquals(payload, result.payload());
+           assertEquals(frame.contentLength(), result.contentLength());
+       }
+    }
+
     @Test(expected = StompWireFormatException.class)
     public void parsePayloadWithContentLengthTooSmall() throws IOException {
        String payload = "test_payload";
@@ -310,9 +334,8 @@ public class WireFormatTest {
        marshalledFrame += WireFormatImpl.END_OF_LINE + payload + WireFormatImpl.END_OF_FRAME;
        Reader reader = new BufferedReader(new StringReader(marshalledFrame));
 
-       char c[]=new char[payload.length()];
        Reader spy = spy(reader);
-       doThrow(new IOException()).when(spy).read(c,0,payload.length());
+       doThrow(new IOException()).when(spy).read(any(char[].class), anyInt(), anyInt());
        StompWireFormat wireFormat = new WireFormatImpl();
        Frame frame = wireFormat.unmarshal(spy);
     }
@@ -365,6 +388,29 @@ public class WireFormatTest {
         wireFormat.unmarshal(reader);
     }
 
+    @Test(expected = StompEncodingException.class)
+    public void marshallBinaryPayload() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.binaryPayload(new byte[]{1, 2, 3});
+        new WireFormatImpl().marshal(frame, new StringWriter());
+    }
 
+    @Test
+    public void unmarshallPayloadReadInChunks() {
+        Frame frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload("payload delivered in chunks");
+        StringWriter writer = new StringWriter();
+        new WireFormatImpl().marshal(frame, writer);
+        // returns at most 3 chars per read, as a socket may do
+        Reader reader = new FilterReader(new StringReader(writer.toString())) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 3));
+            }
+        };
+        assertEquals("payload delivered in chunks", new WireFormatImpl().unmarshal(reader).payload());
+    }
 
 }
@@ -0,0 +1,182 @@
+package org.reficio.cougar.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.Connection;
+import org.reficio.cougar.core.TransmissionHandler;
+import org.reficio.cougar.core.TransportFactory;
+import org.reficio.cougar.core.TransportSettings;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.impl.ConnectionBuilder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame overhead of the close-on-error decoration of the transmission handler - the reflection proxy
+ * the connection used to create compared to the handler the connection decorates its transport with now.
+ * The target does no I/O, it hands the frames over to the blackhole, so only the cost of the decoration is
+ * measured. The decorated handler is taken from a connection built with the public builder, so the benchmark
+ * does not have to live in the package of the implementation.
+ * <p/>
+ * Build with the performance profile of the parent pom, run with:
+ * java -cp [classpath] org.reficio.cougar.perf.TransmissionHandlerBenchmark
+ * <p/>
+ * Reficio (TM) - Reestablish your software!
+ * http://www.reficio.org
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class TransmissionHandlerBenchmark {
+
+    private TransmissionHandler proxy;
+    private TransmissionHandler direct;
+    private Frame frame;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws Exception {
+        frame = new Frame(Command.SEND);
+        frame.destination("/queue/test");
+        frame.payload("James Bond 007!");
+        final TransmissionHandler target = new NoOpTransmissionHandler(blackhole, frame);
+        Connection connection = ConnectionBuilder.client().transport(new TransportFactory() {
+            public TransmissionHandler createTransmissionHandler(TransportSettings settings) {
+                return target;
+            }
+        }).build();
+        proxy = CloseOnErrorInvocationHandler.getHandler(connection, target);
+        direct = (TransmissionHandler) accessibleMethod(connection.getClass(), "getTransmissionHandler")
+                .invoke(connection);
+    }
+
+    // the members of the connection are not a part of its public interface
+    private static Method accessibleMethod(Class<?> clazz, String name) throws NoSuchMethodException {
+        for (Class<?> type = clazz; type != null; type = type.getSuperclass()) {
+            try {
+                Method method = type.getDeclaredMethod(name);
+                method.setAccessible(true);
+                return method;
+            } catch (NoSuchMethodException e) {
+                // declared by the superclass
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    @Benchmark
+    public void proxyMarshall() {
+        proxy.marshall(frame);
+    }
+
+    @Benchmark
+    public void directMarshall() {
+        direct.marshall(frame);
+    }
+
+    @Benchmark
+    public Frame proxyUnmarshall() {
+        return proxy.unmarshall();
+    }
+
+    @Benchmark
+    public Frame directUnmarshall() {
+        return direct.unmarshall();
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TransmissionHandlerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    // the frames are consumed by the blackhole, so the calls cannot be eliminated
+    private static class NoOpTransmissionHandler implements TransmissionHandler {
+
+        private final Blackhole blackhole;
+        private final Frame frame;
+
+        NoOpTransmissionHandler(Blackhole blackhole, Frame frame) {
+            this.blackhole = blackhole;
+            this.frame = frame;
+        }
+
+        public void initializeCommunication(int timeout) {
+        }
+
+        public void closeCommunication() {
+        }
+
+        public void setReceptionTimeoutInMillis(int timeout) {
+        }
+
+        public void marshall(Frame frame) {
+            blackhole.consume(frame);
+        }
+
+        public void marshall(Collection<Frame> frames) {
+            blackhole.consume(frames);
+        }
+
+        public void flush() {
+        }
+
+        public Frame unmarshall() {
+            return frame;
+        }
+    }
+
+    // the reflection proxy the connection used to wrap its transmission handler in
+    private static class CloseOnErrorInvocationHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private final Method markBroken;
+        private final TransmissionHandler target;
+
+        CloseOnErrorInvocationHandler(Connection connection, TransmissionHandler target)
+                throws NoSuchMethodException {
+            this.connection = connection;
+            this.markBroken = accessibleMethod(connection.getClass(), "markBroken");
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(this.target, args);
+            } catch (InvocationTargetException ex) {
+                Throwable targetException = ex.getTargetException();
+                if ((targetException instanceof StompSocketTimeoutException) == false) {
+                    markBroken.invoke(connection);
+                    target.closeCommunication();
+                }
+                throw targetException;
+            }
+        }
+
+        static TransmissionHandler getHandler(Connection connection, TransmissionHandler target)
+                throws NoSuchMethodException {
+            return (TransmissionHandler) Proxy.newProxyInstance(TransmissionHandler.class.getClassLoader(),
+                    new Class[]{TransmissionHandler.class}, new CloseOnErrorInvocationHandler(connection, target));
+        }
+    }
+
+}
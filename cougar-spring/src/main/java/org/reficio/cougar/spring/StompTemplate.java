@@ -17,8 +17,11 @@
 package org.reficio.cougar.spring;
 
 import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompSocketTimeoutException;
 import org.reficio.cougar.connection.TransactionalClient;
 import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.domain.Ack;
+import org.reficio.cougar.domain.Command;
 import org.reficio.cougar.domain.Frame;
 import org.reficio.cougar.spring.connection.ConnectionFactoryUtils;
 import org.reficio.cougar.spring.connection.StompResourceHolder;
@@ -28,10 +31,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 public class StompTemplate extends StompAccessor {
 
     private static final transient Logger log = LoggerFactory.getLogger(StompTemplate.class);
 
+    public static final int RECEIVE_TIMEOUT_INDEFINITE_WAIT = 0;
+
+    public static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+
     /**
      * Internal ResourceFactory adapter for interacting with
      * ConnectionFactoryUtils
@@ -40,6 +55,16 @@ public class StompTemplate extends StompAccessor {
 
     private boolean connectionTransacted = false;
 
+    private boolean cacheSubscriptions = false;
+
+    private int receiveTimeout = RECEIVE_TIMEOUT_INDEFINITE_WAIT;
+
+    private int batchChunkSize = DEFAULT_BATCH_CHUNK_SIZE;
+
+    // client -> (destination + selector -> subscription id), the entries of the released clients are collected
+    private final Map<TransactionalClient, Map<String, String>> subscriptions =
+            new WeakHashMap<TransactionalClient, Map<String, String>>();
+
     public void send(final String destination,
                      final FrameDecorator frameDecorator) {
         execute(new ConnectionCallback<Object>() {
@@ -51,6 +76,33 @@ public class StompTemplate extends StompAccessor {
         });
     }
 
+    // one frame per decorator, all of them sent within a single transaction on a single connection
+    public void sendBatch(final String destination,
+                          final Iterable<? extends FrameDecorator> frameDecorators) {
+        Assert.notNull(destination, "Destination must not be null");
+        Assert.notNull(frameDecorators, "FrameDecorators must not be null");
+        execute(new ConnectionCallback<Object>() {
+            @Override
+            public Object doInStomp(TransactionalClient client) throws StompException {
+                doSendBatch(client, new SendFrameIterable(destination, frameDecorators));
+                return null;
+            }
+        });
+    }
+
+    // the frames have to carry their destinations, the transaction header is set by the client
+    public void sendBatch(final Collection<Frame> frames) {
+        Assert.notNull(frames, "Frames must not be null");
+        execute(new ConnectionCallback<Object>() {
+            @Override
+            public Object doInStomp(TransactionalClient client) throws StompException {
+                doSendBatch(client, frames);
+                return null;
+            }
+        });
+    }
+
+    // returns null if no message has been received within the receive timeout
     public Frame receive(final String destination) {
         return execute(new FrameReceiverCallback(destination));
     }
@@ -94,6 +146,48 @@ public class StompTemplate extends StompAccessor {
         }
     }
 
+    // a transaction is begun for the batch unless the client is already in one - a single COMMIT in any case,
+    // issued here unless the transaction is managed by spring, and a single flush per chunk of frames
+    protected void doSendBatch(TransactionalClient client, Iterable<Frame> frames) throws StompException {
+        boolean batchTransaction = false;
+        if (client.isInTransaction() == false) {
+            client.begin();
+            batchTransaction = true;
+        }
+        try {
+            List<Frame> chunk = new ArrayList<Frame>(getBatchChunkSize());
+            for (Frame frame : frames) {
+                Assert.notNull(frame, "Frame must not be null");
+                chunk.add(frame);
+                if (chunk.size() == getBatchChunkSize()) {
+                    client.send(chunk);
+                    chunk = new ArrayList<Frame>(getBatchChunkSize());
+                }
+            }
+            if (chunk.isEmpty() == false) {
+                client.send(chunk);
+            }
+            if (batchTransaction || (this.isConnectionTransacted() && isConnectionLocallyTransacted(client))) {
+                client.commit();
+            }
+        } catch (RuntimeException ex) {
+            if (batchTransaction) {
+                rollbackQuietly(client);
+            }
+            throw ex;
+        }
+    }
+
+    private void rollbackQuietly(TransactionalClient client) {
+        try {
+            if (client.isInTransaction()) {
+                client.rollback();
+            }
+        } catch (StompException ex) {
+            log.warn("Batch transaction could not be rolled back", ex);
+        }
+    }
+
     /**
      * This implementation overrides the superclass method to use JMS 1.0.2 API.
      */
@@ -114,6 +208,61 @@ public class StompTemplate extends StompAccessor {
                         client, getConnectionFactory());
     }
 
+    // the subscriptions are made with ack=client - only the message returned is acknowledged, the ones queued
+    // in the meantime are redelivered by the broker once the subscription is cancelled
+    protected Frame doReceive(TransactionalClient client, String subscriptionId) throws StompException {
+        Frame message;
+        try {
+            message = client.receive(subscriptionId, getReceiveTimeout());
+        } catch (StompSocketTimeoutException ex) {
+            return null;
+        }
+        client.ack(message.messageId());
+        if (this.isConnectionTransacted() && isConnectionLocallyTransacted(client)) {
+            client.commit();
+        }
+        return message;
+    }
+
+    // the subscriptions are kept per client as handed out by the connection factory - the ones made through
+    // a proxy of the CachingConnectionFactory are cancelled once the proxy is closed, so they are reused as long
+    // as the proxy is held, within a transaction synchronized by the StompTransactionManager for instance
+    private String getCachedSubscription(TransactionalClient client, String destination, String selector) {
+        // header values cannot contain a newline
+        String key = (selector == null) ? destination : destination + "\n" + selector;
+        Map<String, String> subscriptionIds;
+        synchronized (subscriptions) {
+            subscriptionIds = subscriptions.get(client);
+            if (subscriptionIds == null) {
+                subscriptionIds = new HashMap<String, String>();
+                subscriptions.put(client, subscriptionIds);
+            }
+        }
+        // a client is used by one thread at a time
+        String subscriptionId = subscriptionIds.get(key);
+        if (subscriptionId == null) {
+            subscriptionId = subscribe(client, destination, selector);
+            subscriptionIds.put(key, subscriptionId);
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Cached subscription [%s] to [%s] on Stomp Client: %s",
+                        subscriptionId, destination, client));
+            }
+        }
+        return subscriptionId;
+    }
+
+    private String subscribe(TransactionalClient client, String destination, final String selector) {
+        return client.subscribe(destination, new FrameDecorator() {
+            @Override
+            public void decorateFrame(Frame frame) {
+                frame.ack(Ack.CLIENT);
+                if (selector != null) {
+                    frame.selector(selector);
+                }
+            }
+        });
+    }
+
     private class FrameReceiverCallback implements ConnectionCallback<Frame> {
         private final String destination;
         private final String selector;
@@ -129,19 +278,14 @@ public class StompTemplate extends StompAccessor {
 
         @Override
         public Frame doInStomp(TransactionalClient client) throws StompException {
+            if (isCacheSubscriptions()) {
+                // a single frame read - the messages of the subscription are queued by the client in the meantime
+                return doReceive(client, getCachedSubscription(client, destination, selector));
+            }
             String subscriptionId = null;
             try {
-                if (selector == null) {
-                    subscriptionId = client.subscribe(destination);
-                } else {
-                    subscriptionId = client.subscribe(destination, new FrameDecorator() {
-                        @Override
-                        public void decorateFrame(Frame frame) {
-                            frame.selector(selector);
-                        }
-                    });
-                }
-                return client.receive();
+                subscriptionId = subscribe(client, destination, selector);
+                return doReceive(client, subscriptionId);
             } finally {
                 // TODO - check this part, because if error occurs the client shouldn't be reused
                 // cleanup
@@ -152,6 +296,45 @@ public class StompTemplate extends StompAccessor {
         }
     }
 
+    // creates the SEND frames lazily, so a single chunk of them is held in memory at a time
+    private static class SendFrameIterable implements Iterable<Frame> {
+        private final String destination;
+        private final Iterable<? extends FrameDecorator> frameDecorators;
+
+        public SendFrameIterable(String destination, Iterable<? extends FrameDecorator> frameDecorators) {
+            this.destination = destination;
+            this.frameDecorators = frameDecorators;
+        }
+
+        @Override
+        public Iterator<Frame> iterator() {
+            final Iterator<? extends FrameDecorator> decorators = frameDecorators.iterator();
+            return new Iterator<Frame>() {
+                @Override
+                public boolean hasNext() {
+                    return decorators.hasNext();
+                }
+
+                @Override
+                public Frame next() {
+                    FrameDecorator frameDecorator = decorators.next();
+                    Assert.notNull(frameDecorator, "FrameDecorator must not be null");
+                    Frame frame = new Frame(Command.SEND);
+                    frame.destination(destination);
+                    // the destination cannot be changed by the decorator, as in the single send
+                    frame.freeze();
+                    frameDecorator.decorateFrame(frame);
+                    return frame;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
     /**
      * ResourceFactory implementation that delegates to this spring's
      * protected callback methods.
@@ -186,6 +369,36 @@ public class StompTemplate extends StompAccessor {
         this.connectionTransacted = connectionTransacted;
     }
 
+    public boolean isCacheSubscriptions() {
+        return this.cacheSubscriptions;
+    }
+
+    // keeps the subscriptions of the receive calls open as long as the connection is held - meant for the
+    // connections bound to a transaction, the ones released after the call are subscribed each time anyway
+    public void setCacheSubscriptions(boolean cacheSubscriptions) {
+        this.cacheSubscriptions = cacheSubscriptions;
+    }
+
+    public int getReceiveTimeout() {
+        return this.receiveTimeout;
+    }
+
+    // in milliseconds, RECEIVE_TIMEOUT_INDEFINITE_WAIT by default
+    public void setReceiveTimeout(int receiveTimeout) {
+        Assert.isTrue(receiveTimeout >= 0, "receiveTimeout cannot be negative");
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    public int getBatchChunkSize() {
+        return this.batchChunkSize;
+    }
+
+    // number of the frames of a batch written to the socket with a single flush, DEFAULT_BATCH_CHUNK_SIZE by default
+    public void setBatchChunkSize(int batchChunkSize) {
+        Assert.isTrue(batchChunkSize > 0, "batchChunkSize has to be positive");
+        this.batchChunkSize = batchChunkSize;
+    }
+
 }
 
 // COMMENTS:
@@ -0,0 +1,291 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.reficio.cougar.spring.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.connection.ConnectionFactory;
+import org.reficio.cougar.connection.TransactionalClient;
+import org.reficio.cougar.core.StompResourceState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * {@link ConnectionFactory} keeping the Clients created by the target ConnectionFactory
+ * open across the calls, so that a {@link org.reficio.cougar.spring.StompTemplate} does
+ * not pay the connection handshake per operation. Modelled on Spring's JMS
+ * CachingConnectionFactory, plugs into {@link org.reficio.cougar.spring.core.StompAccessor#setConnectionFactory}
+ * as it is.
+ *
+ * <p>Returned Clients are proxies implementing the {@link TxClientProxy} interface.
+ * Their <code>close</code> calls - the ones issued by {@link ConnectionFactoryUtils#releaseConnection}
+ * as well - are suppressed and hand the target Client back to the cache instead,
+ * rolling back a transaction left open by the caller. Up to "cacheSize" idle Clients
+ * are kept, the surplus ones are physically closed.
+ *
+ * <p>Clients which are no longer connected, for example BROKEN by a transmission error,
+ * are discarded instead of being cached or handed out, and a new Client is transparently
+ * created in their place.
+ *
+ * <p>Note that a cached Client is used by one caller at a time. The subscriptions made
+ * through a proxy and left open - the ones cached by a StompTemplate with "cacheSubscriptions",
+ * for example - are cancelled when the proxy is closed, after the rollback, so that the
+ * broker redelivers the messages not acknowledged and the Client is cached with no
+ * subscription and no message dispatching going on.
+ */
+public class CachingConnectionFactory implements ConnectionFactory<TransactionalClient>, DisposableBean {
+
+	private static final transient Logger log = LoggerFactory.getLogger(CachingConnectionFactory.class);
+
+	private ConnectionFactory<TransactionalClient> targetConnectionFactory;
+
+	private int cacheSize = 1;
+
+	// the most recently returned first
+	private final LinkedList<TransactionalClient> cachedClients = new LinkedList<TransactionalClient>();
+
+	private boolean active = true;
+
+
+	/**
+	 * Create a new CachingConnectionFactory for bean-style usage.
+	 * @see #setTargetConnectionFactory
+	 */
+	public CachingConnectionFactory() {
+	}
+
+	/**
+	 * Create a new CachingConnectionFactory for the given target ConnectionFactory.
+	 * @param targetConnectionFactory the target ConnectionFactory
+	 */
+	public CachingConnectionFactory(ConnectionFactory<TransactionalClient> targetConnectionFactory) {
+		setTargetConnectionFactory(targetConnectionFactory);
+	}
+
+
+	/**
+	 * Set the target ConnectionFactory that creates the Clients to be cached.
+	 */
+	public void setTargetConnectionFactory(ConnectionFactory<TransactionalClient> targetConnectionFactory) {
+		Assert.notNull(targetConnectionFactory, "targetConnectionFactory must not be null");
+		this.targetConnectionFactory = targetConnectionFactory;
+	}
+
+	/**
+	 * Return the target ConnectionFactory that creates the Clients to be cached.
+	 */
+	public ConnectionFactory<TransactionalClient> getTargetConnectionFactory() {
+		return this.targetConnectionFactory;
+	}
+
+	/**
+	 * Specify the maximum number of idle Clients to keep open. Default is 1.
+	 * <p>More Clients are created if more are requested at the same time, the ones
+	 * which do not fit into the cache are closed when released.
+	 */
+	public void setCacheSize(int cacheSize) {
+		Assert.isTrue(cacheSize >= 1, "Cache size must be 1 or higher");
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Return the maximum number of idle Clients to keep open.
+	 */
+	public int getCacheSize() {
+		return this.cacheSize;
+	}
+
+
+	public TransactionalClient createConnection() {
+		TransactionalClient target = null;
+		List<TransactionalClient> discarded = new ArrayList<TransactionalClient>();
+		synchronized (this.cachedClients) {
+			if (!this.active) {
+				throw new StompConnectionException("CachingConnectionFactory has been destroyed");
+			}
+			while (target == null && !this.cachedClients.isEmpty()) {
+				TransactionalClient candidate = this.cachedClients.removeFirst();
+				if (candidate.isConnected()) {
+					target = candidate;
+				}
+				else {
+					discarded.add(candidate);
+				}
+			}
+		}
+		for (TransactionalClient client : discarded) {
+			log.debug("Discarding broken Stomp Client: " + client);
+			closeClient(client);
+		}
+		if (target == null) {
+			target = getTargetConnectionFactory().createConnection();
+			if (log.isDebugEnabled()) {
+				log.debug("Created cached Stomp Client: " + target);
+			}
+		}
+		return getCachedConnectionProxy(target);
+	}
+
+	/**
+	 * Close all the cached Clients - the ones in use are closed when released.
+	 */
+	public void destroy() {
+		List<TransactionalClient> clients;
+		synchronized (this.cachedClients) {
+			this.active = false;
+			clients = new ArrayList<TransactionalClient>(this.cachedClients);
+			this.cachedClients.clear();
+		}
+		for (TransactionalClient client : clients) {
+			closeClient(client);
+		}
+	}
+
+	/**
+	 * Hand the given target Client back to the cache, or close it if it cannot be reused.
+	 * @param subscriptionIds the subscriptions left open by the caller, cancelled before
+	 */
+	protected void releaseClient(TransactionalClient target, Collection<String> subscriptionIds) {
+		if (target.isConnected() && target.isInTransaction()) {
+			try {
+				target.rollback();
+			}
+			catch (StompException ex) {
+				log.debug("Could not roll back the transaction of the cached Stomp Client", ex);
+			}
+		}
+		for (String subscriptionId : subscriptionIds) {
+			if (!target.isConnected()) {
+				break;
+			}
+			try {
+				target.unsubscribe(subscriptionId);
+			}
+			catch (StompException ex) {
+				log.debug("Could not cancel subscription [" + subscriptionId + "] of the cached Stomp Client", ex);
+			}
+		}
+		synchronized (this.cachedClients) {
+			if (this.active && target.isConnected() && this.cachedClients.size() < this.cacheSize) {
+				this.cachedClients.addFirst(target);
+				return;
+			}
+		}
+		closeClient(target);
+	}
+
+	private void closeClient(TransactionalClient client) {
+		if (StompResourceState.CLOSED.equals(client.getState())) {
+			return;
+		}
+		try {
+			client.close();
+		}
+		catch (Throwable ex) {
+			log.debug("Could not close Stomp Client", ex);
+		}
+	}
+
+	private TransactionalClient getCachedConnectionProxy(TransactionalClient target) {
+		return (TransactionalClient) Proxy.newProxyInstance(
+				TxClientProxy.class.getClassLoader(),
+				new Class[] {TxClientProxy.class},
+				new CachedConnectionInvocationHandler(target));
+	}
+
+
+	/**
+	 * Invocation handler returning the Client to the cache on close.
+	 */
+	private class CachedConnectionInvocationHandler implements InvocationHandler {
+
+		private final TransactionalClient target;
+
+		private volatile boolean released = false;
+
+		// the subscriptions made through the proxy and not cancelled yet
+		private final Set<String> subscriptionIds = new LinkedHashSet<String>();
+
+		public CachedConnectionInvocationHandler(TransactionalClient target) {
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String methodName = method.getName();
+			if (methodName.equals("equals")) {
+				// Only consider equal when proxies are identical.
+				return (proxy == args[0]);
+			}
+			else if (methodName.equals("hashCode")) {
+				// Use hashCode of Client proxy.
+				return System.identityHashCode(proxy);
+			}
+			else if (methodName.equals("toString")) {
+				return "Cached Stomp Client: " + this.target;
+			}
+			else if (methodName.equals("close")) {
+				// Handle close method: don't pass the call on.
+				synchronized (this) {
+					if (!this.released) {
+						this.released = true;
+						releaseClient(this.target, this.subscriptionIds);
+					}
+				}
+				return null;
+			}
+			else if (methodName.equals("getTargetConnection")) {
+				// Handle getTargetConnection method: return underlying Client.
+				return this.target;
+			}
+			else if (this.released) {
+				// The target Client may be in use by another caller already.
+				if (methodName.equals("isConnected")) {
+					return false;
+				}
+				throw new StompConnectionException("Cached Stomp Client has already been closed");
+			}
+			Object result;
+			try {
+				result = method.invoke(this.target, args);
+			}
+			catch (InvocationTargetException ex) {
+				throw ex.getTargetException();
+			}
+			if (methodName.equals("subscribe")) {
+				this.subscriptionIds.add((String) result);
+			}
+			else if (methodName.equals("unsubscribe")) {
+				this.subscriptionIds.remove(args[0]);
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,672 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.reficio.cougar.spring.listener;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.StompSocketTimeoutException;
+import org.reficio.cougar.connection.ConnectionFactory;
+import org.reficio.cougar.connection.MessageListener;
+import org.reficio.cougar.connection.TransactionalClient;
+import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.domain.Ack;
+import org.reficio.cougar.domain.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.util.Assert;
+
+/**
+ * Message listener container running a number of consumers, each with a {@link TransactionalClient}
+ * and a subscription of its own, which receive continuously and push the messages to the
+ * {@link MessageListener}. Modelled on Spring's JMS DefaultMessageListenerContainer.
+ *
+ * <p>The messages are acknowledged according to the "ackMode" once the listener has returned - with
+ * Ack.AUTO the broker considers them consumed as soon as they have been sent. A message the listener
+ * has failed on is not acknowledged and the consumer reconnects, so that the broker redelivers it.
+ * The "prefetchSize" is passed to the broker in the activemq.prefetchSize header of the subscription.
+ *
+ * <p>If a "transactionManager" is set every message is processed within a transaction of its own -
+ * the messages sent by the listener through a StompTemplate sharing the ConnectionFactory of the
+ * {@link org.reficio.cougar.spring.connection.StompTransactionManager} participate in it. The message
+ * is acknowledged after the commit, and not at all if the transaction has been rolled back.
+ *
+ * <p>The number of the consumers scales between "concurrentConsumers" and "maxConcurrentConsumers".
+ * A consumer takes the messages already queued up on its client without waiting - if at least half of
+ * the last BACKLOG_WINDOW messages of a consumer have been found queued up and no other consumer is idle,
+ * a new one is started. A consumer retires once its receives have timed out "idleReceiveLimit" times
+ * in a row, as long as there are more than "concurrentConsumers" of them.
+ *
+ * <p>On stop the consumers finish the messages in flight, process the ones already received by their
+ * clients for at most the "shutdownTimeout", and then unsubscribe and close the clients.
+ */
+public class StompMessageListenerContainer implements InitializingBean, DisposableBean, BeanNameAware, SmartLifecycle {
+
+	private static final transient Logger log = LoggerFactory.getLogger(StompMessageListenerContainer.class);
+
+	public static final String PREFETCH_SIZE_HEADER = "activemq.prefetchSize";
+
+	public static final int DEFAULT_RECEIVE_TIMEOUT = 1000;
+
+	public static final long DEFAULT_RECOVERY_INTERVAL = 5000;
+
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+	public static final int DEFAULT_IDLE_RECEIVE_LIMIT = 10;
+
+	// number of the messages received by a consumer the scaling up is decided on
+	public static final int BACKLOG_WINDOW = 10;
+
+	private ConnectionFactory<TransactionalClient> connectionFactory;
+
+	private String destination;
+
+	private String selector;
+
+	private MessageListener messageListener;
+
+	private Ack ackMode = Ack.AUTO;
+
+	private Integer prefetchSize;
+
+	private int concurrentConsumers = 1;
+
+	private int maxConcurrentConsumers = 1;
+
+	private int idleReceiveLimit = DEFAULT_IDLE_RECEIVE_LIMIT;
+
+	private int receiveTimeout = DEFAULT_RECEIVE_TIMEOUT;
+
+	private long recoveryInterval = DEFAULT_RECOVERY_INTERVAL;
+
+	private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+	private PlatformTransactionManager transactionManager;
+
+	private DefaultTransactionDefinition transactionDefinition = new DefaultTransactionDefinition();
+
+	private Executor taskExecutor;
+
+	private boolean autoStartup = true;
+
+	private int phase = Integer.MAX_VALUE;
+
+	private String beanName = "stompMessageListenerContainer";
+
+	private final AtomicInteger consumerCounter = new AtomicInteger();
+
+	// guards the state below
+	private final Object lifecycleMonitor = new Object();
+
+	private final Set<AsyncConsumer> consumers = new HashSet<AsyncConsumer>();
+
+	private int retiredConsumerCount = 0;
+
+	private int idleConsumerCount = 0;
+
+	// have not received yet
+	private int startingConsumerCount = 0;
+
+	private volatile boolean running = false;
+
+
+	public void afterPropertiesSet() {
+		Assert.notNull(this.connectionFactory, "Property 'connectionFactory' is required");
+		Assert.notNull(this.destination, "Property 'destination' is required");
+		Assert.notNull(this.messageListener, "Property 'messageListener' is required");
+	}
+
+	public void destroy() {
+		stop();
+	}
+
+
+	// ----------------------------------------------------------------------------------
+	// Lifecycle
+	// ----------------------------------------------------------------------------------
+	public void start() {
+		synchronized (this.lifecycleMonitor) {
+			if (this.running) {
+				return;
+			}
+			afterPropertiesSet();
+			this.running = true;
+			for (int i = 0; i < this.concurrentConsumers; i++) {
+				scheduleNewConsumer();
+			}
+		}
+		log.info(String.format("Started [%d] consumers of [%s]", this.concurrentConsumers, this.destination));
+	}
+
+	// waits for the consumers to finish, at most the shutdown timeout for the ones still draining
+	public void stop() {
+		long deadline = System.currentTimeMillis() + this.shutdownTimeout + this.receiveTimeout;
+		synchronized (this.lifecycleMonitor) {
+			this.running = false;
+			this.lifecycleMonitor.notifyAll();
+			try {
+				long wait;
+				while (!this.consumers.isEmpty() && (wait = deadline - System.currentTimeMillis()) > 0) {
+					this.lifecycleMonitor.wait(wait);
+				}
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (!this.consumers.isEmpty()) {
+				log.warn(String.format("[%d] consumers of [%s] have not stopped in time",
+						this.consumers.size(), this.destination));
+			}
+		}
+	}
+
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	public boolean isAutoStartup() {
+		return this.autoStartup;
+	}
+
+	public int getPhase() {
+		return this.phase;
+	}
+
+	public int getActiveConsumerCount() {
+		synchronized (this.lifecycleMonitor) {
+			return this.consumers.size();
+		}
+	}
+
+	// the active ones which have not retired
+	public int getScheduledConsumerCount() {
+		synchronized (this.lifecycleMonitor) {
+			return this.consumers.size() - this.retiredConsumerCount;
+		}
+	}
+
+	// has to be called holding the lifecycle monitor
+	private void scheduleNewConsumer() {
+		AsyncConsumer consumer = new AsyncConsumer();
+		this.consumers.add(consumer);
+		this.startingConsumerCount++;
+		if (this.taskExecutor != null) {
+			this.taskExecutor.execute(consumer);
+		}
+		else {
+			Thread thread = new Thread(consumer, this.beanName + "-" + this.consumerCounter.incrementAndGet());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void consumerFinished(AsyncConsumer consumer) {
+		synchronized (this.lifecycleMonitor) {
+			updateConsumerState(consumer, false);
+			if (consumer.retired) {
+				this.retiredConsumerCount--;
+			}
+			this.consumers.remove(consumer);
+			this.lifecycleMonitor.notifyAll();
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------------
+	// Consumer scaling
+	// ----------------------------------------------------------------------------------
+	// backlog on the client over a window of messages - scaled up one consumer at a time
+	private void messageReceived(AsyncConsumer consumer, boolean queued) {
+		synchronized (this.lifecycleMonitor) {
+			updateConsumerState(consumer, false);
+			consumer.idleReceives = 0;
+			consumer.windowReceives++;
+			if (queued) {
+				consumer.windowQueuedReceives++;
+			}
+			if (consumer.windowReceives < BACKLOG_WINDOW) {
+				return;
+			}
+			boolean backlog = 2 * consumer.windowQueuedReceives >= BACKLOG_WINDOW;
+			consumer.windowReceives = 0;
+			consumer.windowQueuedReceives = 0;
+			if (backlog && this.running && this.idleConsumerCount == 0 && this.startingConsumerCount == 0
+					&& getScheduledConsumerCount() < getMaxConcurrentConsumers()) {
+				scheduleNewConsumer();
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Scaled up to [%d] consumers of [%s]", getScheduledConsumerCount(),
+							this.destination));
+				}
+			}
+		}
+	}
+
+	// returns whether the consumer should retire - scaled down slowly, one idle receive timeout at a time
+	private boolean receiveTimedOut(AsyncConsumer consumer) {
+		synchronized (this.lifecycleMonitor) {
+			updateConsumerState(consumer, true);
+			consumer.idleReceives++;
+			consumer.windowReceives = 0;
+			consumer.windowQueuedReceives = 0;
+			if (consumer.idleReceives >= this.idleReceiveLimit && getScheduledConsumerCount() > this.concurrentConsumers) {
+				consumer.retired = true;
+				this.retiredConsumerCount++;
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Scaled down to [%d] consumers of [%s]", getScheduledConsumerCount(),
+							this.destination));
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+	// has to be called holding the lifecycle monitor
+	private void updateConsumerState(AsyncConsumer consumer, boolean idle) {
+		if (consumer.starting) {
+			consumer.starting = false;
+			this.startingConsumerCount--;
+		}
+		if (consumer.idle != idle) {
+			consumer.idle = idle;
+			this.idleConsumerCount += idle ? 1 : -1;
+		}
+	}
+
+	// returns false if the container has been stopped in the meantime
+	private boolean sleepInterval(long interval) {
+		synchronized (this.lifecycleMonitor) {
+			try {
+				if (this.running) {
+					this.lifecycleMonitor.wait(interval);
+				}
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return this.running;
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------------
+	// Message processing
+	// ----------------------------------------------------------------------------------
+	/**
+	 * Invoke the listener for the given message, within a transaction if a transaction manager
+	 * has been set, and acknowledge it afterwards.
+	 * @return whether the message has been processed successfully
+	 */
+	protected boolean processMessage(TransactionalClient client, Frame message) {
+		TransactionStatus status = null;
+		if (this.transactionManager != null) {
+			status = this.transactionManager.getTransaction(this.transactionDefinition);
+		}
+		try {
+			this.messageListener.onMessage(message);
+		}
+		catch (Throwable ex) {
+			log.error(String.format("Message listener has failed on message [%s]", message.messageId()), ex);
+			if (status != null) {
+				rollbackOnException(status);
+			}
+			return false;
+		}
+		if (status != null) {
+			try {
+				this.transactionManager.commit(status);
+			}
+			catch (RuntimeException ex) {
+				log.error(String.format("Transaction of message [%s] could not be committed", message.messageId()), ex);
+				return false;
+			}
+		}
+		if (this.ackMode != Ack.AUTO) {
+			client.ack(message.messageId());
+		}
+		return true;
+	}
+
+	private void rollbackOnException(TransactionStatus status) {
+		try {
+			this.transactionManager.rollback(status);
+		}
+		catch (RuntimeException ex) {
+			log.error("Transaction could not be rolled back", ex);
+		}
+	}
+
+	private void invokeExceptionListener(StompException exception) {
+		try {
+			this.messageListener.onException(exception);
+		}
+		catch (RuntimeException ex) {
+			log.error("Message listener has failed", ex);
+		}
+	}
+
+	protected String subscribe(TransactionalClient client) {
+		return client.subscribe(this.destination, new FrameDecorator() {
+			public void decorateFrame(Frame frame) {
+				frame.ack(ackMode);
+				if (selector != null) {
+					frame.selector(selector);
+				}
+				if (prefetchSize != null) {
+					frame.custom(PREFETCH_SIZE_HEADER, String.valueOf(prefetchSize));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Consumer receiving the messages through a client and a subscription of its own - re-created after
+	 * the failures.
+	 */
+	private class AsyncConsumer implements Runnable {
+
+		private TransactionalClient client;
+
+		private String subscriptionId;
+
+		// guarded by the lifecycle monitor
+		private boolean starting = true;
+
+		private boolean idle = false;
+
+		private boolean retired = false;
+
+		private int idleReceives = 0;
+
+		// the messages received in the current backlog window, and the ones of them found queued up
+		private int windowReceives = 0;
+
+		private int windowQueuedReceives = 0;
+
+		public void run() {
+			try {
+				while (isRunning() && !this.retired) {
+					try {
+						if (this.client == null) {
+							connect();
+						}
+						Frame message = this.client.poll(this.subscriptionId);
+						if (message != null) {
+							messageReceived(this, true);
+						}
+						else if ((message = receive(receiveTimeout)) != null) {
+							messageReceived(this, false);
+						}
+						else if (receiveTimedOut(this)) {
+							break;
+						}
+						if (message != null && !processMessage(this.client, message) && ackMode != Ack.AUTO) {
+							// the message is redelivered once the unacknowledged ones are released by the broker,
+							// the auto-acknowledged ones received in the meantime would be lost
+							recover();
+						}
+					}
+					catch (StompException ex) {
+						log.error(String.format("Consumer of [%s] has failed, reconnecting in [%d] ms",
+								destination, recoveryInterval), ex);
+						invokeExceptionListener(ex);
+						release();
+						sleepInterval(recoveryInterval);
+					}
+				}
+				drain();
+			}
+			finally {
+				release();
+				consumerFinished(this);
+			}
+		}
+
+		private void connect() {
+			this.client = connectionFactory.createConnection();
+			this.subscriptionId = subscribe(this.client);
+		}
+
+		// null if no message has been received in time
+		private Frame receive(int timeout) {
+			try {
+				return this.client.receive(this.subscriptionId, timeout);
+			}
+			catch (StompSocketTimeoutException ex) {
+				return null;
+			}
+		}
+
+		// the messages already received by the client are processed before it is closed
+		private void drain() {
+			if (this.client == null) {
+				return;
+			}
+			long deadline = System.currentTimeMillis() + shutdownTimeout;
+			try {
+				Frame message;
+				while (System.currentTimeMillis() < deadline
+						&& (message = this.client.poll(this.subscriptionId)) != null) {
+					if (!processMessage(this.client, message)) {
+						return;
+					}
+				}
+			}
+			catch (StompException ex) {
+				log.debug("Consumer could not drain the received messages", ex);
+			}
+		}
+
+		private void recover() {
+			release();
+		}
+
+		private void release() {
+			TransactionalClient target = this.client;
+			this.client = null;
+			if (target == null) {
+				return;
+			}
+			try {
+				if (target.isConnected()) {
+					target.unsubscribe(this.subscriptionId);
+				}
+			}
+			catch (StompException ex) {
+				log.debug("Could not unsubscribe Stomp Client", ex);
+			}
+			try {
+				target.close();
+			}
+			catch (StompException ex) {
+				log.debug("Could not close Stomp Client", ex);
+			}
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------------
+	// Configuration
+	// ----------------------------------------------------------------------------------
+	public void setConnectionFactory(ConnectionFactory<TransactionalClient> connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	public ConnectionFactory<TransactionalClient> getConnectionFactory() {
+		return this.connectionFactory;
+	}
+
+	public void setDestination(String destination) {
+		this.destination = destination;
+	}
+
+	public String getDestination() {
+		return this.destination;
+	}
+
+	public void setSelector(String selector) {
+		this.selector = selector;
+	}
+
+	public String getSelector() {
+		return this.selector;
+	}
+
+	public void setMessageListener(MessageListener messageListener) {
+		this.messageListener = messageListener;
+	}
+
+	public MessageListener getMessageListener() {
+		return this.messageListener;
+	}
+
+	public void setAckMode(Ack ackMode) {
+		Assert.notNull(ackMode, "ackMode must not be null");
+		this.ackMode = ackMode;
+	}
+
+	public Ack getAckMode() {
+		return this.ackMode;
+	}
+
+	/**
+	 * Set the number of the messages the broker may push to a consumer ahead of the acknowledgements,
+	 * not set by default - the broker default applies.
+	 */
+	public void setPrefetchSize(Integer prefetchSize) {
+		Assert.isTrue(prefetchSize == null || prefetchSize >= 0, "prefetchSize cannot be negative");
+		this.prefetchSize = prefetchSize;
+	}
+
+	public Integer getPrefetchSize() {
+		return this.prefetchSize;
+	}
+
+	public void setConcurrentConsumers(int concurrentConsumers) {
+		Assert.isTrue(concurrentConsumers > 0, "concurrentConsumers must be positive");
+		this.concurrentConsumers = concurrentConsumers;
+	}
+
+	public int getConcurrentConsumers() {
+		return this.concurrentConsumers;
+	}
+
+	/**
+	 * Set the number of the consumers the container may scale up to under load, the "concurrentConsumers"
+	 * are kept running all the time. No scaling by default.
+	 */
+	public void setMaxConcurrentConsumers(int maxConcurrentConsumers) {
+		Assert.isTrue(maxConcurrentConsumers > 0, "maxConcurrentConsumers must be positive");
+		this.maxConcurrentConsumers = maxConcurrentConsumers;
+	}
+
+	public int getMaxConcurrentConsumers() {
+		return Math.max(this.maxConcurrentConsumers, this.concurrentConsumers);
+	}
+
+	/**
+	 * Set the number of the receive timeouts in a row after which a surplus consumer retires,
+	 * DEFAULT_IDLE_RECEIVE_LIMIT by default.
+	 */
+	public void setIdleReceiveLimit(int idleReceiveLimit) {
+		Assert.isTrue(idleReceiveLimit > 0, "idleReceiveLimit must be positive");
+		this.idleReceiveLimit = idleReceiveLimit;
+	}
+
+	public int getIdleReceiveLimit() {
+		return this.idleReceiveLimit;
+	}
+
+	/**
+	 * Set the time in milliseconds a consumer waits for a message before checking whether it should
+	 * stop, DEFAULT_RECEIVE_TIMEOUT by default.
+	 */
+	public void setReceiveTimeout(int receiveTimeout) {
+		Assert.isTrue(receiveTimeout > 0, "receiveTimeout must be positive");
+		this.receiveTimeout = receiveTimeout;
+	}
+
+	public int getReceiveTimeout() {
+		return this.receiveTimeout;
+	}
+
+	public void setRecoveryInterval(long recoveryInterval) {
+		this.recoveryInterval = recoveryInterval;
+	}
+
+	public long getRecoveryInterval() {
+		return this.recoveryInterval;
+	}
+
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public long getShutdownTimeout() {
+		return this.shutdownTimeout;
+	}
+
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	public PlatformTransactionManager getTransactionManager() {
+		return this.transactionManager;
+	}
+
+	// in seconds
+	public void setTransactionTimeout(int transactionTimeout) {
+		this.transactionDefinition.setTimeout(transactionTimeout);
+	}
+
+	/**
+	 * Set the executor running the consumers - a daemon thread per consumer is started otherwise. Each
+	 * consumer occupies a thread of the executor until the container has been stopped.
+	 */
+	public void setTaskExecutor(Executor taskExecutor) {
+		this.taskExecutor = taskExecutor;
+	}
+
+	public void setAutoStartup(boolean autoStartup) {
+		this.autoStartup = autoStartup;
+	}
+
+	public void setPhase(int phase) {
+		this.phase = phase;
+	}
+
+	public void setBeanName(String beanName) {
+		this.beanName = beanName;
+	}
+
+}
@@ -53,5 +53,17 @@ public class SpringMockConnectionFactory<T extends StompResource>  extends MockC
                 return response;
             }
         });
+
+        server.registerHandler(Command.UNSUBSCRIBE, new IMockMessageHandler() {
+            @Override
+            public Frame respond(Frame request) {
+                if (request.receipt() == null) {
+                    return null;
+                }
+                Frame response = new Frame(Command.RECEIPT);
+                response.receiptId(request.receipt());
+                return response;
+            }
+        });
     }
 }
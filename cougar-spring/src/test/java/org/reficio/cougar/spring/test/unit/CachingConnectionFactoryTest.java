@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.reficio.cougar.spring.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompConnectionException;
+import org.reficio.cougar.connection.TransactionalClient;
+import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.core.StompResourceState;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.impl.MockTransactionalClientImpl;
+import org.reficio.cougar.spring.StompTemplate;
+import org.reficio.cougar.spring.connection.CachingConnectionFactory;
+import org.reficio.cougar.spring.connection.ConnectionFactoryUtils;
+import org.reficio.cougar.spring.connection.TxClientProxy;
+import org.reficio.cougar.spring.test.mock.SpringMockConnectionFactory;
+
+import static org.junit.Assert.*;
+
+public class CachingConnectionFactoryTest {
+
+    private CachingConnectionFactory connectionFactory;
+
+    @Before
+    public void setUp() {
+        connectionFactory = new CachingConnectionFactory(
+                new SpringMockConnectionFactory<TransactionalClient>(TransactionalClient.class));
+    }
+
+    @After
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    private static MockTransactionalClientImpl target(TransactionalClient client) {
+        return (MockTransactionalClientImpl) ((TxClientProxy) client).getTargetConnection();
+    }
+
+    private static int countFrames(MockTransactionalClientImpl target, Command command) {
+        int count = 0;
+        for (Frame frame : target.getServer().getFrames()) {
+            if (frame.getCommand().equals(command)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final FrameDecorator PAYLOAD = new FrameDecorator() {
+        @Override
+        public void decorateFrame(Frame frame) {
+            frame.payload("payload");
+        }
+    };
+
+    @Test
+    public void clientReusedAcrossTemplateCalls() {
+        TransactionalClient client = connectionFactory.createConnection();
+        MockTransactionalClientImpl target = target(client);
+        client.close();
+
+        StompTemplate template = new StompTemplate();
+        template.setConnectionFactory(connectionFactory);
+        template.send("/queue/test", PAYLOAD);
+        template.send("/queue/test", PAYLOAD);
+
+        client = connectionFactory.createConnection();
+        assertSame(target, target(client));
+        client.close();
+        connectionFactory.destroy();
+        assertEquals(1, countFrames(target, Command.CONNECT));
+        assertEquals(2, countFrames(target, Command.SEND));
+    }
+
+    @Test
+    public void closeSuppressed() {
+        TransactionalClient client = connectionFactory.createConnection();
+        MockTransactionalClientImpl target = target(client);
+        ConnectionFactoryUtils.releaseConnection(client);
+
+        assertEquals(StompResourceState.CONNECTED, target.getState());
+        assertFalse(client.isConnected());
+        try {
+            client.send("/queue/test", PAYLOAD);
+            fail("released client used");
+        } catch (StompConnectionException ex) {
+            // expected
+        }
+        // closing it again has no effect
+        client.close();
+        TransactionalClient next = connectionFactory.createConnection();
+        assertSame(target, target(next));
+        next.close();
+    }
+
+    @Test
+    public void openTransactionRolledBack() {
+        TransactionalClient client = connectionFactory.createConnection();
+        MockTransactionalClientImpl target = target(client);
+        client.begin();
+        client.send("/queue/test", PAYLOAD);
+        client.close();
+
+        assertFalse(target.isInTransaction());
+        connectionFactory.destroy();
+        assertEquals(1, countFrames(target, Command.ABORT));
+        assertEquals(0, countFrames(target, Command.COMMIT));
+    }
+
+    @Test
+    public void brokenClientDiscardedOnRelease() {
+        TransactionalClient client = connectionFactory.createConnection();
+        MockTransactionalClientImpl target = target(client);
+        target.markBroken();
+        client.close();
+
+        assertEquals(StompResourceState.CLOSED, target.getState());
+        TransactionalClient next = connectionFactory.createConnection();
+        assertNotSame(target, target(next));
+        assertTrue(next.isConnected());
+        next.close();
+    }
+
+    @Test
+    public void brokenCachedClientReplaced() {
+        TransactionalClient client = connectionFactory.createConnection();
+        MockTransactionalClientImpl target = target(client);
+        client.close();
+        target.markBroken();
+
+        TransactionalClient next = connectionFactory.createConnection();
+        assertNotSame(target, target(next));
+        assertEquals(StompResourceState.CLOSED, target.getState());
+        next.close();
+    }
+
+    @Test
+    public void surplusClientsClosed() {
+        TransactionalClient first = connectionFactory.createConnection();
+        TransactionalClient second = connectionFactory.createConnection();
+        MockTransactionalClientImpl firstTarget = target(first);
+        MockTransactionalClientImpl secondTarget = target(second);
+        assertNotSame(firstTarget, secondTarget);
+        first.close();
+        second.close();
+
+        assertEquals(StompResourceState.CONNECTED, firstTarget.getState());
+        assertEquals(StompResourceState.CLOSED, secondTarget.getState());
+        connectionFactory.destroy();
+        assertEquals(StompResourceState.CLOSED, firstTarget.getState());
+    }
+
+}
@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.reficio.cougar.spring.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.StompException;
+import org.reficio.cougar.connection.ConnectionFactory;
+import org.reficio.cougar.connection.MessageListener;
+import org.reficio.cougar.connection.TransactionalClient;
+import org.reficio.cougar.core.StompResourceState;
+import org.reficio.cougar.domain.Ack;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.impl.IMockMessageHandler;
+import org.reficio.cougar.impl.MockServer;
+import org.reficio.cougar.impl.MockTransactionalClientImpl;
+import org.reficio.cougar.spring.listener.StompMessageListenerContainer;
+import org.reficio.cougar.spring.test.mock.SpringMockConnectionFactory;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StompMessageListenerContainerTest {
+
+    private final List<String> events = new CopyOnWriteArrayList<String>();
+
+    private RecordingConnectionFactory connectionFactory;
+
+    private StompMessageListenerContainer container;
+
+    // creates the mock clients, each of them receives the given number of messages once subscribed, and records
+    // the acknowledgements
+    private class RecordingConnectionFactory implements ConnectionFactory<TransactionalClient> {
+        private final ConnectionFactory<TransactionalClient> targetFactory =
+                new SpringMockConnectionFactory<TransactionalClient>(TransactionalClient.class);
+        private final List<MockTransactionalClientImpl> clients = new CopyOnWriteArrayList<MockTransactionalClientImpl>();
+        private volatile int messagesPerSubscription = 1;
+
+        public TransactionalClient createConnection() {
+            final MockTransactionalClientImpl target = (MockTransactionalClientImpl) targetFactory.createConnection();
+            final MockServer server = target.getServer();
+            server.registerHandler(Command.SUBSCRIBE, new IMockMessageHandler() {
+                @Override
+                public Frame respond(Frame request) {
+                    for (int i = 1; i < messagesPerSubscription; i++) {
+                        server.send(message(request.subscriptionId(), "message-" + i));
+                    }
+                    return message(request.subscriptionId(), "message-" + messagesPerSubscription);
+                }
+            });
+            clients.add(target);
+            return (TransactionalClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[]{TransactionalClient.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("ack")) {
+                        events.add("ack " + args[0]);
+                    }
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getTargetException();
+                    }
+                }
+            });
+        }
+    }
+
+    private class RecordingListener implements MessageListener {
+        private int failures = 0;
+
+        RecordingListener() {
+        }
+
+        RecordingListener(int failures) {
+            this.failures = failures;
+        }
+
+        public void onMessage(Frame message) {
+            events.add("onMessage " + message.messageId());
+            if (failures > 0) {
+                failures--;
+                throw new IllegalStateException("Listener failure");
+            }
+        }
+
+        public void onReceipt(Frame receipt) {
+        }
+
+        public void onError(Frame error) {
+        }
+
+        public void onException(StompException exception) {
+        }
+    }
+
+    private class RecordingTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+            events.add("commit");
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+            events.add("rollback");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        connectionFactory = new RecordingConnectionFactory();
+        container = new StompMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setDestination("/queue/test");
+        container.setReceiveTimeout(100);
+        container.setRecoveryInterval(100);
+    }
+
+    @After
+    public void tearDown() {
+        container.stop();
+    }
+
+    private static Frame message(String subscriptionId, String messageId) {
+        Frame message = new Frame(Command.MESSAGE);
+        message.destination("/queue/test");
+        message.subscription(subscriptionId);
+        message.messageId(messageId);
+        message.payload(messageId);
+        return message;
+    }
+
+    private void awaitEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Events not recorded in time: " + events, events.size() >= count);
+    }
+
+    private static int countFrames(MockTransactionalClientImpl client, Command command) {
+        int count = 0;
+        for (Frame frame : client.getServer().getFrames()) {
+            if (frame.getCommand().equals(command)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void listenerInvoked() throws InterruptedException {
+        container.setMessageListener(new RecordingListener());
+        container.start();
+        awaitEvents(1);
+        container.stop();
+
+        // acknowledged by the broker on delivery
+        assertEquals(Arrays.asList("onMessage message-1"), events);
+        MockTransactionalClientImpl client = connectionFactory.clients.get(0);
+        assertEquals(Ack.AUTO, client.getServer().getLastFrameOfType(Command.SUBSCRIBE).ack());
+        assertEquals(StompResourceState.CLOSED, client.getState());
+    }
+
+    @Test
+    public void acknowledgedAfterListener() throws InterruptedException {
+        container.setAckMode(Ack.CLIENT);
+        container.setMessageListener(new RecordingListener());
+        container.start();
+        awaitEvents(2);
+        container.stop();
+
+        assertEquals(Arrays.asList("onMessage message-1", "ack message-1"), events);
+        assertEquals(1, countFrames(connectionFactory.clients.get(0), Command.ACK));
+    }
+
+    @Test
+    public void reconnectedAfterListenerFailure() throws InterruptedException {
+        container.setAckMode(Ack.CLIENT);
+        container.setMessageListener(new RecordingListener(1));
+        container.start();
+        awaitEvents(3);
+        container.stop();
+
+        // the message not acknowledged is redelivered to the new subscription
+        assertEquals(Arrays.asList("onMessage message-1", "onMessage message-1", "ack message-1"), events);
+        assertEquals(2, connectionFactory.clients.size());
+        MockTransactionalClientImpl failed = connectionFactory.clients.get(0);
+        assertEquals(StompResourceState.CLOSED, failed.getState());
+        assertEquals(0, countFrames(failed, Command.ACK));
+        assertEquals(1, countFrames(failed, Command.UNSUBSCRIBE));
+    }
+
+    @Test
+    public void acknowledgedAfterCommit() throws InterruptedException {
+        container.setAckMode(Ack.CLIENT);
+        container.setTransactionManager(new RecordingTransactionManager());
+        container.setMessageListener(new RecordingListener());
+        container.start();
+        awaitEvents(3);
+        container.stop();
+
+        assertEquals(Arrays.asList("onMessage message-1", "commit", "ack message-1"), events);
+    }
+
+    @Test
+    public void notAcknowledgedAfterRollback() throws InterruptedException {
+        container.setAckMode(Ack.CLIENT);
+        container.setTransactionManager(new RecordingTransactionManager());
+        container.setMessageListener(new RecordingListener(1));
+        container.start();
+        awaitEvents(5);
+        container.stop();
+
+        assertEquals(Arrays.asList("onMessage message-1", "rollback", "onMessage message-1", "commit", "ack message-1"),
+                events);
+    }
+
+    @Test
+    public void stopDrainsReceivedMessages() throws InterruptedException {
+        connectionFactory.messagesPerSubscription = 3;
+        final CountDownLatch firstMessage = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        container.setAckMode(Ack.CLIENT);
+        container.setMessageListener(new RecordingListener() {
+            @Override
+            public void onMessage(Frame message) {
+                super.onMessage(message);
+                firstMessage.countDown();
+                try {
+                    proceed.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        container.start();
+        assertTrue(firstMessage.await(5, TimeUnit.SECONDS));
+        // the other messages are queued up on the client in the meantime
+        Thread.sleep(200);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                proceed.countDown();
+            }
+        }).start();
+        container.stop();
+
+        assertEquals(Arrays.asList("onMessage message-1", "ack message-1", "onMessage message-2", "ack message-2",
+                "onMessage message-3", "ack message-3"), events);
+        assertEquals(0, container.getActiveConsumerCount());
+        assertEquals(StompResourceState.CLOSED, connectionFactory.clients.get(0).getState());
+    }
+
+    @Test
+    public void scaledUpUnderBacklogAndDownWhenIdle() throws InterruptedException {
+        connectionFactory.messagesPerSubscription = 50;
+        container.setMaxConcurrentConsumers(3);
+        container.setIdleReceiveLimit(3);
+        container.setMessageListener(new RecordingListener() {
+            @Override
+            public void onMessage(Frame message) {
+                super.onMessage(message);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        container.start();
+        int maxConsumers = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (maxConsumers < 2 && System.currentTimeMillis() < deadline) {
+            maxConsumers = Math.max(maxConsumers, container.getScheduledConsumerCount());
+            Thread.sleep(10);
+        }
+        assertTrue(maxConsumers > 1);
+
+        // the surplus consumers retire once the backlog has been processed
+        deadline = System.currentTimeMillis() + 10000;
+        while (container.getActiveConsumerCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, container.getActiveConsumerCount());
+        assertEquals(1, container.getScheduledConsumerCount());
+        assertEquals(50 * connectionFactory.clients.size(), events.size());
+    }
+
+    @Test
+    public void notScaledUpWithoutBacklog() throws InterruptedException {
+        container.setMaxConcurrentConsumers(3);
+        container.setMessageListener(new RecordingListener());
+        container.start();
+        awaitEvents(1);
+        Thread.sleep(500);
+
+        assertEquals(1, container.getScheduledConsumerCount());
+        assertEquals(1, connectionFactory.clients.size());
+    }
+
+}
@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.reficio.cougar.spring.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reficio.cougar.connection.TransactionalClient;
+import org.reficio.cougar.core.FrameDecorator;
+import org.reficio.cougar.domain.Ack;
+import org.reficio.cougar.domain.Command;
+import org.reficio.cougar.domain.Frame;
+import org.reficio.cougar.impl.IMockMessageHandler;
+import org.reficio.cougar.impl.MockServer;
+import org.reficio.cougar.impl.MockTransactionalClientImpl;
+import org.reficio.cougar.spring.StompTemplate;
+import org.reficio.cougar.spring.connection.CachingConnectionFactory;
+import org.reficio.cougar.spring.connection.StompTransactionManager;
+import org.reficio.cougar.spring.connection.TxClientProxy;
+import org.reficio.cougar.spring.test.mock.SpringMockConnectionFactory;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StompTemplateTest {
+
+    private CachingConnectionFactory connectionFactory;
+
+    private StompTemplate template;
+
+    private MockTransactionalClientImpl target;
+
+    private MockServer server;
+
+    @Before
+    public void setUp() {
+        connectionFactory = new CachingConnectionFactory(
+                new SpringMockConnectionFactory<TransactionalClient>(TransactionalClient.class));
+        template = new StompTemplate();
+        template.setConnectionFactory(connectionFactory);
+        template.setReceiveTimeout(5000);
+        // the single cached client is used by the template
+        TransactionalClient client = connectionFactory.createConnection();
+        target = (MockTransactionalClientImpl) ((TxClientProxy) client).getTargetConnection();
+        server = target.getServer();
+        client.close();
+    }
+
+    @After
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    private static Frame message(String subscriptionId, String messageId) {
+        Frame message = new Frame(Command.MESSAGE);
+        message.destination("/queue/test");
+        message.subscription(subscriptionId);
+        message.messageId(messageId);
+        message.payload(messageId);
+        return message;
+    }
+
+    private void respondToSubscribe(final String messageId) {
+        server.registerHandler(Command.SUBSCRIBE, new IMockMessageHandler() {
+            @Override
+            public Frame respond(Frame request) {
+                return (messageId == null) ? null : message(request.subscriptionId(), messageId);
+            }
+        });
+    }
+
+    private static List<FrameDecorator> payloads(int count) {
+        List<FrameDecorator> payloads = new ArrayList<FrameDecorator>();
+        for (int i = 0; i < count; i++) {
+            final String payload = "payload-" + i;
+            payloads.add(new FrameDecorator() {
+                @Override
+                public void decorateFrame(Frame frame) {
+                    frame.payload(payload);
+                }
+            });
+        }
+        return payloads;
+    }
+
+    // the commands sent after the handshake
+    private List<Command> commands() {
+        List<Command> commands = new ArrayList<Command>();
+        for (Frame frame : server.getFrames()) {
+            if (!frame.getCommand().equals(Command.CONNECT) && !frame.getCommand().equals(Command.DISCONNECT)) {
+                commands.add(frame.getCommand());
+            }
+        }
+        return commands;
+    }
+
+    private List<Frame> framesOfType(Command command) {
+        List<Frame> frames = new ArrayList<Frame>();
+        for (Frame frame : server.getFrames()) {
+            if (frame.getCommand().equals(command)) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    // the UNSUBSCRIBE is not awaited by the client, the frames are processed by the server asynchronously
+    private void awaitFrame(Command command) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (framesOfType(command).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("Frame not received in time: " + command, framesOfType(command).isEmpty());
+    }
+
+    @Test
+    public void receivedMessageAcknowledged() {
+        respondToSubscribe("message-1");
+        Frame message = template.receive("/queue/test");
+        assertEquals("message-1", message.payload());
+        connectionFactory.destroy();
+
+        Frame subscribe = server.getLastFrameOfType(Command.SUBSCRIBE);
+        assertEquals(Ack.CLIENT, subscribe.ack());
+        List<Frame> acks = framesOfType(Command.ACK);
+        assertEquals(1, acks.size());
+        assertEquals("message-1", acks.get(0).messageId());
+        Frame unsubscribe = server.getLastFrameOfType(Command.UNSUBSCRIBE);
+        assertEquals(subscribe.subscriptionId(), unsubscribe.subscriptionId());
+    }
+
+    @Test
+    public void nothingAcknowledgedOnTimeout() {
+        respondToSubscribe(null);
+        template.setReceiveTimeout(100);
+        assertNull(template.receive("/queue/test"));
+        connectionFactory.destroy();
+
+        assertTrue(framesOfType(Command.ACK).isEmpty());
+        assertEquals(1, framesOfType(Command.UNSUBSCRIBE).size());
+    }
+
+    @Test
+    public void cachedSubscriptionReusedWhileClientHeld() throws InterruptedException {
+        template.setCacheSubscriptions(true);
+        respondToSubscribe("message-1");
+        StompTransactionManager transactionManager = new StompTransactionManager(connectionFactory);
+        TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        assertEquals("message-1", template.receive("/queue/test").payload());
+        String subscriptionId = server.getLastFrameOfType(Command.SUBSCRIBE).subscriptionId();
+        server.send(message(subscriptionId, "message-2"));
+        assertEquals("message-2", template.receive("/queue/test").payload());
+        transactionManager.commit(status);
+        awaitFrame(Command.UNSUBSCRIBE);
+
+        assertEquals(1, framesOfType(Command.SUBSCRIBE).size());
+        assertEquals(2, framesOfType(Command.ACK).size());
+        List<Frame> unsubscribes = framesOfType(Command.UNSUBSCRIBE);
+        assertEquals(1, unsubscribes.size());
+        assertEquals(subscriptionId, unsubscribes.get(0).subscriptionId());
+    }
+
+    @Test
+    public void cachedSubscriptionsCancelledOnRelease() throws InterruptedException {
+        template.setCacheSubscriptions(true);
+        respondToSubscribe("message-1");
+        assertEquals("message-1", template.receive("/queue/test").payload());
+        awaitFrame(Command.UNSUBSCRIBE);
+        assertEquals(1, framesOfType(Command.UNSUBSCRIBE).size());
+
+        // the frames of the released client are not dispatched anymore, receive() reads them again
+        TransactionalClient client = connectionFactory.createConnection();
+        try {
+            server.send(message("no-subscription", "message-2"));
+            assertEquals("message-2", client.receive(5000).payload());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void batchSentInTransaction() {
+        template.setBatchChunkSize(2);
+        int flushCount = target.getFlushCount();
+        template.sendBatch("/queue/test", payloads(5));
+        // a flush per chunk of frames and one for the COMMIT
+        assertEquals(4, target.getFlushCount() - flushCount);
+        connectionFactory.destroy();
+
+        assertEquals(Arrays.asList(Command.BEGIN, Command.SEND, Command.SEND, Command.SEND, Command.SEND, Command.SEND,
+                Command.COMMIT), commands());
+        String transactionId = server.getLastFrameOfType(Command.BEGIN).transaction();
+        for (Frame frame : framesOfType(Command.SEND)) {
+            assertEquals(transactionId, frame.transaction());
+        }
+        assertEquals(transactionId, server.getLastFrameOfType(Command.COMMIT).transaction());
+    }
+
+    @Test
+    public void batchRolledBackOnFailure() {
+        template.setBatchChunkSize(2);
+        List<FrameDecorator> payloads = payloads(2);
+        payloads.add(new FrameDecorator() {
+            @Override
+            public void decorateFrame(Frame frame) {
+                throw new IllegalStateException("Decorator failure");
+            }
+        });
+        try {
+            template.sendBatch("/queue/test", payloads);
+            fail("Batch should have failed");
+        } catch (IllegalStateException ex) {
+            assertEquals("Decorator failure", ex.getMessage());
+        }
+        connectionFactory.destroy();
+
+        assertEquals(Arrays.asList(Command.BEGIN, Command.SEND, Command.SEND, Command.ABORT), commands());
+    }
+
+    @Test
+    public void batchOfManagedTransactionNotCommitted() {
+        StompTransactionManager transactionManager = new StompTransactionManager(connectionFactory);
+        TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        template.sendBatch("/queue/test", payloads(2));
+        // the transaction is completed by its manager only
+        transactionManager.rollback(status);
+        connectionFactory.destroy();
+
+        assertEquals(Arrays.asList(Command.BEGIN, Command.SEND, Command.SEND, Command.ABORT), commands());
+    }
+
+}